@@ -0,0 +1,61 @@
+package com.drybro.userinfo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.service.PasswordGeneratorService;
+import com.drybro.userinfo.service.SecureRandomEntropySource;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasswordGeneratorBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean buffered;
+
+	private PasswordGeneratorService passwordGeneratorService;
+
+	@Setup
+	public void setUp() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getPasswordGenerator().getBuffer().setEnabled( buffered );
+		passwordGeneratorService = new PasswordGeneratorService( new SecureRandomEntropySource(),
+				userInfoProperties );
+		passwordGeneratorService.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		passwordGeneratorService.stop();
+	}
+
+	@Benchmark
+	public String generatePassword() {
+		return passwordGeneratorService.generatePassword();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String generatePasswordContended() {
+		return passwordGeneratorService.generatePassword();
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.drybro.userinfo.benchmark;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserInfoResponseSerializationBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int userSetSize;
+
+	private ObjectWriter responseWriter;
+
+	private UserInfoResponse singleUserResponse;
+
+	private UserInfoResponse userSetResponse;
+
+	@Setup
+	public void setUp() {
+		// Same defaults Spring Boot applies to the ObjectMapper used by the controllers
+		responseWriter = Jackson2ObjectMapperBuilder.json().build().writerFor( UserInfoResponse.class );
+		singleUserResponse = UserInfoResponse.builder().userInfo( user( 1 ) ).isSuccess( true ).build();
+
+		final Set<UserInfo> users = new HashSet<>();
+		for ( int i = 0; i < userSetSize; i++ ) {
+			users.add( user( i ) );
+		}
+		userSetResponse = UserInfoResponse.builder().userInfoSet( users ).isSuccess( true ).build();
+	}
+
+	@Benchmark
+	public byte[] serializeSingleUser() throws JsonProcessingException {
+		return responseWriter.writeValueAsBytes( singleUserResponse );
+	}
+
+	@Benchmark
+	public byte[] serializeUserSet() throws JsonProcessingException {
+		return responseWriter.writeValueAsBytes( userSetResponse );
+	}
+
+	private static UserInfo user( final long id ) {
+		return UserInfo.builder()
+				.id( id )
+				.firstName( "first" + id )
+				.surname( "surname" + id )
+				.email( "user" + id + "@email.com" )
+				.password( "aB3dE5gH7jK9mN1pQ3sT" )
+				.allowsEmail( id % 2 == 0 )
+				.build();
+	}
+
+}
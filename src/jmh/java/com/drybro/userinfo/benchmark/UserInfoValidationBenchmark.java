@@ -0,0 +1,73 @@
+package com.drybro.userinfo.benchmark;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.drybro.userinfo.model.UserInfo;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.ValidatorFactory;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserInfoValidationBenchmark {
+
+	private ValidatorFactory validatorFactory;
+
+	private Validator validator;
+
+	private UserInfo validUser;
+
+	private UserInfo invalidUser;
+
+	@Setup
+	public void setUp() {
+		validatorFactory = Validation.buildDefaultValidatorFactory();
+		validator = validatorFactory.getValidator();
+		validUser = UserInfo.builder()
+				.firstName( "user" )
+				.surname( "one" )
+				.email( "userone@email.com" )
+				.allowsEmail( true )
+				.build();
+		invalidUser = UserInfo.builder()
+				.firstName( " " )
+				.surname( "one" )
+				.email( "not-an-email" )
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() {
+		validatorFactory.close();
+	}
+
+	@Benchmark
+	public Set<ConstraintViolation<UserInfo>> validateValidUser() {
+		return validator.validate( validUser );
+	}
+
+	@Benchmark
+	public Set<ConstraintViolation<UserInfo>> validateInvalidUser() {
+		return validator.validate( invalidUser );
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.drybro.userinfo.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.drybro.userinfo.UserInfoApplication;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserEmailView;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.service.UserService;
+
+/**
+ * Measures {@link UserService} lookups and updates against the embedded H2 database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBenchmark {
+
+	private static final int USER_COUNT = 10_000;
+
+	@Param({ "false", "true" })
+	public boolean cacheEnabled;
+
+	private ConfigurableApplicationContext applicationContext;
+
+	private UserService userService;
+
+	private long[] userIds;
+
+	private String[] emails;
+
+	@Setup
+	public void setUp() {
+		applicationContext = new SpringApplicationBuilder( UserInfoApplication.class )
+				.web( WebApplicationType.NONE )
+				.properties( "user-info.cache.enabled=" + cacheEnabled, "logging.level.root=WARN" )
+				.run();
+		userService = applicationContext.getBean( UserService.class );
+
+		final List<UserInfo> users = new ArrayList<>( USER_COUNT );
+		for ( int i = 0; i < USER_COUNT; i++ ) {
+			users.add( UserInfo.builder()
+					.firstName( "first" + i )
+					.surname( "surname" + i )
+					.email( "user" + i + "@email.com" )
+					.allowsEmail( i % 2 == 0 )
+					.build() );
+		}
+		final List<UserCreationResult> results = userService.saveUsersInDatabase( users );
+		userIds = new long[USER_COUNT];
+		emails = new String[USER_COUNT];
+		for ( int i = 0; i < USER_COUNT; i++ ) {
+			userIds[i] = results.get( i ).getId();
+			emails[i] = users.get( i ).getEmail();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		applicationContext.close();
+	}
+
+	@Benchmark
+	public UserInfo findUserById() {
+		return userService.findUserById( userIds[randomIndex()] );
+	}
+
+	@Benchmark
+	public UserInfo findUserByEmail() {
+		return userService.findUserByEmail( emails[randomIndex()] );
+	}
+
+	@Benchmark
+	public UserEmailView findUserEmailById() {
+		return userService.findUserEmailById( userIds[randomIndex()] );
+	}
+
+	@Benchmark
+	public void updateUserInfoEmailPreferences() {
+		final int index = randomIndex();
+		userService.updateUserInfoEmailPreferences( userIds[index], ThreadLocalRandom.current().nextBoolean() );
+	}
+
+	private static int randomIndex() {
+		return ThreadLocalRandom.current().nextInt( USER_COUNT );
+	}
+
+}
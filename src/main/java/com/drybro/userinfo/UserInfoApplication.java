@@ -1,13 +1,53 @@
 package com.drybro.userinfo;
 
+import java.nio.file.Path;
+import java.util.List;
+
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+import com.drybro.userinfo.model.UserImportProgress;
+import com.drybro.userinfo.service.UserImportService;
+
+import lombok.extern.slf4j.Slf4j;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
+@EnableScheduling
+@Slf4j
 public class UserInfoApplication {
 
+	public static final String IMPORT_USERS_OPTION = "import-users";
+
 	public static void main( String[] args ) {
 		SpringApplication.run( UserInfoApplication.class, args );
 	}
 
+	/**
+	 * Imports each CSV file passed as {@code --import-users=<path>} once the application has started,
+	 * failing startup if any of them cannot be read.
+	 */
+	@Bean
+	ApplicationRunner userImportRunner( final UserImportService userImportService ) {
+		return args -> {
+			final List<String> csvPaths = args.getOptionValues( IMPORT_USERS_OPTION );
+			if ( csvPaths == null ) {
+				return;
+			}
+			for ( final String csvPath : csvPaths ) {
+				final UserImportProgress progress = userImportService.importUsers( Path.of( csvPath ) );
+				if ( progress.getStatus() == UserImportProgress.Status.FAILED ) {
+					throw new IllegalStateException( "Importing users from " + csvPath + " failed: "
+							+ progress.getError() );
+				}
+				progress.getRejections().forEach( rejection -> log.info( "Row {} of {} rejected: {}",
+						rejection.getRow(), csvPath, rejection.getErrors() ) );
+			}
+		};
+	}
+
 }
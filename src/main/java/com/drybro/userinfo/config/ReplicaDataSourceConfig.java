@@ -0,0 +1,47 @@
+package com.drybro.userinfo.config;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Replaces Spring Boot's single datasource with a primary and a read replica when
+ * {@code user-info.replica.enabled} is set. JPA and everything else see one routing datasource, see
+ * {@link ReplicaRoutingDataSource} for which connections go where.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(prefix = "user-info.replica", name = "enabled", havingValue = "true")
+public class ReplicaDataSourceConfig {
+
+	@Bean
+	@ConfigurationProperties("spring.datasource.hikari")
+	public HikariDataSource primaryDataSource( final DataSourceProperties dataSourceProperties ) {
+		return dataSourceProperties.initializeDataSourceBuilder().type( HikariDataSource.class ).build();
+	}
+
+	@Bean
+	@ConfigurationProperties("user-info.replica.datasource")
+	public HikariDataSource replicaDataSource() {
+		final HikariDataSource replicaDataSource = new HikariDataSource();
+		replicaDataSource.setPoolName( "replica" );
+		replicaDataSource.setReadOnly( true );
+		return replicaDataSource;
+	}
+
+	@Bean
+	@Primary
+	public DataSource dataSource( final HikariDataSource primaryDataSource,
+			final HikariDataSource replicaDataSource, final UserInfoProperties userInfoProperties ) {
+		return new LazyConnectionDataSourceProxy( new ReplicaRoutingDataSource( primaryDataSource,
+				replicaDataSource, userInfoProperties.getReplica().getRetryInterval() ) );
+	}
+
+}
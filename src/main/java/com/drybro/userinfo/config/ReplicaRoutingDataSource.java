@@ -0,0 +1,76 @@
+package com.drybro.userinfo.config;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands out replica connections to read-only transactions named {@link #REPLICA_READ} and primary
+ * connections to everything else. The transaction is only known once it has started, so this has to
+ * sit behind a {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ * <p>
+ * When the replica cannot hand out a connection the read falls back to the primary, and the replica
+ * is skipped for the retry interval rather than making every read wait on it to fail again.
+ */
+@Slf4j
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+	public static final String REPLICA_READ = "replica-read";
+
+	enum Target {
+		PRIMARY, REPLICA
+	}
+
+	private final DataSource primary;
+
+	private final long retryIntervalNanos;
+
+	private volatile boolean replicaDown;
+
+	private volatile long replicaRetryAt;
+
+	public ReplicaRoutingDataSource( final DataSource primary, final DataSource replica,
+			final Duration retryInterval ) {
+		this.primary = primary;
+		this.retryIntervalNanos = retryInterval.toNanos();
+		setTargetDataSources( Map.of( Target.PRIMARY, primary, Target.REPLICA, replica ) );
+		setDefaultTargetDataSource( primary );
+		afterPropertiesSet();
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		if ( !TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+				|| !REPLICA_READ.equals( TransactionSynchronizationManager.getCurrentTransactionName() ) ) {
+			return Target.PRIMARY;
+		}
+		return replicaDown && System.nanoTime() - replicaRetryAt < 0 ? Target.PRIMARY : Target.REPLICA;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if ( determineCurrentLookupKey() == Target.PRIMARY ) {
+			return primary.getConnection();
+		}
+		try {
+			final Connection connection = super.getConnection();
+			replicaDown = false;
+			return connection;
+		} catch ( final SQLException sqle ) {
+			replicaRetryAt = System.nanoTime() + retryIntervalNanos;
+			replicaDown = true;
+			log.warn( "Replica unavailable, reading from the primary for the next {} ms",
+					Duration.ofNanos( retryIntervalNanos ).toMillis(), sqle );
+			return primary.getConnection();
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.drybro.userinfo.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Binary Jackson formats offered alongside JSON for bulk responses, picked by the Accept header.
+ * Both are built from Spring Boot's configured builder so they serialize exactly like the JSON
+ * converter, only more compactly and with less parsing work on either side.
+ */
+@Configuration(proxyBeanMethods = false)
+public class SerializationConfig {
+
+	@Bean
+	public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(
+			final Jackson2ObjectMapperBuilder jackson2ObjectMapperBuilder ) {
+		return new MappingJackson2SmileHttpMessageConverter(
+				jackson2ObjectMapperBuilder.factory( new SmileFactory() ).build() );
+	}
+
+	@Bean
+	public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(
+			final Jackson2ObjectMapperBuilder jackson2ObjectMapperBuilder ) {
+		return new MappingJackson2CborHttpMessageConverter(
+				jackson2ObjectMapperBuilder.factory( new CBORFactory() ).build() );
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.drybro.userinfo.config;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * The shard that {@link ShardRoutingDataSource} hands out connections for on the current thread.
+ */
+public final class ShardContext {
+
+	private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+
+	private ShardContext() {
+	}
+
+	/**
+	 * @return the shard bound to this thread, or null when none is
+	 */
+	public static Integer currentShard() {
+		return CURRENT_SHARD.get();
+	}
+
+	/**
+	 * Runs the work with the shard bound, restoring the shard bound before once it is done.
+	 *
+	 * @throws IllegalStateException when called inside a transaction on another shard, which would
+	 *         keep using the connection it already has
+	 */
+	public static <T> T callOnShard( final int shard, final Supplier<T> work ) {
+		final Integer previous = CURRENT_SHARD.get();
+		if ( !Objects.equals( previous, shard ) && TransactionSynchronizationManager.isActualTransactionActive() ) {
+			throw new IllegalStateException( "Cannot switch to shard " + shard + " inside a transaction" );
+		}
+		CURRENT_SHARD.set( shard );
+		try {
+			return work.get();
+		} finally {
+			if ( previous == null ) {
+				CURRENT_SHARD.remove();
+			} else {
+				CURRENT_SHARD.set( previous );
+			}
+		}
+	}
+
+}
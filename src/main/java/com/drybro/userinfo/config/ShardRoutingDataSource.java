@@ -0,0 +1,45 @@
+package com.drybro.userinfo.config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Hands out connections to the shard bound by {@link ShardContext}, or to the first shard when none
+ * is bound. The shard is only bound once the caller knows which user it is working on, so this has
+ * to sit behind a {@link org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy}.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+	private final List<HikariDataSource> shards;
+
+	public ShardRoutingDataSource( final List<HikariDataSource> shards ) {
+		this.shards = List.copyOf( shards );
+		final Map<Object, Object> targetDataSources = new HashMap<>();
+		for ( int shard = 0; shard < shards.size(); shard++ ) {
+			targetDataSources.put( shard, shards.get( shard ) );
+		}
+		setTargetDataSources( targetDataSources );
+		setDefaultTargetDataSource( shards.get( 0 ) );
+		afterPropertiesSet();
+	}
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+		return ShardContext.currentShard();
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	@Override
+	public void close() {
+		shards.forEach( HikariDataSource::close );
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.drybro.userinfo.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.relational.SchemaManager;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.drybro.userinfo.repository.UserIdGenerator;
+import com.zaxxer.hikari.HikariDataSource;
+
+import jakarta.persistence.EntityManagerFactory;
+
+/**
+ * Replaces Spring Boot's single datasource with one pool per shard when
+ * {@code user-info.sharding.enabled} is set. JPA and everything else see one routing datasource,
+ * {@link com.drybro.userinfo.service.UserShards} binds the shard each piece of work runs on.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(prefix = "user-info.sharding", name = "enabled", havingValue = "true")
+public class ShardingDataSourceConfig {
+
+	@Bean
+	public ShardRoutingDataSource shardRoutingDataSource( final UserInfoProperties userInfoProperties ) {
+		final UserInfoProperties.Sharding shardingProperties = userInfoProperties.getSharding();
+		if ( shardingProperties.getShards().isEmpty() ) {
+			throw new IllegalStateException( "user-info.sharding.shards must list at least one datasource" );
+		}
+		final List<HikariDataSource> shards = new ArrayList<>();
+		for ( int shard = 0; shard < shardingProperties.getShards().size(); shard++ ) {
+			final UserInfoProperties.Sharding.Shard shardProperties = shardingProperties.getShards().get( shard );
+			final HikariDataSource shardDataSource = DataSourceBuilder.create()
+					.type( HikariDataSource.class )
+					.url( shardProperties.getUrl() )
+					.username( shardProperties.getUsername() )
+					.password( shardProperties.getPassword() )
+					.build();
+			shardDataSource.setPoolName( "shard-" + shard );
+			shardDataSource.setMaximumPoolSize( shardingProperties.getMaximumPoolSize() );
+			shards.add( shardDataSource );
+		}
+		return new ShardRoutingDataSource( shards );
+	}
+
+	@Bean
+	@Primary
+	public DataSource dataSource( final ShardRoutingDataSource shardRoutingDataSource ) {
+		return new LazyConnectionDataSourceProxy( shardRoutingDataSource );
+	}
+
+	/**
+	 * Sharded users are saved with the ids allocated for them, see
+	 * {@link com.drybro.userinfo.service.UserShardDirectory}.
+	 */
+	@Bean
+	public HibernatePropertiesCustomizer assignedUserIdsCustomizer() {
+		return hibernateProperties -> hibernateProperties.put( UserIdGenerator.ASSIGNED_IDS_SETTING, true );
+	}
+
+	/**
+	 * Hibernate's own schema generation only reaches the first shard, so set
+	 * {@code spring.jpa.hibernate.ddl-auto} to none alongside this.
+	 */
+	@Bean
+	@ConditionalOnProperty(prefix = "user-info.sharding", name = "initialize-schema", havingValue = "true")
+	public InitializingBean shardSchemaInitializer( final EntityManagerFactory entityManagerFactory,
+			final ShardRoutingDataSource shardRoutingDataSource ) {
+		return () -> {
+			final SchemaManager schemaManager = entityManagerFactory.unwrap( SessionFactory.class ).getSchemaManager();
+			for ( int shard = 0; shard < shardRoutingDataSource.getShardCount(); shard++ ) {
+				ShardContext.callOnShard( shard, () -> {
+					schemaManager.exportMappedObjects( true );
+					return null;
+				} );
+			}
+		};
+	}
+
+}
@@ -0,0 +1,315 @@
+package com.drybro.userinfo.config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import lombok.Data;
+
+@Data
+@ConfigurationProperties(prefix = "user-info")
+public class UserInfoProperties {
+
+	private final Bulk bulk = new Bulk();
+
+	private final Cache cache = new Cache();
+
+	private final PasswordGenerator passwordGenerator = new PasswordGenerator();
+
+	private final EmailFilter emailFilter = new EmailFilter();
+
+	private final Search search = new Search();
+
+	private final PreferencesWriteBehind preferencesWriteBehind = new PreferencesWriteBehind();
+
+	private final Stats stats = new Stats();
+
+	private final Import csvImport = new Import();
+
+	private final ChangeLog changeLog = new ChangeLog();
+
+	private final Replica replica = new Replica();
+
+	private final Sharding sharding = new Sharding();
+
+	private final Directory directory = new Directory();
+
+	@Data
+	public static class Bulk {
+
+		/**
+		 * Number of users written per transaction. Keep this a multiple of
+		 * {@code spring.jpa.properties.hibernate.jdbc.batch_size}.
+		 */
+		private int chunkSize = 500;
+
+	}
+
+	@Data
+	public static class Cache {
+
+		private boolean enabled = true;
+
+		private long maximumSize = 100_000;
+
+		private Duration expireAfterWrite = Duration.ofMinutes( 10 );
+
+	}
+
+	@Data
+	public static class PasswordGenerator {
+
+		private int length = 20;
+
+		private final Buffer buffer = new Buffer();
+
+		@Data
+		public static class Buffer {
+
+			/**
+			 * Keeps a queue of passwords generated ahead of time by a background thread.
+			 */
+			private boolean enabled = false;
+
+			private int capacity = 10_000;
+
+		}
+
+	}
+
+	@Data
+	public static class EmailFilter {
+
+		/**
+		 * Answers lookups for emails that were never stored from an in-memory Bloom filter.
+		 */
+		private boolean enabled = true;
+
+		/**
+		 * Lower bound on the number of emails the filter is sized for, it is sized for at least
+		 * twice the current table when rebuilt.
+		 */
+		private long expectedInsertions = 1_000_000;
+
+		private double falsePositiveProbability = 0.01;
+
+		/**
+		 * How long after startup the filter is first built. Lookups are answered by the database until
+		 * then, so it goes ahead of the other startup builds.
+		 */
+		private Duration startupDelay = Duration.ZERO;
+
+		/**
+		 * How often the filter is rebuilt from the database to drop deleted and changed emails.
+		 */
+		private Duration rebuildInterval = Duration.ofHours( 6 );
+
+	}
+
+	@Data
+	public static class Search {
+
+		/**
+		 * Keeps an in-memory prefix index of names and emails to serve user search.
+		 */
+		private boolean enabled = true;
+
+		/**
+		 * How long after startup the index is built, after the email filter has had the table to itself.
+		 */
+		private Duration startupDelay = Duration.ofSeconds( 10 );
+
+	}
+
+	@Data
+	public static class PreferencesWriteBehind {
+
+		/**
+		 * Acknowledges single user email preference changes before they are written, coalescing
+		 * repeated changes to the same user. Conditional (If-Match) changes are always written directly.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * Users written per UPDATE, reaching this many pending changes also triggers a flush.
+		 */
+		private int batchSize = 500;
+
+		private Duration flushInterval = Duration.ofMillis( 200 );
+
+		/**
+		 * Pending changes at which writers flush themselves rather than queueing further.
+		 */
+		private int maxPending = 100_000;
+
+	}
+
+	@Data
+	public static class Stats {
+
+		/**
+		 * Keeps user counts in memory, adjusted on every write, to serve the stats endpoint.
+		 */
+		private boolean enabled = true;
+
+		/**
+		 * How often the counts are recomputed from the table to correct any drift.
+		 */
+		private Duration reconcileInterval = Duration.ofMinutes( 15 );
+
+		/**
+		 * How long after startup the counts are first loaded, the stats endpoint is unavailable until
+		 * then.
+		 */
+		private Duration startupDelay = Duration.ofSeconds( 5 );
+
+	}
+
+	@Data
+	public static class Import {
+
+		/**
+		 * Threads validating batches of imported rows while earlier batches are written. Batches are
+		 * the size of {@code user-info.bulk.chunk-size}.
+		 */
+		private int validationThreads = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * Batches read ahead of the one being written, reading pauses once this many are waiting.
+		 */
+		private int maxBatchesInFlight = 4;
+
+		/**
+		 * Rejected rows listed in the progress of an import, any further rejections are only counted.
+		 */
+		private int maxReportedRejections = 1_000;
+
+		private Duration jobRetention = Duration.ofHours( 24 );
+
+	}
+
+	@Data
+	public static class ChangeLog {
+
+		/**
+		 * Appends every committed change to a user to a local log served by the user-changes endpoint.
+		 * Only enable it against a database that outlives the log, an in-memory one restarts empty and
+		 * hands out the ids of logged users again.
+		 */
+		private boolean enabled = false;
+
+		private String directory = "data/change-log";
+
+		/**
+		 * Size of each memory-mapped segment file, a new one is started when the current one is full.
+		 */
+		private DataSize segmentSize = DataSize.ofMegabytes( 64 );
+
+		/**
+		 * How often full segments are compacted down to the latest change of each user.
+		 */
+		private Duration compactionInterval = Duration.ofHours( 1 );
+
+		/**
+		 * How long the deletion of a user stays in the log, consumers further behind than this may
+		 * miss it.
+		 */
+		private Duration tombstoneRetention = Duration.ofDays( 7 );
+
+	}
+
+	@Data
+	public static class Replica {
+
+		/**
+		 * Sends user lookups and listings to the datasource under {@code user-info.replica.datasource},
+		 * everything else stays on {@code spring.datasource}.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * How long lookups of a user stay on the primary after it is written, should be longer than the
+		 * replica usually lags behind.
+		 */
+		private Duration readYourWritesWindow = Duration.ofSeconds( 5 );
+
+		/**
+		 * How long the replica is left alone after a connection to it fails.
+		 */
+		private Duration retryInterval = Duration.ofSeconds( 30 );
+
+	}
+
+	@Data
+	public static class Sharding {
+
+		/**
+		 * Partitions users across the databases listed under shards by a hash of their id, in place of
+		 * {@code spring.datasource}. Cannot be combined with {@code user-info.replica}.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The first shard also holds the email index and the sequence ids are allocated from, so shards
+		 * can only be added at the end, and only to an empty set of users.
+		 */
+		private List<Shard> shards = new ArrayList<>();
+
+		private int maximumPoolSize = 10;
+
+		/**
+		 * Creates the tables on every shard at startup, for in-memory databases.
+		 */
+		private boolean initializeSchema = false;
+
+		/**
+		 * How long an email index entry is left alone for the write that created it to finish. Older
+		 * entries whose user does not hold the email are orphans, which are reclaimed when another user
+		 * claims the email.
+		 */
+		private Duration orphanGracePeriod = Duration.ofMinutes( 1 );
+
+		/**
+		 * How often orphaned email index entries are looked for and removed.
+		 */
+		private Duration orphanSweepInterval = Duration.ofHours( 1 );
+
+		@Data
+		public static class Shard {
+
+			private String url;
+
+			private String username;
+
+			private String password;
+
+		}
+
+	}
+
+	@Data
+	public static class Directory {
+
+		/**
+		 * Keeps every user in compact in-memory columns, adjusted on every write, to serve the user
+		 * directory listing and counts without reading the table.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * How often the directory is reloaded from the database, correcting any drift and retrying a
+		 * load that failed.
+		 */
+		private Duration reloadInterval = Duration.ofHours( 6 );
+
+		/**
+		 * How long after startup the directory is first loaded, once the search index has been built.
+		 */
+		private Duration startupDelay = Duration.ofSeconds( 20 );
+
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.drybro.userinfo.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import com.drybro.userinfo.exception.VersionConflictException;
+
+/**
+ * Entity tags for user resources, derived from the optimistic locking version of the user.
+ */
+final class UserETag {
+
+	private static final String ANY = "*";
+
+	private static final String WEAK_PREFIX = "W/";
+
+	private UserETag() {
+	}
+
+	static String of( final Long version ) {
+		return "\"" + version + "\"";
+	}
+
+	/**
+	 * @return whether an If-None-Match header matches the current version
+	 */
+	static boolean matches( final String ifNoneMatch, final Long version ) {
+		if ( ifNoneMatch == null || version == null ) {
+			return false;
+		}
+		final String eTag = of( version );
+		for ( final String candidate : ifNoneMatch.split( "," ) ) {
+			final String trimmed = candidate.trim();
+			if ( ANY.equals( trimmed ) || eTag.equals( stripWeakPrefix( trimmed ) ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * If-Match uses the strong comparison, so weak tags never match. When the header lists several
+	 * tags the current version is looked up to pick the one the write is made conditional on.
+	 *
+	 * @return the version an If-Match header requires, or null when the write is unconditional
+	 */
+	static Long expectedVersion( final String ifMatch, final Supplier<Long> currentVersion ) {
+		if ( ifMatch == null || ANY.equals( ifMatch.trim() ) ) {
+			return null;
+		}
+		final List<Long> versions = new ArrayList<>();
+		for ( final String candidate : ifMatch.split( "," ) ) {
+			final Long version = strongVersion( candidate.trim() );
+			if ( version != null ) {
+				versions.add( version );
+			}
+		}
+		if ( versions.size() == 1 ) {
+			return versions.get( 0 );
+		}
+		if ( versions.size() > 1 ) {
+			final Long version = currentVersion.get();
+			if ( versions.contains( version ) ) {
+				return version;
+			}
+		}
+		throw new VersionConflictException( "If-Match " + ifMatch + " does not match the current version" );
+	}
+
+	// Null for weak tags and tags we never issued, neither of which can match
+	private static Long strongVersion( final String eTag ) {
+		if ( eTag.length() > 2 && eTag.startsWith( "\"" ) && eTag.endsWith( "\"" ) ) {
+			try {
+				return Long.valueOf( eTag.substring( 1, eTag.length() - 1 ) );
+			} catch ( final NumberFormatException nfe ) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static String stripWeakPrefix( final String eTag ) {
+		return eTag.startsWith( WEAK_PREFIX ) ? eTag.substring( WEAK_PREFIX.length() ) : eTag;
+	}
+
+}
@@ -1,19 +1,27 @@
 package com.drybro.userinfo.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
@@ -22,14 +30,22 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.servers.Server;
 
+import com.drybro.userinfo.exception.DuplicateEmailException;
+import com.drybro.userinfo.exception.VersionConflictException;
+import com.drybro.userinfo.model.EmailPreferencesUpdate;
 import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
 import com.drybro.userinfo.model.UserInfoResponse;
 
 import jakarta.validation.ConstraintViolationException;
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.Email;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.PositiveOrZero;
+import jakarta.validation.constraints.Size;
 
 @OpenAPIDefinition(info = @Info(title = "User Info API",
 		version = "1.0",
@@ -39,10 +55,44 @@ import jakarta.validation.constraints.Positive;
 public interface UserInfoController {
 
 	String APPLICATION_JSON = "application/json";
+	String APPLICATION_NDJSON = "application/x-ndjson";
+	String APPLICATION_SMILE = "application/x-jackson-smile";
+	String APPLICATION_CBOR = "application/cbor";
+	String TEXT_CSV = "text/csv";
 	String ALL_USERS_PATH = "/get-all-users";
 
+	String ALL_USERS_PAGE_PATH = ALL_USERS_PATH + "/page";
+
+	String EXPORT_USERS_PATH = ALL_USERS_PATH + "/export";
+
+	String DEFAULT_PAGE_SIZE = "100";
+
+	String SEARCH_USERS_PATH = "/search-users";
+
+	String DEFAULT_SEARCH_PAGE_SIZE = "20";
+
+	int MAX_SEARCH_QUERY_LENGTH = 100;
+
+	String USER_STATS_PATH = "/user-stats";
+
+	String USER_DIRECTORY_PATH = "/user-directory";
+
+	String IMPORT_USERS_PATH = "/import-users";
+
+	String USER_CHANGES_PATH = "/user-changes";
+
+	String DEFAULT_CHANGES_BATCH_SIZE = "500";
+
+	long MAX_CHANGES_WAIT_MILLIS = 30_000;
+
+	int MAX_PAGE_SIZE = 1000;
+
 	String CREATE_USER_PATH = "/create-user";
 
+	String CREATE_USERS_PATH = "/create-users";
+
+	int MAX_CREATE_USERS = 10000;
+
 	String GET_USER_BY_EMAIL_PATH = "/get-user/email";
 
 	String USER_BY_ID_PATH = "/get-user/userId";
@@ -51,45 +101,162 @@ public interface UserInfoController {
 
 	String USER_EMAIL_PREFERENCES = GET_USER_BY_EMAIL_PATH + "/preferences";
 
-	@Operation(operationId = "getAllUsers", summary = "Returns a list of all users")
+	String BULK_USER_EMAIL_PREFERENCES = USER_EMAIL_PREFERENCES + "/bulk";
+
+	@Operation(operationId = "getAllUsers", summary = "Returns a list of all users",
+			description = "Reads every user, passwords included, from the database. The user directory listing "
+					+ "streams them from memory instead when passwords are not needed")
 	@ApiResponse(responseCode = "200")
-	@GetMapping(value = ALL_USERS_PATH, produces = { APPLICATION_JSON })
+	@GetMapping(value = ALL_USERS_PATH, produces = { APPLICATION_JSON, APPLICATION_SMILE, APPLICATION_CBOR })
 	ResponseEntity<UserInfoResponse> getAllUsers();
 
+	@Operation(operationId = "getAllUsersPage",
+			summary = "Returns a page of users ordered by ID, starting after the given cursor")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Page of users returned"),
+							@ApiResponse(responseCode = "400",
+									description = "The cursor or page size provided was not valid") })
+	@GetMapping(value = ALL_USERS_PAGE_PATH, produces = { APPLICATION_JSON, APPLICATION_SMILE, APPLICATION_CBOR })
+	ResponseEntity<UserInfoResponse> getAllUsersPage(
+			@RequestParam(defaultValue = "0") @PositiveOrZero Long afterId,
+			@RequestParam(defaultValue = DEFAULT_PAGE_SIZE) @Positive @Max(MAX_PAGE_SIZE) Integer pageSize );
+
+	@Operation(operationId = "searchUsers",
+			summary = "Finds users whose first name, surname or email has words starting with the query terms")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Page of matching users returned"),
+							@ApiResponse(responseCode = "400",
+									description = "The query, cursor or page size provided was not valid"),
+							@ApiResponse(responseCode = "503",
+									description = "The search index is still loading") })
+	@GetMapping(value = SEARCH_USERS_PATH, produces = { APPLICATION_JSON })
+	ResponseEntity<UserInfoResponse> searchUsers(
+			@RequestParam @NotBlank @Size(max = MAX_SEARCH_QUERY_LENGTH) String query,
+			@RequestParam(defaultValue = "0") @PositiveOrZero Long afterId,
+			@RequestParam(defaultValue = DEFAULT_SEARCH_PAGE_SIZE) @Positive @Max(MAX_PAGE_SIZE) Integer pageSize );
+
+	@Operation(operationId = "getUserStats",
+			summary = "Returns the number of users and how many of them allow email",
+			description = "Counted by the in-memory user directory when it is enabled")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "User statistics returned"),
+							@ApiResponse(responseCode = "503",
+									description = "The user statistics are still loading") })
+	@GetMapping(value = USER_STATS_PATH, produces = { APPLICATION_JSON })
+	ResponseEntity<UserInfoResponse> getUserStats();
+
+	@Operation(operationId = "listUserDirectory",
+			summary = "Streams every user, or only those with the given email preference, as a JSON array in ID "
+					+ "order from the in-memory user directory. Passwords are not included")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Users streamed"),
+							@ApiResponse(responseCode = "503",
+									description = "The user directory is not enabled or still loading") })
+	@GetMapping(value = USER_DIRECTORY_PATH, produces = { APPLICATION_JSON })
+	ResponseEntity<StreamingResponseBody> listUserDirectory( @RequestParam(required = false) Boolean allowsEmail );
+
+	@Operation(operationId = "exportAllUsers", summary = "Streams every user as newline-delimited JSON")
+	@ApiResponse(responseCode = "200")
+	@GetMapping(value = EXPORT_USERS_PATH, produces = { APPLICATION_NDJSON })
+	ResponseEntity<StreamingResponseBody> exportAllUsers();
+
 	@Operation(operationId = "createUser", summary = "Creates a users")
 	@ApiResponses(value = { @ApiResponse(responseCode = "201", description = "User created"),
 							@ApiResponse(responseCode = "400",
-									description = "The user info provided was not valid") })
+									description = "The user info provided was not valid"),
+							@ApiResponse(responseCode = "409",
+									description = "A user with the email provided already exists") })
 	@PostMapping(CREATE_USER_PATH)
 	ResponseEntity<UserInfoResponse>  createUser( @Valid @RequestBody UserInfo userInfo );
 
+	@Operation(operationId = "createUsers", summary = "Creates users in bulk")
+	@ApiResponses(value = { @ApiResponse(responseCode = "201",
+			description = "Request processed, see the per-user results for any users that were not created"),
+							@ApiResponse(responseCode = "400",
+									description = "The request provided was not valid") })
+	@PostMapping(CREATE_USERS_PATH)
+	ResponseEntity<UserInfoResponse> createUsers(
+			@RequestBody @NotEmpty @Size(max = MAX_CREATE_USERS) List<UserInfo> userInfoList );
+
+	@Operation(operationId = "getUserChanges",
+			summary = "Returns the changes to users from the given offset onwards, optionally waiting for one "
+					+ "to be made. Continue from the returned next cursor, keeping the highest version of each user")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200",
+			description = "Changes returned, none if the wait ended without any"),
+							@ApiResponse(responseCode = "400",
+									description = "The offset, batch size or wait provided was not valid"),
+							@ApiResponse(responseCode = "503",
+									description = "The change log is not enabled") })
+	@GetMapping(value = USER_CHANGES_PATH, produces = { APPLICATION_JSON })
+	DeferredResult<ResponseEntity<UserInfoResponse>> getUserChanges(
+			@RequestParam(defaultValue = "0") @PositiveOrZero Long fromOffset,
+			@RequestParam(defaultValue = DEFAULT_CHANGES_BATCH_SIZE) @Positive @Max(MAX_PAGE_SIZE) Integer maxChanges,
+			@RequestParam(defaultValue = "0") @PositiveOrZero @Max(MAX_CHANGES_WAIT_MILLIS) Long waitMillis );
+
+	@Operation(operationId = "importUsers",
+			summary = "Starts importing users from a CSV file with a header row naming the columns "
+					+ "firstName, surname, email and allowsEmail")
+	@ApiResponse(responseCode = "202", description = "Import queued, poll its job ID for progress")
+	@PostMapping(value = IMPORT_USERS_PATH, consumes = { TEXT_CSV }, produces = { APPLICATION_JSON })
+	ResponseEntity<UserInfoResponse> importUsers( InputStream csv ) throws IOException;
+
+	@Operation(operationId = "getImportProgress",
+			summary = "Returns the progress of an import, with the rows it rejected and why")
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Import progress returned"),
+							@ApiResponse(responseCode = "404",
+									description = "No import found with the job ID provided") })
+	@GetMapping(value = IMPORT_USERS_PATH, produces = { APPLICATION_JSON })
+	ResponseEntity<UserInfoResponse> getImportProgress( @RequestParam @NotBlank String jobId );
+
 	@Operation(operationId = "getUserByEmail", summary = "Gets a user by their email address")
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "User found"),
+							@ApiResponse(responseCode = "304",
+									description = "The user has not changed since the ETag provided"),
 							@ApiResponse(responseCode = "400",
 									description = "The email provided was not a valid email"),
 							@ApiResponse(responseCode = "404",
 									description = "No user found with the email provided") })
 	@GetMapping(value = GET_USER_BY_EMAIL_PATH, produces = { APPLICATION_JSON })
 	ResponseEntity<UserInfoResponse>  getUserByEmail( @RequestParam @Email(message = "Email is not valid",
-			regexp = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$") @NotEmpty String email );
+			regexp = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$") @NotEmpty String email,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch );
 
 	@Operation(operationId = "getUserById", summary = "Gets a user by their id")
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "User found"),
+							@ApiResponse(responseCode = "304",
+									description = "The user has not changed since the ETag provided"),
 							@ApiResponse(responseCode = "400",
 									description = "The user ID provided was not a valid ID"),
 							@ApiResponse(responseCode = "404",
 									description = "No user found with the ID provided") })
 	@GetMapping(value = USER_BY_ID_PATH, produces = { APPLICATION_JSON })
-	ResponseEntity<UserInfoResponse>  getUserById( @RequestParam Long userId );
+	ResponseEntity<UserInfoResponse>  getUserById( @RequestParam Long userId,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch );
 
 	@Operation(operationId = "updateUser", summary = "Updates a users details")
 	@ApiResponses(value = { @ApiResponse(responseCode = "202", description = "User updated"),
 							@ApiResponse(responseCode = "400",
 									description = "The request provided was not valid"),
 							@ApiResponse(responseCode = "404",
-									description = "No user found with the ID provided") })
+									description = "No user found with the ID provided"),
+							@ApiResponse(responseCode = "409",
+									description = "A user with the email provided already exists"),
+							@ApiResponse(responseCode = "412",
+									description = "The user has changed since the If-Match ETag provided") })
 	@PutMapping(USER_BY_ID_PATH)
-	ResponseEntity<UserInfoResponse>  updateUser( @RequestParam Long userId, @Valid @RequestBody UserInfo userInfo );
+	ResponseEntity<UserInfoResponse>  updateUser( @RequestParam Long userId, @Valid @RequestBody UserInfo userInfo,
+			@RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch );
+
+	@Operation(operationId = "patchUser", summary = "Updates only the supplied fields of a user")
+	@ApiResponses(value = { @ApiResponse(responseCode = "202", description = "User updated"),
+							@ApiResponse(responseCode = "400",
+									description = "The request provided was not valid"),
+							@ApiResponse(responseCode = "404",
+									description = "No user found with the ID provided"),
+							@ApiResponse(responseCode = "409",
+									description = "A user with the email provided already exists"),
+							@ApiResponse(responseCode = "412",
+									description = "The user has changed since the If-Match ETag provided") })
+	@PatchMapping(USER_BY_ID_PATH)
+	ResponseEntity<UserInfoResponse>  patchUser( @RequestParam @Positive Long userId,
+			@Valid @RequestBody UserInfoPatch userInfoPatch,
+			@RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch );
 
 	@Operation(operationId = "deleteUser", summary = "Deletes a user")
 	@ApiResponses(value = { @ApiResponse(responseCode = "202", description = "User deleted"),
@@ -102,30 +269,49 @@ public interface UserInfoController {
 
 	@Operation(operationId = "getUserEmail", summary = "Gets a users email")
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Found users email"),
+							@ApiResponse(responseCode = "304",
+									description = "The user has not changed since the ETag provided"),
 							@ApiResponse(responseCode = "400",
 									description = "The user ID provided was not valid"),
 							@ApiResponse(responseCode = "404",
 									description = "No user found with the ID provided") })
 	@GetMapping(value = GET_USER_EMAIL_PATH, produces = { APPLICATION_JSON })
-	ResponseEntity<String>  getUserEmail( @RequestParam @Positive Long userId );
+	ResponseEntity<String>  getUserEmail( @RequestParam @Positive Long userId,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch );
 
 	@Operation(operationId = "getUserEmailPreferences", summary = "Gets a users email preferences")
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Found users email preferences"),
+							@ApiResponse(responseCode = "304",
+									description = "The user has not changed since the ETag provided"),
 							@ApiResponse(responseCode = "400",
 									description = "The user ID provided was not valid"),
 							@ApiResponse(responseCode = "404",
 									description = "No user found with the ID provided") })
 	@GetMapping(value = USER_EMAIL_PREFERENCES, produces = { APPLICATION_JSON })
-	ResponseEntity<Boolean>  getUserEmailPreferences( @RequestParam @Positive Long userId );
+	ResponseEntity<Boolean>  getUserEmailPreferences( @RequestParam @Positive Long userId,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch );
 
 	@Operation(operationId = "updateUserEmailPreferences", summary = "Updates a users email preferences")
 	@ApiResponses(value = { @ApiResponse(responseCode = "202", description = "Found users email preferences"),
 							@ApiResponse(responseCode = "400",
 									description = "The request provided was not valid"),
 							@ApiResponse(responseCode = "404",
-									description = "No user found with the ID provided") })
+									description = "No user found with the ID provided"),
+							@ApiResponse(responseCode = "412",
+									description = "The user has changed since the If-Match ETag provided") })
 	@PutMapping(USER_EMAIL_PREFERENCES)
-	ResponseEntity<UserInfoResponse>  updateUserEmailPreferences( @RequestParam @Positive Long userId, @RequestBody Boolean allowsEmail );
+	ResponseEntity<UserInfoResponse>  updateUserEmailPreferences( @RequestParam @Positive Long userId, @RequestBody Boolean allowsEmail,
+			@RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch );
+
+	@Operation(operationId = "updateUsersEmailPreferences",
+			summary = "Updates the email preferences of many users at once")
+	@ApiResponses(value = { @ApiResponse(responseCode = "202",
+			description = "Email preferences updated, any unknown user IDs are listed in the response"),
+							@ApiResponse(responseCode = "400",
+									description = "The request provided was not valid") })
+	@PutMapping(BULK_USER_EMAIL_PREFERENCES)
+	ResponseEntity<UserInfoResponse>  updateUsersEmailPreferences(
+			@Valid @RequestBody EmailPreferencesUpdate emailPreferencesUpdate );
 
 	@ResponseStatus(HttpStatus.BAD_REQUEST)
 	@ExceptionHandler(MethodArgumentNotValidException.class)
@@ -139,4 +325,12 @@ public interface UserInfoController {
 	@ExceptionHandler(NoSuchElementException.class)
 	ResponseEntity<UserInfoResponse> handleNotFoundExceptions(NoSuchElementException noResourceFoundException);
 
+	@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+	@ExceptionHandler(VersionConflictException.class)
+	ResponseEntity<UserInfoResponse> handleVersionConflictExceptions(VersionConflictException versionConflictException);
+
+	@ResponseStatus(HttpStatus.CONFLICT)
+	@ExceptionHandler(DuplicateEmailException.class)
+	ResponseEntity<UserInfoResponse> handleDuplicateEmailExceptions(DuplicateEmailException duplicateEmailException);
+
 }
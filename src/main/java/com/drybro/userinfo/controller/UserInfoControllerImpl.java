@@ -1,5 +1,9 @@
 package com.drybro.userinfo.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -7,13 +11,36 @@ import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import com.drybro.userinfo.exception.DuplicateEmailException;
+import com.drybro.userinfo.exception.VersionConflictException;
+import com.drybro.userinfo.logging.RateLimitedLogger;
+import com.drybro.userinfo.metrics.UserInfoMetrics;
+import com.drybro.userinfo.model.EmailPreferencesUpdate;
+import com.drybro.userinfo.model.UserChangeEvent;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserEmailPreferencesView;
+import com.drybro.userinfo.model.UserEmailView;
+import com.drybro.userinfo.model.UserImportProgress;
 import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPage;
+import com.drybro.userinfo.model.UserInfoPatch;
 import com.drybro.userinfo.model.UserInfoResponse;
+import com.drybro.userinfo.service.UserChangeLog;
+import com.drybro.userinfo.service.UserDirectory;
+import com.drybro.userinfo.service.UserImportService;
 import com.drybro.userinfo.service.UserService;
 
 import jakarta.validation.ConstraintViolationException;
@@ -26,8 +53,32 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class UserInfoControllerImpl implements UserInfoController {
 
+	// Expected client errors are logged at most this many times per second, without stack traces
+	private static final int MAX_ERROR_LOGS_PER_SECOND = 10;
+
+	private static final RateLimitedLogger errorLog = new RateLimitedLogger( log,
+			MAX_ERROR_LOGS_PER_SECOND, Duration.ofSeconds( 1 ) );
+
+	private static final UserInfoResponse SUCCESSFUL_RESPONSE = UserInfoResponse.builder()
+			.isSuccess( true )
+			.build();
+
+	private static final UserInfoResponse FAILED_RESPONSE_TEMPLATE = UserInfoResponse.builder()
+			.isSuccess( false )
+			.build();
+
 	private final UserService userService;
 
+	private final UserImportService userImportService;
+
+	private final UserChangeLog userChangeLog;
+
+	private final UserDirectory userDirectory;
+
+	private final ObjectMapper objectMapper;
+
+	private final UserInfoMetrics userInfoMetrics;
+
 	@Override
 	public ResponseEntity<UserInfoResponse> getAllUsers() {
 		final Set<UserInfo> users = userService.returnAllUsersAsSet();
@@ -38,6 +89,68 @@ public class UserInfoControllerImpl implements UserInfoController {
 		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
 	}
 
+	@Override
+	public ResponseEntity<UserInfoResponse> getAllUsersPage( final Long afterId, final Integer pageSize ) {
+		final UserInfoPage page = userService.returnUsersAfterId( afterId, pageSize );
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.userInfoList( page.getUsers() )
+				.nextCursor( page.getNextCursor() )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> searchUsers( final String query, final Long afterId,
+			final Integer pageSize ) {
+		final UserInfoPage page = userService.searchUsers( query, afterId, pageSize );
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.userInfoList( page.getUsers() )
+				.nextCursor( page.getNextCursor() )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> getUserStats() {
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.userStats( userDirectory.isEnabled() ? userDirectory.getUserStats() : userService.getUserStats() )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+	}
+
+	@Override
+	public ResponseEntity<StreamingResponseBody> listUserDirectory( final Boolean allowsEmail ) {
+		final UserDirectory.Listing listing = userDirectory.listUsers( allowsEmail );
+		final StreamingResponseBody responseBody = outputStream -> {
+			try ( JsonGenerator generator = objectMapper.createGenerator( outputStream ) ) {
+				listing.writeTo( generator );
+			}
+		};
+		return ResponseEntity.ok()
+				.contentType( MediaType.APPLICATION_JSON )
+				.body( responseBody );
+	}
+
+	@Override
+	public ResponseEntity<StreamingResponseBody> exportAllUsers() {
+		final ObjectWriter userWriter = objectMapper.writerFor( UserInfo.class );
+		final StreamingResponseBody responseBody = outputStream -> userService.exportAllUsers(
+				userInfo -> {
+					try {
+						outputStream.write( userWriter.writeValueAsBytes( userInfo ) );
+						outputStream.write( '\n' );
+					} catch ( final IOException ioe ) {
+						throw new UncheckedIOException( ioe );
+					}
+				} );
+		return ResponseEntity.ok()
+				.contentType( MediaType.parseMediaType( APPLICATION_NDJSON ) )
+				.body( responseBody );
+	}
+
 	@Override
 	public ResponseEntity<UserInfoResponse> createUser( final UserInfo userInfo ) {
 		userService.saveUserInDatabase( userInfo );
@@ -45,30 +158,116 @@ public class UserInfoControllerImpl implements UserInfoController {
 	}
 
 	@Override
-	public ResponseEntity<UserInfoResponse> getUserByEmail( final String email ) {
+	public ResponseEntity<UserInfoResponse> createUsers( final List<UserInfo> userInfoList ) {
+		final List<UserCreationResult> results = userService.saveUsersInDatabase( userInfoList );
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.creationResults( results )
+				.isSuccess( results.stream().allMatch( UserCreationResult::isSuccess ) )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.CREATED );
+	}
+
+	/**
+	 * Without changes to return and a wait requested, the request is parked without holding a thread
+	 * until a change is appended or the wait runs out.
+	 */
+	@Override
+	public DeferredResult<ResponseEntity<UserInfoResponse>> getUserChanges( final Long fromOffset,
+			final Integer maxChanges, final Long waitMillis ) {
+		final List<UserChangeEvent> changes = userChangeLog.read( fromOffset, maxChanges );
+		if ( !changes.isEmpty() || waitMillis == 0 ) {
+			final DeferredResult<ResponseEntity<UserInfoResponse>> result = new DeferredResult<>();
+			result.setResult( changesResponse( changes, fromOffset ) );
+			return result;
+		}
+		final DeferredResult<ResponseEntity<UserInfoResponse>> result = new DeferredResult<>( waitMillis,
+				() -> changesResponse( List.of(), fromOffset ) );
+		final Runnable cancelWait = userChangeLog.awaitChanges( fromOffset, () -> result.setResult(
+				changesResponse( userChangeLog.read( fromOffset, maxChanges ), fromOffset ) ) );
+		result.onCompletion( cancelWait );
+		return result;
+	}
+
+	private static ResponseEntity<UserInfoResponse> changesResponse( final List<UserChangeEvent> changes,
+			final Long fromOffset ) {
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.changes( changes )
+				.nextCursor( changes.isEmpty() ? fromOffset : changes.get( changes.size() - 1 ).getOffset() + 1 )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> importUsers( final InputStream csv ) throws IOException {
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.importProgress( userImportService.startImport( csv ) )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.ACCEPTED );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> getImportProgress( final String jobId ) {
+		final UserImportProgress importProgress = userImportService.getImportProgress( jobId )
+				.orElseThrow( () -> new ResponseStatusException( HttpStatus.NOT_FOUND,
+						"No import found with the job ID " + jobId ) );
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.importProgress( importProgress )
+				.isSuccess( true )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> getUserByEmail( final String email, final String ifNoneMatch ) {
+		// Only the version is read to answer a revalidation, the user is loaded once it has changed
+		if ( ifNoneMatch != null ) {
+			final Long version = userService.findUserVersionByEmail( email );
+			if ( UserETag.matches( ifNoneMatch, version ) ) {
+				return notModified( version );
+			}
+		}
 		final UserInfo userInfo = userService.findUserByEmail( email );
 		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
 				.userInfo( userInfo )
 				.isSuccess( true )
 				.build();
-		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+		return withETag( userInfoResponse, userInfo.getVersion() );
 	}
 
 	@Override
-	public ResponseEntity<UserInfoResponse> getUserById( final Long userId ) {
+	public ResponseEntity<UserInfoResponse> getUserById( final Long userId, final String ifNoneMatch ) {
+		if ( ifNoneMatch != null ) {
+			final Long version = userService.findUserVersionById( userId );
+			if ( UserETag.matches( ifNoneMatch, version ) ) {
+				return notModified( version );
+			}
+		}
 		final UserInfo userInfo = userService.findUserById( userId );
 		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
 				.userInfo( userInfo )
 				.isSuccess( true )
 				.build();
-		return new ResponseEntity<>( userInfoResponse, HttpStatus.OK );
+		return withETag( userInfoResponse, userInfo.getVersion() );
 	}
 
 	@Override
 	public ResponseEntity<UserInfoResponse> updateUser( final Long userId,
-			final UserInfo updatedUserInfo ) {
-		userService.updateUserInfo( userId, updatedUserInfo );
-		return new ResponseEntity<>( baseSuccessfulResponse(), HttpStatus.ACCEPTED );
+			final UserInfo updatedUserInfo, final String ifMatch ) {
+		final Long expectedVersion = UserETag.expectedVersion( ifMatch,
+				() -> userService.findVersionForConditionalWrite( userId ) );
+		userService.updateUserInfo( userId, updatedUserInfo, expectedVersion );
+		return accepted( expectedVersion );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> patchUser( final Long userId,
+			final UserInfoPatch userInfoPatch, final String ifMatch ) {
+		final Long expectedVersion = UserETag.expectedVersion( ifMatch,
+				() -> userService.findVersionForConditionalWrite( userId ) );
+		userService.patchUserInfo( userId, userInfoPatch, expectedVersion );
+		return accepted( expectedVersion );
 	}
 
 	@Override
@@ -78,22 +277,43 @@ public class UserInfoControllerImpl implements UserInfoController {
 	}
 
 	@Override
-	public ResponseEntity<String> getUserEmail( final Long userId ) {
-		final String userEmail = userService.findUserById( userId ).getEmail();
-		return new ResponseEntity<>( userEmail, HttpStatus.OK );
+	public ResponseEntity<String> getUserEmail( final Long userId, final String ifNoneMatch ) {
+		final UserEmailView userEmail = userService.findUserEmailById( userId );
+		if ( UserETag.matches( ifNoneMatch, userEmail.getVersion() ) ) {
+			return notModified( userEmail.getVersion() );
+		}
+		return withETag( userEmail.getEmail(), userEmail.getVersion() );
 	}
 
 	@Override
-	public ResponseEntity<Boolean> getUserEmailPreferences( final Long userId ) {
-		final Boolean userEmailPreferences = userService.findUserById( userId ).getAllowsEmail();
-		return new ResponseEntity<>( userEmailPreferences, HttpStatus.OK );
+	public ResponseEntity<Boolean> getUserEmailPreferences( final Long userId, final String ifNoneMatch ) {
+		final UserEmailPreferencesView userEmailPreferences = userService.findUserEmailPreferencesById(
+				userId );
+		if ( UserETag.matches( ifNoneMatch, userEmailPreferences.getVersion() ) ) {
+			return notModified( userEmailPreferences.getVersion() );
+		}
+		return withETag( userEmailPreferences.getAllowsEmail(), userEmailPreferences.getVersion() );
 	}
 
 	@Override
 	public ResponseEntity<UserInfoResponse> updateUserEmailPreferences( final Long userId,
-			final Boolean allowsEmail ) {
-		userService.updateUserInfoEmailPreferences( userId, allowsEmail );
-		return new ResponseEntity<>( baseSuccessfulResponse(), HttpStatus.ACCEPTED );
+			final Boolean allowsEmail, final String ifMatch ) {
+		final Long expectedVersion = UserETag.expectedVersion( ifMatch,
+				() -> userService.findVersionForConditionalWrite( userId ) );
+		final Long version = userService.updateUserInfoEmailPreferences( userId, allowsEmail, expectedVersion );
+		return withETag( baseSuccessfulResponse(), version, HttpStatus.ACCEPTED );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> updateUsersEmailPreferences(
+			final EmailPreferencesUpdate emailPreferencesUpdate ) {
+		final List<Long> notFoundUserIds = userService.updateUsersEmailPreferences(
+				emailPreferencesUpdate.getUserIds(), emailPreferencesUpdate.getAllowsEmail() );
+		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
+				.notFoundUserIds( notFoundUserIds )
+				.isSuccess( notFoundUserIds.isEmpty() )
+				.build();
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.ACCEPTED );
 	}
 
 	@Override
@@ -105,14 +325,14 @@ public class UserInfoControllerImpl implements UserInfoController {
 				.getAllErrors()
 				.forEach( error -> errorsList.add( error.getDefaultMessage() ) );
 
-		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
-				.isSuccess( false )
+		final UserInfoResponse userInfoResponse = FAILED_RESPONSE_TEMPLATE.toBuilder()
 				.errors( errorsList )
 				.requestDetails( methodArgumentNotValidException.getTarget() )
 				.build();
 
-		log.error( "The request {} was not valid - {}", methodArgumentNotValidException.getTarget(),
-				errorsList, methodArgumentNotValidException );
+		userInfoMetrics.recordInvalidRequestBody();
+		errorLog.warn( "The request {} was not valid - {}", methodArgumentNotValidException.getTarget(),
+				errorsList );
 
 		return new ResponseEntity<>( userInfoResponse, HttpStatus.BAD_REQUEST );
 	}
@@ -121,14 +341,13 @@ public class UserInfoControllerImpl implements UserInfoController {
 	public ResponseEntity<UserInfoResponse> handleConstraintValidationExceptions(
 			final ConstraintViolationException constraintViolationException ) {
 		final List<String> errorsList = Collections.singletonList(constraintViolationException.getMessage());
-		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
-				.isSuccess( false )
+		final UserInfoResponse userInfoResponse = FAILED_RESPONSE_TEMPLATE.toBuilder()
 				.errors( errorsList )
 				.requestDetails( constraintViolationException.getConstraintViolations() )
 				.build();
 
-		log.error( "The request was not valid - {}", constraintViolationException.getMessage()
-				, constraintViolationException );
+		userInfoMetrics.recordInvalidRequestParameter();
+		errorLog.warn( "The request was not valid - {}", errorsList );
 		return new ResponseEntity<>( userInfoResponse, HttpStatus.BAD_REQUEST );
 	}
 
@@ -137,19 +356,77 @@ public class UserInfoControllerImpl implements UserInfoController {
 			final NoSuchElementException noSuchElementException ) {
 		final List<String> errorsList = Collections.singletonList(noSuchElementException.getMessage());
 
-		final UserInfoResponse userInfoResponse = UserInfoResponse.builder()
-				.isSuccess( false )
+		final UserInfoResponse userInfoResponse = FAILED_RESPONSE_TEMPLATE.toBuilder()
 				.errors( errorsList )
 				.build();
 
-		log.error( "404 Not Found - {}", errorsList, noSuchElementException );
+		userInfoMetrics.recordNotFound();
+		errorLog.warn( "404 Not Found - {}", errorsList );
 
 		return new ResponseEntity<>( userInfoResponse, HttpStatus.NOT_FOUND );
 	}
 
+	@Override
+	public ResponseEntity<UserInfoResponse> handleVersionConflictExceptions(
+			final VersionConflictException versionConflictException ) {
+		final List<String> errorsList = Collections.singletonList( versionConflictException.getMessage() );
+
+		final UserInfoResponse userInfoResponse = FAILED_RESPONSE_TEMPLATE.toBuilder()
+				.errors( errorsList )
+				.build();
+
+		userInfoMetrics.recordPreconditionFailed();
+		errorLog.warn( "412 Precondition Failed - {}", errorsList );
+
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.PRECONDITION_FAILED );
+	}
+
+	@Override
+	public ResponseEntity<UserInfoResponse> handleDuplicateEmailExceptions(
+			final DuplicateEmailException duplicateEmailException ) {
+		final List<String> errorsList = Collections.singletonList( duplicateEmailException.getMessage() );
+
+		final UserInfoResponse userInfoResponse = FAILED_RESPONSE_TEMPLATE.toBuilder()
+				.errors( errorsList )
+				.build();
+
+		userInfoMetrics.recordDuplicateEmail();
+		errorLog.warn( "409 Conflict - {}", errorsList );
+
+		return new ResponseEntity<>( userInfoResponse, HttpStatus.CONFLICT );
+	}
+
 
 	private UserInfoResponse baseSuccessfulResponse() {
-		return UserInfoResponse.builder().isSuccess( true ).build();
+		return SUCCESSFUL_RESPONSE;
+	}
+
+	/**
+	 * A conditional write moves the user exactly one version on from the one it was checked against,
+	 * so the new ETag is known without reading the user back.
+	 */
+	private ResponseEntity<UserInfoResponse> accepted( final Long expectedVersion ) {
+		return withETag( baseSuccessfulResponse(), expectedVersion == null ? null : expectedVersion + 1,
+				HttpStatus.ACCEPTED );
+	}
+
+	private static <T> ResponseEntity<T> withETag( final T body, final Long version ) {
+		return withETag( body, version, HttpStatus.OK );
+	}
+
+	private static <T> ResponseEntity<T> withETag( final T body, final Long version,
+			final HttpStatus status ) {
+		final ResponseEntity.BodyBuilder builder = ResponseEntity.status( status );
+		if ( version != null ) {
+			builder.eTag( UserETag.of( version ) );
+		}
+		return builder.body( body );
+	}
+
+	private static <T> ResponseEntity<T> notModified( final Long version ) {
+		return ResponseEntity.status( HttpStatus.NOT_MODIFIED )
+				.eTag( UserETag.of( version ) )
+				.build();
 	}
 
 }
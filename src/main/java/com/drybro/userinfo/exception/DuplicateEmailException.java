@@ -0,0 +1,21 @@
+package com.drybro.userinfo.exception;
+
+/**
+ * Thrown when a write would give a user an email, compared ignoring case, that another user has.
+ */
+public class DuplicateEmailException extends RuntimeException {
+
+	public DuplicateEmailException( final String message ) {
+		super( message );
+	}
+
+	public static DuplicateEmailException forEmail( final String email ) {
+		return new DuplicateEmailException( "A user with the email address " + email + " already exists" );
+	}
+
+	@Override
+	public Throwable fillInStackTrace() {
+		return this;
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.drybro.userinfo.exception;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Thrown when a lookup does not match a user. Misses are an expected outcome, often driven by bot
+ * traffic, so no stack trace is captured.
+ */
+public class UserNotFoundException extends NoSuchElementException {
+
+	public UserNotFoundException( final String message ) {
+		super( message );
+	}
+
+	public static UserNotFoundException forId( final Long userId ) {
+		return new UserNotFoundException( "User with ID " + userId + "  not found" );
+	}
+
+	public static UserNotFoundException forEmail( final String email ) {
+		return new UserNotFoundException( "No user found with email address: " + email );
+	}
+
+	@Override
+	public Throwable fillInStackTrace() {
+		return this;
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.drybro.userinfo.exception;
+
+/**
+ * Thrown when a conditional write names a version of the user that is no longer current.
+ */
+public class VersionConflictException extends RuntimeException {
+
+	public VersionConflictException( final String message ) {
+		super( message );
+	}
+
+	public static VersionConflictException forId( final Long userId ) {
+		return new VersionConflictException( "User with ID " + userId
+				+ " has been modified since the version provided in If-Match" );
+	}
+
+	@Override
+	public Throwable fillInStackTrace() {
+		return this;
+	}
+
+}
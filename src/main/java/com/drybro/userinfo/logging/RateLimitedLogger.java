@@ -0,0 +1,56 @@
+package com.drybro.userinfo.logging;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Writes at most a fixed number of warnings per interval and reports how many were dropped once the
+ * next interval starts, so a flood of expected errors cannot dominate log I/O.
+ */
+public class RateLimitedLogger {
+
+	private final Logger logger;
+
+	private final long maxPerInterval;
+
+	private final long intervalNanos;
+
+	private final AtomicLong intervalStart = new AtomicLong( System.nanoTime() );
+
+	private final AtomicLong loggedInInterval = new AtomicLong();
+
+	private final AtomicLong suppressed = new AtomicLong();
+
+	public RateLimitedLogger( final Logger logger, final long maxPerInterval, final Duration interval ) {
+		this.logger = logger;
+		this.maxPerInterval = maxPerInterval;
+		this.intervalNanos = interval.toNanos();
+	}
+
+	public void warn( final String format, final Object... arguments ) {
+		if ( !logger.isWarnEnabled() ) {
+			return;
+		}
+		if ( !tryAcquire() ) {
+			suppressed.incrementAndGet();
+			return;
+		}
+		final long suppressedCount = suppressed.getAndSet( 0 );
+		if ( suppressedCount > 0 ) {
+			logger.warn( "{} similar messages were suppressed", suppressedCount );
+		}
+		logger.warn( format, arguments );
+	}
+
+	private boolean tryAcquire() {
+		final long now = System.nanoTime();
+		final long start = intervalStart.get();
+		if ( now - start >= intervalNanos && intervalStart.compareAndSet( start, now ) ) {
+			loggedInInterval.set( 0 );
+		}
+		return loggedInInterval.incrementAndGet() <= maxPerInterval;
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.drybro.userinfo.metrics;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.server.observation.DefaultServerRequestObservationConvention;
+import org.springframework.http.server.observation.ServerRequestObservationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import io.micrometer.common.KeyValue;
+import io.micrometer.common.KeyValues;
+import io.swagger.v3.oas.annotations.Operation;
+
+/**
+ * Adds the OpenAPI operationId of the handling controller method to the {@code http.server.requests}
+ * metrics, so each endpoint can be told apart without relying on URI templates.
+ */
+@Component
+public class OperationIdServerRequestObservationConvention extends DefaultServerRequestObservationConvention {
+
+	static final String OPERATION_ID = "operationId";
+
+	private static final String NONE = "none";
+
+	private final Map<Method, KeyValue> operationIdsByMethod = new ConcurrentHashMap<>();
+
+	@Override
+	public KeyValues getLowCardinalityKeyValues( final ServerRequestObservationContext context ) {
+		return super.getLowCardinalityKeyValues( context ).and( operationId( context ) );
+	}
+
+	private KeyValue operationId( final ServerRequestObservationContext context ) {
+		final Object handler = context.getCarrier()
+				.getAttribute( HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE );
+		if ( handler instanceof HandlerMethod handlerMethod ) {
+			return operationIdsByMethod.computeIfAbsent( handlerMethod.getMethod(),
+					method -> operationIdOf( handlerMethod ) );
+		}
+		return KeyValue.of( OPERATION_ID, NONE );
+	}
+
+	private static KeyValue operationIdOf( final HandlerMethod handlerMethod ) {
+		final Operation operation = handlerMethod.getMethodAnnotation( Operation.class );
+		if ( operation == null || operation.operationId().isEmpty() ) {
+			return KeyValue.of( OPERATION_ID, NONE );
+		}
+		return KeyValue.of( OPERATION_ID, operation.operationId() );
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.drybro.userinfo.metrics;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Counters for the error outcomes handled by the controller. Counters are registered once up front
+ * so recording an outcome is a single increment.
+ */
+@Component
+public class UserInfoMetrics {
+
+	public static final String ERRORS_METRIC = "user.info.errors";
+
+	private final Counter notFoundCounter;
+
+	private final Counter invalidRequestBodyCounter;
+
+	private final Counter invalidRequestParameterCounter;
+
+	private final Counter preconditionFailedCounter;
+
+	private final Counter duplicateEmailCounter;
+
+	public UserInfoMetrics( final MeterRegistry meterRegistry ) {
+		this.notFoundCounter = errorCounter( meterRegistry, "404", "not_found" );
+		this.invalidRequestBodyCounter = errorCounter( meterRegistry, "400", "invalid_body" );
+		this.invalidRequestParameterCounter = errorCounter( meterRegistry, "400", "invalid_parameter" );
+		this.preconditionFailedCounter = errorCounter( meterRegistry, "412", "version_conflict" );
+		this.duplicateEmailCounter = errorCounter( meterRegistry, "409", "duplicate_email" );
+	}
+
+	public void recordNotFound() {
+		notFoundCounter.increment();
+	}
+
+	public void recordInvalidRequestBody() {
+		invalidRequestBodyCounter.increment();
+	}
+
+	public void recordInvalidRequestParameter() {
+		invalidRequestParameterCounter.increment();
+	}
+
+	public void recordPreconditionFailed() {
+		preconditionFailedCounter.increment();
+	}
+
+	public void recordDuplicateEmail() {
+		duplicateEmailCounter.increment();
+	}
+
+	private static Counter errorCounter( final MeterRegistry meterRegistry, final String status,
+			final String reason ) {
+		return Counter.builder( ERRORS_METRIC )
+				.description( "Requests rejected by the user info exception handlers" )
+				.tag( "status", status )
+				.tag( "reason", reason )
+				.register( meterRegistry );
+	}
+
+}
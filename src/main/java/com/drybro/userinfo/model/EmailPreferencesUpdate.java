@@ -0,0 +1,32 @@
+package com.drybro.userinfo.model;
+
+import java.util.List;
+
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Sets the same email preference for many users at once.
+ */
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EmailPreferencesUpdate {
+
+	public static final int MAX_USER_IDS = 100_000;
+
+	@NotEmpty(message = "At least one user ID must be provided")
+	@Size(max = MAX_USER_IDS, message = "Too many user IDs provided")
+	private List<@NotNull @Positive Long> userIds;
+
+	@NotNull(message = "Allows email must be provided")
+	private Boolean allowsEmail;
+
+}
@@ -0,0 +1,62 @@
+package com.drybro.userinfo.model;
+
+import java.time.Instant;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One entry of the user change feed. Created and updated events carry every field of the user as
+ * it was at the event's version, passwords are never included.
+ * <p>
+ * Concurrent writes to a user may be logged in a different order than they committed, so a
+ * consumer keeps, for each user, the event with the highest version rather than the last one read.
+ */
+@Builder(toBuilder = true)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserChangeEvent {
+
+	public enum Type {
+		CREATED, UPDATED, DELETED
+	}
+
+	private long offset;
+
+	private Type type;
+
+	private Long userId;
+
+	/**
+	 * The user's version once the change was written, for deletions the version it was deleted at.
+	 */
+	private long version;
+
+	private Instant timestamp;
+
+	private String firstName;
+
+	private String surname;
+
+	private String email;
+
+	private Boolean allowsEmail;
+
+	/**
+	 * Whether this event holds a later state of the same user than the other, whichever of them was
+	 * logged first: it is at a higher version, or deletes the user at the same version.
+	 */
+	public boolean supersedes( final UserChangeEvent other ) {
+		if ( version != other.getVersion() ) {
+			return version > other.getVersion();
+		}
+		return type == Type.DELETED && other.getType() != Type.DELETED;
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.drybro.userinfo.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserCreationResult {
+
+	int index;
+	boolean isSuccess;
+	Long id;
+	List<String> errors;
+
+}
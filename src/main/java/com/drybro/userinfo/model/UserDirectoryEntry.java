@@ -0,0 +1,22 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * The columns of a user kept by the user directory, selected without loading the entity.
+ */
+@Value
+public class UserDirectoryEntry {
+
+	Long id;
+	String firstName;
+	String surname;
+	String email;
+	Boolean allowsEmail;
+
+	public static UserDirectoryEntry fromUserInfo( final UserInfo userInfo ) {
+		return new UserDirectoryEntry( userInfo.getId(), userInfo.getFirstName(), userInfo.getSurname(),
+				userInfo.getEmail(), userInfo.getAllowsEmail() );
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.drybro.userinfo.model;
+
+import java.time.Instant;
+
+import org.springframework.data.domain.Persistable;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Which user, and so which shard, holds a normalized email when users are sharded. Kept on the
+ * first shard, where its primary key also keeps emails unique across all of them.
+ */
+@Entity
+@Table(name = "user_email_index", indexes = @Index(name = "user_email_index_user_id", columnList = "user_id"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserEmailIndexEntry implements Persistable<String> {
+
+	@Id
+	@Column(name = "normalized_email")
+	private String normalizedEmail;
+
+	@Column(name = "user_id", nullable = false)
+	private Long userId;
+
+	// When the entry was last written for a write of its user, younger entries may belong to a write in flight
+	@Column(name = "indexed_at", nullable = false)
+	private Instant indexedAt;
+
+	@Override
+	public String getId() {
+		return normalizedEmail;
+	}
+
+	// Always inserted, so a clash on the email fails rather than being merged over the existing entry
+	@Override
+	public boolean isNew() {
+		return true;
+	}
+
+}
@@ -0,0 +1,14 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * A user's email preferences with the version they were read at, selected without loading the entity.
+ */
+@Value
+public class UserEmailPreferencesView {
+
+	Boolean allowsEmail;
+	Long version;
+
+}
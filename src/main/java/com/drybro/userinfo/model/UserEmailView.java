@@ -0,0 +1,14 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * A user's email with the version it was read at, selected without loading the entity.
+ */
+@Value
+public class UserEmailView {
+
+	String email;
+	Long version;
+
+}
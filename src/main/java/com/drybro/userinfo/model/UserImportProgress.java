@@ -0,0 +1,33 @@
+package com.drybro.userinfo.model;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserImportProgress {
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED
+	}
+
+	String jobId;
+	Status status;
+	long rowsRead;
+	long usersImported;
+	long rowsRejected;
+	/**
+	 * The first rejected rows, up to the configured limit, {@link #rowsRejected} counts them all.
+	 */
+	List<UserImportRejection> rejections;
+	Instant startedAt;
+	Instant finishedAt;
+	String error;
+
+}
@@ -0,0 +1,16 @@
+package com.drybro.userinfo.model;
+
+import java.util.List;
+
+import lombok.Value;
+
+@Value
+public class UserImportRejection {
+
+	/**
+	 * Position of the row in the file, counting from 1 after the header row.
+	 */
+	long row;
+	List<String> errors;
+
+}
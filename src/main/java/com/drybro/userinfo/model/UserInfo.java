@@ -1,5 +1,13 @@
 package com.drybro.userinfo.model;
 
+import java.util.Locale;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+
+import com.drybro.userinfo.repository.UserIdGenerator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
 import jakarta.persistence.Column;
@@ -7,6 +15,9 @@ import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import jakarta.persistence.Version;
 
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
@@ -17,15 +28,32 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-@Builder
+@Builder(toBuilder = true)
 @Entity
+@Table(name = "user_info", uniqueConstraints = {
+		@UniqueConstraint(name = UserInfo.EMAIL_CONSTRAINT, columnNames = "email"),
+		@UniqueConstraint(name = UserInfo.NORMALIZED_EMAIL_CONSTRAINT, columnNames = "normalized_email") })
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class UserInfo {
 
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	public static final String ID_SEQUENCE = "user_info_seq";
+
+	// Named so a violation of either can be told apart from other integrity violations
+	public static final String EMAIL_CONSTRAINT = "user_info_email_key";
+
+	public static final String NORMALIZED_EMAIL_CONSTRAINT = "user_info_normalized_email_key";
+
+	public static final int ID_ALLOCATION_SIZE = 50;
+
+	// A pooled sequence lets Hibernate allocate ids up front and batch INSERTs, which IDENTITY prevents.
+	// Ids already assigned, as they are when sharded, are kept.
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = ID_SEQUENCE)
+	@GenericGenerator(name = ID_SEQUENCE, type = UserIdGenerator.class, parameters = {
+			@Parameter(name = SequenceStyleGenerator.SEQUENCE_PARAM, value = ID_SEQUENCE),
+			@Parameter(name = SequenceStyleGenerator.INCREMENT_PARAM, value = "" + ID_ALLOCATION_SIZE) })
 	@Id
 	@Positive(message = "ID must be a positive value")
 	@Column(name = "id")
@@ -40,10 +68,15 @@ public class UserInfo {
 	private String surname;
 
 	@NotBlank(message = "Email must be provided")
-	@Column(name = "email", unique = true)
+	@Column(name = "email")
 	@Pattern( regexp = "^[\\w-\\.]+@([\\w-]+\\.)+[\\w-]{2,4}$", message = "Not a valid email")
 	private String email;
 
+	// Trimmed and lower cased copy of the email, uniquely indexed so lookups ignore case in one probe
+	@JsonIgnore
+	@Column(name = "normalized_email")
+	private String normalizedEmail;
+
 	@Column(name = "password")
 	private String password;
 
@@ -51,4 +84,19 @@ public class UserInfo {
 	@Column(name = "allows_email")
 	private Boolean allowsEmail;
 
+	// Bumped on every write, also by the bulk UPDATE statements, and used as the ETag of the user
+	@Version
+	@JsonIgnore
+	@Column(name = "version")
+	private Long version;
+
+	public UserInfo( final Long id, final String firstName, final String surname, final String email,
+			final String password, final Boolean allowsEmail ) {
+		this( id, firstName, surname, email, normalizeEmail( email ), password, allowsEmail, null );
+	}
+
+	public static String normalizeEmail( final String email ) {
+		return email == null ? null : email.trim().toLowerCase( Locale.ROOT );
+	}
+
 }
@@ -0,0 +1,13 @@
+package com.drybro.userinfo.model;
+
+import java.util.List;
+
+import lombok.Value;
+
+@Value
+public class UserInfoPage {
+
+	List<UserInfo> users;
+	Long nextCursor;
+
+}
@@ -0,0 +1,69 @@
+package com.drybro.userinfo.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import jakarta.validation.constraints.AssertFalse;
+import jakarta.validation.constraints.Pattern;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Partial update of a user. Only the non-null fields are written.
+ */
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UserInfoPatch {
+
+	private static final String NOT_BLANK = "(?s).*\\S.*";
+
+	@Pattern(regexp = NOT_BLANK, message = "First Name must not be blank")
+	private String firstName;
+
+	@Pattern(regexp = NOT_BLANK, message = "Surname must not be blank")
+	private String surname;
+
+	@Pattern( regexp = "^[\\w-\\.]+@([\\w-]+\\.)+[\\w-]{2,4}$", message = "Not a valid email")
+	private String email;
+
+	@Pattern(regexp = NOT_BLANK, message = "Password must not be blank")
+	private String password;
+
+	private Boolean allowsEmail;
+
+	@JsonIgnore
+	@AssertFalse(message = "At least one field must be provided")
+	public boolean isEmpty() {
+		return firstName == null && surname == null && email == null && password == null
+				&& allowsEmail == null;
+	}
+
+	@JsonIgnore
+	public boolean isOnlyAllowsEmail() {
+		return allowsEmail != null && firstName == null && surname == null && email == null
+				&& password == null;
+	}
+
+	/**
+	 * Builds a patch from a full user, skipping blank fields so they keep their stored value.
+	 */
+	public static UserInfoPatch fromUserInfo( final UserInfo userInfo ) {
+		return UserInfoPatch.builder()
+				.firstName( nonBlankOrNull( userInfo.getFirstName() ) )
+				.surname( nonBlankOrNull( userInfo.getSurname() ) )
+				.email( nonBlankOrNull( userInfo.getEmail() ) )
+				.password( nonBlankOrNull( userInfo.getPassword() ) )
+				.allowsEmail( userInfo.getAllowsEmail() )
+				.build();
+	}
+
+	private static String nonBlankOrNull( final String value ) {
+		return value == null || value.isBlank() ? null : value;
+	}
+
+}
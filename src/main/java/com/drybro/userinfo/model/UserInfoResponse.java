@@ -10,13 +10,20 @@ import lombok.Builder;
 import lombok.Value;
 
 @Value
-@Builder
+@Builder(toBuilder = true)
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class UserInfoResponse {
 
 	boolean isSuccess;
 	UserInfo userInfo;
 	Set<UserInfo> userInfoSet;
+	List<UserInfo> userInfoList;
+	Long nextCursor;
+	List<UserCreationResult> creationResults;
+	List<Long> notFoundUserIds;
+	UserStats userStats;
+	UserImportProgress importProgress;
+	List<UserChangeEvent> changes;
 	List<String> errors;
 	Object requestDetails;
 
@@ -0,0 +1,26 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+@Value
+public class UserPatchResult {
+
+	/**
+	 * The user as it is after the write, or as it was found when nothing was written. Null when no
+	 * user has the id.
+	 */
+	UserInfo userInfo;
+	/**
+	 * The normalized email the user had before the write, null when no user has the id.
+	 */
+	String previousNormalizedEmail;
+	/**
+	 * False when the user is at another version than expected, or the patch would change nothing.
+	 */
+	boolean written;
+	/**
+	 * True when the patch moved the user to a different email preference, not just rewrote the same one.
+	 */
+	boolean allowsEmailChanged;
+
+}
@@ -0,0 +1,20 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * How many users there are, split by their email preference.
+ */
+@Value
+public class UserStats {
+
+	Long totalUsers;
+	Long allowsEmail;
+	Long disallowsEmail;
+
+	public UserStats plus( final UserStats other ) {
+		return new UserStats( totalUsers + other.totalUsers, allowsEmail + other.allowsEmail,
+				disallowsEmail + other.disallowsEmail );
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * The searchable columns of a user, selected without loading the entity.
+ */
+@Value
+public class UserSummary {
+
+	Long id;
+	String firstName;
+	String surname;
+	String email;
+
+	public UserInfo toUserInfo() {
+		return UserInfo.builder().id( id ).firstName( firstName ).surname( surname ).email( email ).build();
+	}
+
+}
@@ -0,0 +1,14 @@
+package com.drybro.userinfo.model;
+
+import lombok.Value;
+
+/**
+ * A user's id with the version it was read at, selected without loading the entity.
+ */
+@Value
+public class UserVersionView {
+
+	Long id;
+	Long version;
+
+}
@@ -0,0 +1,73 @@
+package com.drybro.userinfo.repository;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.drybro.userinfo.model.UserEmailIndexEntry;
+
+@Repository
+public interface UserEmailIndexRepository extends CrudRepository<UserEmailIndexEntry, String> {
+
+	@Query("select e.userId from UserEmailIndexEntry e where e.normalizedEmail = :normalizedEmail")
+	Optional<Long> findUserIdByNormalizedEmail(@Param("normalizedEmail") String normalizedEmail);
+
+	@Query("select e.normalizedEmail from UserEmailIndexEntry e where e.normalizedEmail in :normalizedEmails")
+	Set<String> findNormalizedEmailsIn(@Param("normalizedEmails") Collection<String> normalizedEmails);
+
+	@Query("select e from UserEmailIndexEntry e where e.normalizedEmail > :afterEmail "
+			+ "and e.indexedAt < :indexedBefore order by e.normalizedEmail")
+	List<UserEmailIndexEntry> findIndexedBefore(@Param("afterEmail") String afterEmail,
+			@Param("indexedBefore") Instant indexedBefore, Pageable pageable);
+
+	/**
+	 * Marks an entry of the user as written again, so it is not taken for an orphan while the user is.
+	 */
+	@Transactional
+	@Modifying
+	@Query("update UserEmailIndexEntry e set e.indexedAt = :indexedAt "
+			+ "where e.normalizedEmail = :normalizedEmail and e.userId = :userId")
+	int touch(@Param("normalizedEmail") String normalizedEmail, @Param("userId") Long userId,
+			@Param("indexedAt") Instant indexedAt);
+
+	/**
+	 * Only removes the entry while it still belongs to the user.
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from UserEmailIndexEntry e where e.normalizedEmail = :normalizedEmail and e.userId = :userId")
+	int deleteByNormalizedEmailAndUserId(@Param("normalizedEmail") String normalizedEmail,
+			@Param("userId") Long userId);
+
+	/**
+	 * Only removes the entry while it is still the one that was read, not written again since.
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from UserEmailIndexEntry e where e.normalizedEmail = :normalizedEmail and e.userId = :userId "
+			+ "and e.indexedAt = :indexedAt")
+	int deleteUnchanged(@Param("normalizedEmail") String normalizedEmail, @Param("userId") Long userId,
+			@Param("indexedAt") Instant indexedAt);
+
+	/**
+	 * Removes the user's other entries written before the given time, those written since may belong
+	 * to a write of the user still in flight.
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from UserEmailIndexEntry e where e.userId = :userId and e.normalizedEmail <> :normalizedEmail "
+			+ "and e.indexedAt < :indexedBefore")
+	int deleteOtherEmailsOfUser(@Param("userId") Long userId, @Param("normalizedEmail") String normalizedEmail,
+			@Param("indexedBefore") Instant indexedBefore);
+
+}
@@ -0,0 +1,39 @@
+package com.drybro.userinfo.repository;
+
+import java.util.Properties;
+
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import com.drybro.userinfo.model.UserInfo;
+
+/**
+ * The user id sequence, except that with {@link #ASSIGNED_IDS_SETTING} on a user given an id before
+ * it is saved keeps it. Sharded users get theirs from one allocator shared by every shard, as each
+ * shard's own sequence would hand out the same ids as the others. Otherwise any id a client sent is
+ * replaced, as it always has been.
+ */
+public class UserIdGenerator extends SequenceStyleGenerator {
+
+	public static final String ASSIGNED_IDS_SETTING = "user_info.assigned_ids";
+
+	private boolean assignedIds;
+
+	@Override
+	public void configure( final Type type, final Properties parameters, final ServiceRegistry serviceRegistry ) {
+		super.configure( type, parameters, serviceRegistry );
+		assignedIds = ConfigurationHelper.getBoolean( ASSIGNED_IDS_SETTING,
+				serviceRegistry.getService( ConfigurationService.class ).getSettings(), false );
+	}
+
+	@Override
+	public Object generate( final SharedSessionContractImplementor session, final Object object ) {
+		final Long assignedId = ( (UserInfo) object ).getId();
+		return assignedIds && assignedId != null ? assignedId : super.generate( session, object );
+	}
+
+}
@@ -1,15 +1,136 @@
 package com.drybro.userinfo.repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.drybro.userinfo.model.UserDirectoryEntry;
+import com.drybro.userinfo.model.UserEmailPreferencesView;
+import com.drybro.userinfo.model.UserEmailView;
 import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.model.UserSummary;
+import com.drybro.userinfo.model.UserVersionView;
+
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
 
 @Repository
-public interface UserRepository extends CrudRepository<UserInfo, Long> {
+public interface UserRepository extends CrudRepository<UserInfo, Long>, UserRepositoryCustom {
+
+	Optional<UserInfo> findUserInfoByNormalizedEmail(String normalizedEmail);
+
+	List<UserInfo> findByIdGreaterThanOrderByIdAsc(Long afterId, Pageable pageable);
+
+	@Query("select new com.drybro.userinfo.model.UserEmailView(u.email, u.version) from UserInfo u where u.id = :id")
+	Optional<UserEmailView> findEmailViewById(@Param("id") Long id);
+
+	@Query("select new com.drybro.userinfo.model.UserEmailPreferencesView(u.allowsEmail, u.version) "
+			+ "from UserInfo u where u.id = :id")
+	Optional<UserEmailPreferencesView> findEmailPreferencesViewById(@Param("id") Long id);
+
+	@Query("select u.version from UserInfo u where u.id = :id")
+	Optional<Long> findVersionById(@Param("id") Long id);
+
+	@Query("select new com.drybro.userinfo.model.UserSummary(u.id, u.firstName, u.surname, u.email) "
+			+ "from UserInfo u where u.id in :ids")
+	List<UserSummary> findSummariesByIdIn(@Param("ids") Collection<Long> ids);
+
+	/**
+	 * Holds the user's row lock until the transaction ends, so no other write changes the user first.
+	 */
+	@Lock(LockModeType.PESSIMISTIC_WRITE)
+	@Query("select u from UserInfo u where u.id = :id")
+	Optional<UserInfo> findAndLockById(@Param("id") Long id);
+
+	/**
+	 * @return 1 if the user was deleted, 0 if it no longer existed
+	 */
+	@Transactional
+	@Modifying
+	@Query("delete from UserInfo u where u.id = :id")
+	int deleteUserById(@Param("id") Long id);
+
+	@Query("select new com.drybro.userinfo.model.UserVersionView(u.id, u.version) "
+			+ "from UserInfo u where u.normalizedEmail = :normalizedEmail")
+	Optional<UserVersionView> findVersionViewByNormalizedEmail(@Param("normalizedEmail") String normalizedEmail);
+
+	String ALLOWS_EMAIL_CHANGES = "(u.allowsEmail is null or u.allowsEmail <> :allowsEmail)";
+
+	/**
+	 * @return the number of users whose preference changed, users that already had it are not written
+	 */
+	@Transactional
+	@Modifying
+	@Query("update UserInfo u set u.allowsEmail = :allowsEmail, u.version = u.version + 1 "
+			+ "where u.id in :ids and " + ALLOWS_EMAIL_CHANGES)
+	int updateAllowsEmailByIdIn(@Param("ids") Collection<Long> ids, @Param("allowsEmail") Boolean allowsEmail);
+
+	@Query("select new com.drybro.userinfo.model.UserStats(count(u), "
+			+ "coalesce(sum(case when u.allowsEmail = true then 1L else 0L end), 0L), "
+			+ "coalesce(sum(case when u.allowsEmail = false then 1L else 0L end), 0L)) from UserInfo u")
+	UserStats countUsersByEmailPreference();
+
+	/**
+	 * Read after a bulk write in the same transaction, so the users come back as the write left them.
+	 */
+	@Query("select u from UserInfo u where u.id in :ids")
+	List<UserInfo> findAllByIdIn(@Param("ids") Collection<Long> ids);
+
+	@Query("select u.normalizedEmail from UserInfo u where u.normalizedEmail in :normalizedEmails")
+	Set<String> findNormalizedEmailsIn(@Param("normalizedEmails") Collection<String> normalizedEmails);
+
+	String STREAM_FETCH_SIZE = "500";
+
+	/**
+	 * Streams every user in id order using a server side cursor. Must be consumed inside a
+	 * transaction and closed once done.
+	 */
+	@QueryHints({ @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+				  @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true") })
+	@Query("select u from UserInfo u order by u.id")
+	Stream<UserInfo> streamAllOrderedById();
+
+	/**
+	 * Streams only the normalized email column, under the same constraints as
+	 * {@link #streamAllOrderedById()}.
+	 */
+	@QueryHints({ @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+				  @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true") })
+	@Query("select u.normalizedEmail from UserInfo u")
+	Stream<String> streamAllNormalizedEmails();
+
+	/**
+	 * Streams the searchable columns of every user, under the same constraints as
+	 * {@link #streamAllOrderedById()}.
+	 */
+	@QueryHints({ @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+				  @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true") })
+	@Query("select new com.drybro.userinfo.model.UserSummary(u.id, u.firstName, u.surname, u.email) "
+			+ "from UserInfo u")
+	Stream<UserSummary> streamAllSummaries();
 
-	Optional<UserInfo> findUserInfoByEmail(String email);
+	/**
+	 * Streams the columns the user directory keeps for every user in id order, under the same
+	 * constraints as {@link #streamAllOrderedById()}.
+	 */
+	@QueryHints({ @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = STREAM_FETCH_SIZE),
+				  @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true") })
+	@Query("select new com.drybro.userinfo.model.UserDirectoryEntry(u.id, u.firstName, u.surname, u.email, "
+			+ "u.allowsEmail) from UserInfo u order by u.id")
+	Stream<UserDirectoryEntry> streamAllDirectoryEntries();
 
 }
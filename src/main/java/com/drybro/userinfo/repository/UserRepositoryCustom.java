@@ -0,0 +1,18 @@
+package com.drybro.userinfo.repository;
+
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserPatchResult;
+
+public interface UserRepositoryCustom {
+
+	/**
+	 * Writes only the non-null fields of the patch in a single UPDATE statement, bumping the version.
+	 * The user's row is read under lock first, which tells whether the email preference changes and
+	 * what the version becomes. A patch that only sets the preference the user already has is not
+	 * written, its version is left as it is.
+	 *
+	 * @param expectedVersion when not null the update only applies if the user is still at this version
+	 */
+	UserPatchResult patchUserInfo(Long id, UserInfoPatch patch, Long expectedVersion);
+
+}
@@ -0,0 +1,84 @@
+package com.drybro.userinfo.repository;
+
+import org.springframework.transaction.annotation.Transactional;
+
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserPatchResult;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaUpdate;
+import jakarta.persistence.criteria.Root;
+
+public class UserRepositoryCustomImpl implements UserRepositoryCustom {
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Override
+	@Transactional
+	public UserPatchResult patchUserInfo( final Long id, final UserInfoPatch patch, final Long expectedVersion ) {
+		final UserInfo current = entityManager.find( UserInfo.class, id, LockModeType.PESSIMISTIC_WRITE );
+		if ( current == null ) {
+			return new UserPatchResult( null, null, false, false );
+		}
+		// Only read, the row is written by the UPDATE below
+		entityManager.detach( current );
+		final boolean allowsEmailChanged = patch.getAllowsEmail() != null
+				&& !patch.getAllowsEmail().equals( current.getAllowsEmail() );
+		if ( expectedVersion != null && !expectedVersion.equals( current.getVersion() )
+				|| patch.isOnlyAllowsEmail() && !allowsEmailChanged ) {
+			return new UserPatchResult( current, current.getNormalizedEmail(), false, false );
+		}
+
+		final CriteriaBuilder criteriaBuilder = entityManager.getCriteriaBuilder();
+		final CriteriaUpdate<UserInfo> update = criteriaBuilder.createCriteriaUpdate( UserInfo.class );
+		final Root<UserInfo> root = update.from( UserInfo.class );
+
+		setIfPresent( update, "firstName", patch.getFirstName() );
+		setIfPresent( update, "surname", patch.getSurname() );
+		setIfPresent( update, "email", patch.getEmail() );
+		setIfPresent( update, "normalizedEmail", UserInfo.normalizeEmail( patch.getEmail() ) );
+		setIfPresent( update, "password", patch.getPassword() );
+		setIfPresent( update, "allowsEmail", patch.getAllowsEmail() );
+		update.set( root.<Long>get( "version" ), criteriaBuilder.sum( root.<Long>get( "version" ), 1L ) );
+
+		// The row lock is held, so the user is still at the version read
+		update.where( criteriaBuilder.equal( root.get( "id" ), id ) );
+
+		entityManager.createQuery( update ).executeUpdate();
+		return new UserPatchResult( patched( current, patch ), current.getNormalizedEmail(), true,
+				allowsEmailChanged );
+	}
+
+	private UserInfo patched( final UserInfo current, final UserInfoPatch patch ) {
+		final UserInfo.UserInfoBuilder patched = current.toBuilder().version( current.getVersion() + 1 );
+		if ( patch.getFirstName() != null ) {
+			patched.firstName( patch.getFirstName() );
+		}
+		if ( patch.getSurname() != null ) {
+			patched.surname( patch.getSurname() );
+		}
+		if ( patch.getEmail() != null ) {
+			patched.email( patch.getEmail() ).normalizedEmail( UserInfo.normalizeEmail( patch.getEmail() ) );
+		}
+		if ( patch.getPassword() != null ) {
+			patched.password( patch.getPassword() );
+		}
+		if ( patch.getAllowsEmail() != null ) {
+			patched.allowsEmail( patch.getAllowsEmail() );
+		}
+		return patched.build();
+	}
+
+	private void setIfPresent( final CriteriaUpdate<UserInfo> update, final String attribute,
+			final Object value ) {
+		if ( value != null ) {
+			update.set( attribute, value );
+		}
+	}
+
+}
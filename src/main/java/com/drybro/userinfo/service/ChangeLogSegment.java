@@ -0,0 +1,186 @@
+package com.drybro.userinfo.service;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One memory-mapped file of the user change log, holding records in increasing offset order from
+ * its base offset. Offsets within a segment may have gaps once it has been compacted.
+ * <p>
+ * A record is its payload length, its offset and the payload. The length is written last, and a
+ * fresh file reads as zeros, so a record cut short by a crash is never read back.
+ * <p>
+ * Not thread safe, {@link UserChangeLog} guards every segment with its lock.
+ */
+final class ChangeLogSegment {
+
+	static final String SUFFIX = ".log";
+
+	private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+
+	// Every this many records are indexed, so reads scan at most this many to find their offset
+	private static final int INDEX_INTERVAL = 64;
+
+	private Path path;
+
+	private final long baseOffset;
+
+	private final MappedByteBuffer buffer;
+
+	private int writePosition;
+
+	private long lastOffset = -1;
+
+	private int recordCount;
+
+	private long[] indexOffsets = new long[16];
+
+	private int[] indexPositions = new int[16];
+
+	private int indexSize;
+
+	private ChangeLogSegment( final Path path, final long baseOffset, final int capacity ) throws IOException {
+		this.path = path;
+		this.baseOffset = baseOffset;
+		try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE ) ) {
+			// The mapping stays valid once the channel is closed
+			this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, capacity );
+		}
+	}
+
+	static ChangeLogSegment create( final Path path, final long baseOffset, final int capacity )
+			throws IOException {
+		return new ChangeLogSegment( path, baseOffset, capacity );
+	}
+
+	/**
+	 * Maps an existing segment, reading its records back up to the first incomplete one.
+	 */
+	static ChangeLogSegment open( final Path path ) throws IOException {
+		final ChangeLogSegment segment = new ChangeLogSegment( path, baseOffset( path ),
+				Math.toIntExact( Files.size( path ) ) );
+		segment.recover();
+		return segment;
+	}
+
+	static Path path( final Path directory, final long baseOffset ) {
+		return directory.resolve( String.format( "%020d%s", baseOffset, SUFFIX ) );
+	}
+
+	static long baseOffset( final Path path ) {
+		final String fileName = path.getFileName().toString();
+		return Long.parseLong( fileName.substring( 0, fileName.length() - SUFFIX.length() ) );
+	}
+
+	static int recordBytes( final byte[] payload ) {
+		return HEADER_BYTES + payload.length;
+	}
+
+	private void recover() {
+		int position = 0;
+		while ( position + HEADER_BYTES <= buffer.capacity() ) {
+			final int length = buffer.getInt( position );
+			if ( length <= 0 || position + HEADER_BYTES + length > buffer.capacity() ) {
+				break;
+			}
+			record( buffer.getLong( position + Integer.BYTES ), position );
+			position += HEADER_BYTES + length;
+		}
+		writePosition = position;
+	}
+
+	/**
+	 * @return false, writing nothing, when the record does not fit in the space left
+	 */
+	boolean append( final long offset, final byte[] payload ) {
+		if ( writePosition + recordBytes( payload ) > buffer.capacity() ) {
+			return false;
+		}
+		buffer.put( writePosition + HEADER_BYTES, payload );
+		buffer.putLong( writePosition + Integer.BYTES, offset );
+		buffer.putInt( writePosition, payload.length );
+		record( offset, writePosition );
+		writePosition += recordBytes( payload );
+		return true;
+	}
+
+	private void record( final long offset, final int position ) {
+		if ( recordCount % INDEX_INTERVAL == 0 ) {
+			if ( indexSize == indexOffsets.length ) {
+				indexOffsets = Arrays.copyOf( indexOffsets, indexSize * 2 );
+				indexPositions = Arrays.copyOf( indexPositions, indexSize * 2 );
+			}
+			indexOffsets[indexSize] = offset;
+			indexPositions[indexSize] = position;
+			indexSize++;
+		}
+		recordCount++;
+		lastOffset = offset;
+	}
+
+	/**
+	 * Adds the payloads of records at or after the offset to the list until it holds maxRecords.
+	 */
+	void read( final long fromOffset, final int maxRecords, final List<byte[]> payloads ) {
+		int position = startPosition( fromOffset );
+		while ( position < writePosition && payloads.size() < maxRecords ) {
+			final int length = buffer.getInt( position );
+			if ( buffer.getLong( position + Integer.BYTES ) >= fromOffset ) {
+				final byte[] payload = new byte[length];
+				buffer.get( position + HEADER_BYTES, payload );
+				payloads.add( payload );
+			}
+			position += HEADER_BYTES + length;
+		}
+	}
+
+	private int startPosition( final long fromOffset ) {
+		final int index = Arrays.binarySearch( indexOffsets, 0, indexSize, fromOffset );
+		if ( index >= 0 ) {
+			return indexPositions[index];
+		}
+		final int insertionPoint = -index - 1;
+		return insertionPoint == 0 ? 0 : indexPositions[insertionPoint - 1];
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	void moveTo( final Path target ) throws IOException {
+		Files.move( path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		path = target;
+	}
+
+	void delete() throws IOException {
+		Files.deleteIfExists( path );
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	long getBaseOffset() {
+		return baseOffset;
+	}
+
+	/**
+	 * @return the offset of the last record, or -1 when the segment is empty
+	 */
+	long getLastOffset() {
+		return lastOffset;
+	}
+
+	boolean isEmpty() {
+		return recordCount == 0;
+	}
+
+}
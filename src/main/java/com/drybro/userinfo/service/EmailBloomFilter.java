@@ -0,0 +1,283 @@
+package com.drybro.userinfo.service;
+
+import java.time.Instant;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bloom filter over every known normalized email, letting lookups for emails that were never
+ * stored be answered as not found without a database round trip.
+ * <p>
+ * Emails are added as users are created or change email. Deleted and replaced emails cannot be
+ * removed from a Bloom filter, so it is periodically rebuilt from the email column to shed them.
+ * Until the first build completes every email is reported as possibly present.
+ */
+@Slf4j
+@Component
+public class EmailBloomFilter implements UserInfoChangeListener {
+
+	public static final String FILTER_METRIC = "user.info.email.filter";
+
+	private final UserInfoProperties.EmailFilter filterProperties;
+
+	private final UserRepository userRepository;
+
+	private final UserShards userShards;
+
+	private final TransactionTemplate readOnlyTransactionTemplate;
+
+	private final TaskScheduler taskScheduler;
+
+	private final Counter rejectedCounter;
+
+	private final Counter falsePositiveCounter;
+
+	// Adds hold the read lock so a rebuild can start and finish capturing them without losing any
+	private final ReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+	private volatile Bits current;
+
+	private Bits building;
+
+	private ScheduledFuture<?> rebuildTask;
+
+	public EmailBloomFilter( final UserInfoProperties userInfoProperties, final UserRepository userRepository,
+			final UserShards userShards, final PlatformTransactionManager transactionManager,
+			final TaskScheduler taskScheduler, final MeterRegistry meterRegistry ) {
+		this.filterProperties = userInfoProperties.getEmailFilter();
+		this.userRepository = userRepository;
+		this.userShards = userShards;
+		this.readOnlyTransactionTemplate = new TransactionTemplate( transactionManager );
+		this.readOnlyTransactionTemplate.setReadOnly( true );
+		this.taskScheduler = taskScheduler;
+		this.rejectedCounter = outcomeCounter( meterRegistry, "rejected" );
+		this.falsePositiveCounter = outcomeCounter( meterRegistry, "false_positive" );
+		Gauge.builder( FILTER_METRIC + ".expected.fpp", this, EmailBloomFilter::expectedFalsePositiveRate )
+				.description( "False positive rate implied by the fill of the email filter" )
+				.register( meterRegistry );
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleRebuilds() {
+		if ( filterProperties.isEnabled() ) {
+			rebuildTask = taskScheduler.scheduleWithFixedDelay( this::rebuild,
+					Instant.now().plus( filterProperties.getStartupDelay() ),
+					filterProperties.getRebuildInterval() );
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( rebuildTask != null ) {
+			rebuildTask.cancel( false );
+		}
+	}
+
+	/**
+	 * @return false only when the email is certainly not stored
+	 */
+	public boolean mightContain( final String email ) {
+		final Bits bits = current;
+		if ( !filterProperties.isEnabled() || bits == null || email == null ) {
+			return true;
+		}
+		if ( bits.mightContain( UserInfo.normalizeEmail( email ) ) ) {
+			return true;
+		}
+		rejectedCounter.increment();
+		return false;
+	}
+
+	/**
+	 * Records a lookup that passed the filter but found no user.
+	 */
+	public void recordFalsePositive() {
+		if ( filterProperties.isEnabled() && current != null ) {
+			falsePositiveCounter.increment();
+		}
+	}
+
+	public void add( final String email ) {
+		if ( !filterProperties.isEnabled() || email == null ) {
+			return;
+		}
+		final String normalizedEmail = UserInfo.normalizeEmail( email );
+		rebuildLock.readLock().lock();
+		try {
+			if ( current != null ) {
+				current.add( normalizedEmail );
+			}
+			if ( building != null ) {
+				building.add( normalizedEmail );
+			}
+		} finally {
+			rebuildLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		add( userInfo.getEmail() );
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+		add( userInfoPatch.getEmail() );
+	}
+
+	/**
+	 * Builds a fresh filter from the email column, sized for the current table, and swaps it in.
+	 */
+	public void rebuild() {
+		try {
+			final long userCount = userShards.onEveryShard( userRepository::count ).stream()
+					.mapToLong( Long::longValue )
+					.sum();
+			final Bits rebuilt = new Bits( Math.max( filterProperties.getExpectedInsertions(), userCount * 2 ),
+					filterProperties.getFalsePositiveProbability() );
+
+			// Any email added from here on is written to the new filter as well as the old one
+			rebuildLock.writeLock().lock();
+			try {
+				building = rebuilt;
+			} finally {
+				rebuildLock.writeLock().unlock();
+			}
+
+			userShards.forEachShard( () -> readOnlyTransactionTemplate.executeWithoutResult( status -> {
+				try ( Stream<String> emails = userRepository.streamAllNormalizedEmails() ) {
+					emails.forEach( rebuilt::add );
+				}
+			} ) );
+
+			rebuildLock.writeLock().lock();
+			try {
+				current = rebuilt;
+				building = null;
+			} finally {
+				rebuildLock.writeLock().unlock();
+			}
+			log.info( "Rebuilt email filter from {} users, expected false positive rate {}", userCount,
+					expectedFalsePositiveRate() );
+		} catch ( final RuntimeException re ) {
+			rebuildLock.writeLock().lock();
+			try {
+				building = null;
+			} finally {
+				rebuildLock.writeLock().unlock();
+			}
+			log.warn( "Failed to rebuild the email filter, keeping the previous one", re );
+		}
+	}
+
+	public double expectedFalsePositiveRate() {
+		final Bits bits = current;
+		return bits == null ? 1.0 : bits.expectedFalsePositiveRate();
+	}
+
+	private static Counter outcomeCounter( final MeterRegistry meterRegistry, final String outcome ) {
+		return Counter.builder( FILTER_METRIC )
+				.description( "Email lookups decided by the email filter" )
+				.tag( "outcome", outcome )
+				.register( meterRegistry );
+	}
+
+	/**
+	 * Lock free bit array probed with double hashing over a single 64 bit hash of the email.
+	 */
+	static final class Bits {
+
+		private final AtomicLongArray words;
+
+		private final long bitSize;
+
+		private final int hashCount;
+
+		private final AtomicLong bitsSet = new AtomicLong();
+
+		Bits( final long expectedInsertions, final double falsePositiveProbability ) {
+			final long requiredBits = (long) Math.ceil( -expectedInsertions * Math.log( falsePositiveProbability )
+					/ ( Math.log( 2 ) * Math.log( 2 ) ) );
+			this.words = new AtomicLongArray( Math.toIntExact( Math.max( 1, ( requiredBits + 63 ) / 64 ) ) );
+			this.bitSize = words.length() * 64L;
+			this.hashCount = Math.max( 1, (int) Math.round( (double) bitSize / expectedInsertions * Math.log( 2 ) ) );
+		}
+
+		void add( final String email ) {
+			final long hash = hash( email );
+			final int hash1 = (int) hash;
+			final int hash2 = (int) ( hash >>> 32 );
+			for ( int i = 1; i <= hashCount; i++ ) {
+				final long bit = Math.floorMod( hash1 + (long) i * hash2, bitSize );
+				final int wordIndex = (int) ( bit >>> 6 );
+				final long mask = 1L << bit;
+				long word = words.get( wordIndex );
+				while ( ( word & mask ) == 0 ) {
+					final long witness = words.compareAndExchange( wordIndex, word, word | mask );
+					if ( witness == word ) {
+						bitsSet.incrementAndGet();
+						break;
+					}
+					word = witness;
+				}
+			}
+		}
+
+		boolean mightContain( final String email ) {
+			final long hash = hash( email );
+			final int hash1 = (int) hash;
+			final int hash2 = (int) ( hash >>> 32 );
+			for ( int i = 1; i <= hashCount; i++ ) {
+				final long bit = Math.floorMod( hash1 + (long) i * hash2, bitSize );
+				if ( ( words.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		double expectedFalsePositiveRate() {
+			return Math.pow( (double) bitsSet.get() / bitSize, hashCount );
+		}
+
+		// FNV-1a over the chars, finished with the MurmurHash3 mixer to spread the high bits
+		private static long hash( final String email ) {
+			long hash = 0xcbf29ce484222325L;
+			for ( int i = 0; i < email.length(); i++ ) {
+				hash ^= email.charAt( i );
+				hash *= 0x100000001b3L;
+			}
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+
+	}
+
+}
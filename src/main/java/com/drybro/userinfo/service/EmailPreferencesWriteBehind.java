@@ -0,0 +1,227 @@
+package com.drybro.userinfo.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Opt-in write-behind for single user email preference changes. The latest value per user is
+ * held in memory and acknowledged straight away, then written by a background flusher in one
+ * set-based UPDATE per value and batch, so a user toggling several times costs a single write.
+ * <p>
+ * Pending values are visible to reads through {@link #pendingAllowsEmail(Long)}. Values for user
+ * IDs that do not exist are dropped when flushed. Everything pending is written on shutdown.
+ * <p>
+ * Flushes run on a thread of their own rather than the shared task scheduler, whose rebuilds of
+ * in-memory indexes stream the whole table and would otherwise hold pending changes back.
+ */
+@Slf4j
+@Component
+public class EmailPreferencesWriteBehind {
+
+	public static final String WRITE_BEHIND_METRIC = "user.info.preferences.write.behind";
+
+	private final UserInfoProperties.PreferencesWriteBehind writeBehindProperties;
+
+	private final UserRepository userRepository;
+
+	private final UserShards userShards;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final UserInfoCache userInfoCache;
+
+	private final UserLookupCoalescer userLookupCoalescer;
+
+	private final List<UserInfoChangeListener> changeListeners;
+
+	private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofPlatform().name( "user-preferences-flush" ).daemon().factory() );
+
+	private final Map<Long, Boolean> pending = new ConcurrentHashMap<>();
+
+	// Only one flush runs at a time, and discarding a pending value waits for a flush in progress
+	private final Lock flushLock = new ReentrantLock();
+
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private final Counter coalescedCounter;
+
+	private final Counter writtenCounter;
+
+	private ScheduledFuture<?> flushTask;
+
+	public EmailPreferencesWriteBehind( final UserInfoProperties userInfoProperties,
+			final UserRepository userRepository, final UserShards userShards,
+			final TransactionTemplate transactionTemplate, final UserInfoCache userInfoCache, final UserLookupCoalescer userLookupCoalescer,
+			final List<UserInfoChangeListener> changeListeners, final MeterRegistry meterRegistry ) {
+		this.writeBehindProperties = userInfoProperties.getPreferencesWriteBehind();
+		this.userRepository = userRepository;
+		this.userShards = userShards;
+		this.transactionTemplate = transactionTemplate;
+		this.userInfoCache = userInfoCache;
+		this.userLookupCoalescer = userLookupCoalescer;
+		this.changeListeners = changeListeners;
+		this.coalescedCounter = Counter.builder( WRITE_BEHIND_METRIC + ".coalesced" )
+				.description( "Pending email preference changes replaced before being written" )
+				.register( meterRegistry );
+		this.writtenCounter = Counter.builder( WRITE_BEHIND_METRIC + ".written" )
+				.description( "Email preference changes written by the write-behind flusher" )
+				.register( meterRegistry );
+		Gauge.builder( WRITE_BEHIND_METRIC + ".pending", pending, Map::size )
+				.description( "Email preference changes waiting to be written" )
+				.register( meterRegistry );
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleFlushes() {
+		if ( writeBehindProperties.isEnabled() ) {
+			final long flushIntervalMillis = writeBehindProperties.getFlushInterval().toMillis();
+			flushTask = flushExecutor.scheduleWithFixedDelay( this::flush, flushIntervalMillis,
+					flushIntervalMillis, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	@PreDestroy
+	public void drain() {
+		if ( flushTask != null ) {
+			flushTask.cancel( false );
+		}
+		// A flush still running holds the lock, so the final one below starts once it has finished
+		flushExecutor.shutdown();
+		flush();
+		if ( !pending.isEmpty() ) {
+			log.warn( "{} email preference changes could not be written before shutdown", pending.size() );
+		}
+	}
+
+	/**
+	 * @return false when write-behind is disabled and the caller must write the change itself
+	 */
+	public boolean enqueue( final Long userId, final Boolean allowsEmail ) {
+		if ( !writeBehindProperties.isEnabled() || userId == null || allowsEmail == null ) {
+			return false;
+		}
+		if ( pending.put( userId, allowsEmail ) != null ) {
+			coalescedCounter.increment();
+		}
+		final int pendingCount = pending.size();
+		if ( pendingCount >= writeBehindProperties.getMaxPending() ) {
+			// Back-pressure, the writer pays for the flush rather than letting the map grow unbounded
+			flush();
+		} else if ( pendingCount >= writeBehindProperties.getBatchSize() && flushRequested.compareAndSet( false, true ) ) {
+			try {
+				flushExecutor.execute( this::flush );
+			} catch ( final RejectedExecutionException ree ) {
+				// Shutting down, the change is written by the final flush or right here
+				flush();
+			}
+		}
+		return true;
+	}
+
+	public Optional<Boolean> pendingAllowsEmail( final Long userId ) {
+		if ( pending.isEmpty() || userId == null ) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable( pending.get( userId ) );
+	}
+
+	public boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Drops pending values for users about to be written directly, so an older queued value cannot
+	 * overwrite the newer direct write.
+	 */
+	public void discard( final Collection<Long> userIds ) {
+		if ( pending.isEmpty() ) {
+			return;
+		}
+		flushLock.lock();
+		try {
+			userIds.forEach( pending::remove );
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	public void flushIfPending( final Long userId ) {
+		if ( userId != null && pending.containsKey( userId ) ) {
+			flush();
+		}
+	}
+
+	public void flush() {
+		flushLock.lock();
+		try {
+			flushRequested.set( false );
+			if ( pending.isEmpty() ) {
+				return;
+			}
+			final List<Long> allowed = new ArrayList<>();
+			final List<Long> disallowed = new ArrayList<>();
+			final Map<Long, Boolean> snapshot = Map.copyOf( pending );
+			snapshot.forEach( ( userId, allowsEmail ) -> ( allowsEmail ? allowed : disallowed ).add( userId ) );
+			write( allowed, true, snapshot );
+			write( disallowed, false, snapshot );
+		} catch ( final RuntimeException re ) {
+			log.warn( "Failed to write pending email preference changes, retrying on the next flush", re );
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void write( final List<Long> userIds, final boolean allowsEmail, final Map<Long, Boolean> snapshot ) {
+		final int batchSize = writeBehindProperties.getBatchSize();
+		for ( int from = 0; from < userIds.size(); from += batchSize ) {
+			final List<Long> batch = userIds.subList( from, Math.min( from + batchSize, userIds.size() ) );
+			final int[] changedCount = new int[1];
+			final List<UserInfo> updatedUsers = new ArrayList<>();
+			userShards.forEachShardOf( batch, shardBatch -> transactionTemplate.executeWithoutResult( status -> {
+				changedCount[0] += userRepository.updateAllowsEmailByIdIn( shardBatch, allowsEmail );
+				updatedUsers.addAll( userRepository.findAllByIdIn( shardBatch ) );
+			} ) );
+			for ( final Long userId : batch ) {
+				// A change queued while writing stays pending for the next flush
+				pending.remove( userId, snapshot.get( userId ) );
+				userInfoCache.evict( userId );
+			}
+			updatedUsers.forEach( userInfo -> userLookupCoalescer.forget( userInfo.getId(),
+					userInfo.getNormalizedEmail() ) );
+			writtenCounter.increment( updatedUsers.size() );
+			if ( !updatedUsers.isEmpty() ) {
+				changeListeners.forEach( listener -> listener.onEmailPreferencesUpdated( updatedUsers,
+						allowsEmail, changedCount[0] ) );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.drybro.userinfo.service;
+
+/**
+ * Source of randomness for generated passwords. Implementations must be safe to call from many
+ * threads at once.
+ */
+@FunctionalInterface
+public interface PasswordEntropySource {
+
+	/**
+	 * @return a uniformly distributed value between zero (inclusive) and the bound (exclusive)
+	 */
+	int nextInt( int bound );
+
+}
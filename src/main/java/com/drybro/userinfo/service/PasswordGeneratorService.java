@@ -1,13 +1,19 @@
 package com.drybro.userinfo.service;
 
 import java.util.Locale;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.springframework.stereotype.Service;
 
+import com.drybro.userinfo.config.UserInfoProperties;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 @Service
+@Slf4j
 public class PasswordGeneratorService {
 
 	private final static String upper = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
@@ -18,14 +24,72 @@ public class PasswordGeneratorService {
 
 	private final static char[] symbols = alphanum.toCharArray();
 
-	private final static Random random = new Random();
+	private final PasswordEntropySource entropySource;
+
+	private final int passwordLength;
+
+	// Only set when buffering is enabled, filled ahead of demand by a background thread
+	private final BlockingQueue<String> passwordBuffer;
+
+	private Thread refillThread;
+
+	public PasswordGeneratorService( final PasswordEntropySource entropySource,
+			final UserInfoProperties userInfoProperties ) {
+		final UserInfoProperties.PasswordGenerator properties = userInfoProperties.getPasswordGenerator();
+		this.entropySource = entropySource;
+		this.passwordLength = properties.getLength();
+		this.passwordBuffer = properties.getBuffer().isEnabled()
+				? new ArrayBlockingQueue<>( properties.getBuffer().getCapacity() )
+				: null;
+	}
+
+	@PostConstruct
+	public void start() {
+		if ( passwordBuffer != null ) {
+			refillThread = new Thread( this::refillBuffer, "password-buffer-refill" );
+			refillThread.setDaemon( true );
+			refillThread.start();
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( refillThread != null ) {
+			refillThread.interrupt();
+		}
+	}
 
-	public static String generatePassword() {
-		char[] generatedPassword = new char[20];
+	/**
+	 * Returns a pre-generated password when one is buffered, otherwise generates one inline so
+	 * callers never wait on the refill thread.
+	 */
+	public String generatePassword() {
+		if ( passwordBuffer != null ) {
+			final String bufferedPassword = passwordBuffer.poll();
+			if ( bufferedPassword != null ) {
+				return bufferedPassword;
+			}
+		}
+		return newPassword();
+	}
+
+	private String newPassword() {
+		final char[] generatedPassword = new char[passwordLength];
 		for(int i=0; i<generatedPassword.length; i++) {
-			generatedPassword[i] = symbols[random.nextInt(symbols.length)];
+			generatedPassword[i] = symbols[entropySource.nextInt(symbols.length)];
 		}
 		return new String(generatedPassword);
 	}
 
+	private void refillBuffer() {
+		try {
+			while ( !Thread.currentThread().isInterrupted() ) {
+				passwordBuffer.put( newPassword() );
+			}
+		} catch ( final InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		}
+		log.debug( "Password buffer refill stopped" );
+	}
+
 }
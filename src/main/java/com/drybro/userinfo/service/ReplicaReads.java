@@ -0,0 +1,118 @@
+package com.drybro.userinfo.service;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.ReplicaRoutingDataSource;
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Runs user lookups on the read replica when one is configured.
+ * <p>
+ * Users written within the read-your-writes window are looked up on the primary instead, so a
+ * lagging replica cannot hand back, and the cache then keep, a user as it was before a write that
+ * has already been acknowledged.
+ */
+@Component
+public class ReplicaReads implements UserInfoChangeListener {
+
+	private final boolean enabled;
+
+	private final TransactionTemplate replicaReadTemplate;
+
+	private final Cache<Long, Boolean> recentlyWrittenIds;
+
+	private final Cache<String, Boolean> recentlyWrittenEmails;
+
+	public ReplicaReads( final UserInfoProperties userInfoProperties,
+			final PlatformTransactionManager transactionManager ) {
+		final UserInfoProperties.Replica replicaProperties = userInfoProperties.getReplica();
+		this.enabled = replicaProperties.isEnabled();
+		this.replicaReadTemplate = new TransactionTemplate( transactionManager );
+		this.replicaReadTemplate.setReadOnly( true );
+		this.replicaReadTemplate.setName( ReplicaRoutingDataSource.REPLICA_READ );
+		this.recentlyWrittenIds = Caffeine.newBuilder()
+				.expireAfterWrite( replicaProperties.getReadYourWritesWindow() )
+				.build();
+		this.recentlyWrittenEmails = Caffeine.newBuilder()
+				.expireAfterWrite( replicaProperties.getReadYourWritesWindow() )
+				.build();
+	}
+
+	/**
+	 * Reads that can tolerate the replica's lag, such as listings.
+	 */
+	public <T> T read( final Supplier<T> lookup ) {
+		return enabled ? replicaReadTemplate.execute( status -> lookup.get() ) : lookup.get();
+	}
+
+	public Optional<UserInfo> findUser( final Long userId, final Supplier<Optional<UserInfo>> lookup ) {
+		return findUser( userId, null, lookup );
+	}
+
+	public Optional<UserInfo> findUserByNormalizedEmail( final String normalizedEmail,
+			final Supplier<Optional<UserInfo>> lookup ) {
+		return findUser( null, normalizedEmail, lookup );
+	}
+
+	private Optional<UserInfo> findUser( final Long userId, final String normalizedEmail,
+			final Supplier<Optional<UserInfo>> lookup ) {
+		if ( !enabled || recentlyWritten( userId ) || ( normalizedEmail != null
+				&& recentlyWrittenEmails.getIfPresent( normalizedEmail ) != null ) ) {
+			return lookup.get();
+		}
+		final Optional<UserInfo> replicaUser = replicaReadTemplate.execute( status -> lookup.get() );
+		// Found by an email it may no longer have, or with fields from before the write
+		if ( replicaUser.isPresent() && recentlyWritten( replicaUser.get().getId() ) ) {
+			return lookup.get();
+		}
+		return replicaUser;
+	}
+
+	private boolean recentlyWritten( final Long userId ) {
+		return userId != null && recentlyWrittenIds.getIfPresent( userId ) != null;
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		if ( enabled ) {
+			recentlyWrittenIds.put( userInfo.getId(), Boolean.TRUE );
+			recentlyWrittenEmails.put( UserInfo.normalizeEmail( userInfo.getEmail() ), Boolean.TRUE );
+		}
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch patch, final boolean allowsEmailChanged ) {
+		if ( enabled ) {
+			recentlyWrittenIds.put( userInfo.getId(), Boolean.TRUE );
+			if ( patch.getEmail() != null ) {
+				recentlyWrittenEmails.put( UserInfo.normalizeEmail( patch.getEmail() ), Boolean.TRUE );
+			}
+		}
+	}
+
+	@Override
+	public void onEmailPreferencesUpdated( final Collection<UserInfo> users, final Boolean allowsEmail,
+			final int changedCount ) {
+		if ( enabled && changedCount > 0 ) {
+			users.forEach( userInfo -> recentlyWrittenIds.put( userInfo.getId(), Boolean.TRUE ) );
+		}
+	}
+
+	@Override
+	public void onUserDeleted( final UserInfo userInfo ) {
+		if ( enabled ) {
+			recentlyWrittenIds.put( userInfo.getId(), Boolean.TRUE );
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.drybro.userinfo.service;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Default entropy source backed by a stripe of independently seeded DRBG generators. Spreading
+ * callers across stripes avoids every request thread contending on a single generator's lock.
+ */
+@Component
+public class SecureRandomEntropySource implements PasswordEntropySource {
+
+	private final SecureRandom[] stripes;
+
+	public SecureRandomEntropySource() {
+		final int stripeCount = Runtime.getRuntime().availableProcessors() * 2;
+		this.stripes = new SecureRandom[stripeCount];
+		for ( int i = 0; i < stripeCount; i++ ) {
+			stripes[i] = newSecureRandom();
+		}
+	}
+
+	@Override
+	public int nextInt( final int bound ) {
+		return stripes[ThreadLocalRandom.current().nextInt( stripes.length )].nextInt( bound );
+	}
+
+	private static SecureRandom newSecureRandom() {
+		try {
+			return SecureRandom.getInstance( "DRBG" );
+		} catch ( final NoSuchAlgorithmException nsae ) {
+			return new SecureRandom();
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.drybro.userinfo.service;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+
+/**
+ * Collapses concurrent loads of the same key into one. The first caller runs the load, callers that
+ * arrive while it is in flight wait for it and receive the same result or the same exception.
+ * Nothing is kept once the load completes, so later callers load afresh.
+ * <p>
+ * Writers {@link #forget} the keys they wrote, so a caller arriving after a write never joins a
+ * load that started before it and may have read what the write replaced.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+	private final Counter coalescedCounter;
+
+	public SingleFlight( final Counter coalescedCounter ) {
+		this.coalescedCounter = coalescedCounter;
+	}
+
+	public V execute( final K key, final Supplier<V> loader ) {
+		if ( key == null ) {
+			return loader.get();
+		}
+		final CompletableFuture<V> load = new CompletableFuture<>();
+		final CompletableFuture<V> existing = inFlight.putIfAbsent( key, load );
+		if ( existing != null ) {
+			coalescedCounter.increment();
+			return await( existing );
+		}
+		try {
+			final V value = loader.get();
+			load.complete( value );
+			return value;
+		} catch ( final RuntimeException | Error e ) {
+			load.completeExceptionally( e );
+			throw e;
+		} finally {
+			inFlight.remove( key, load );
+		}
+	}
+
+	/**
+	 * Detaches the load of the key in flight, if any, so callers arriving from now on start a fresh
+	 * one. Callers already waiting on it still receive its result.
+	 */
+	public void forget( final K key ) {
+		if ( key != null ) {
+			inFlight.remove( key );
+		}
+	}
+
+	/**
+	 * Waits for a load of the key that is already running, without starting one.
+	 */
+	public Optional<V> awaitInFlight( final K key ) {
+		final CompletableFuture<V> existing = key == null ? null : inFlight.get( key );
+		if ( existing == null ) {
+			return Optional.empty();
+		}
+		coalescedCounter.increment();
+		return Optional.ofNullable( await( existing ) );
+	}
+
+	private static <V> V await( final CompletableFuture<V> load ) {
+		try {
+			return load.join();
+		} catch ( final CompletionException ce ) {
+			if ( ce.getCause() instanceof RuntimeException runtimeException ) {
+				throw runtimeException;
+			}
+			if ( ce.getCause() instanceof Error error ) {
+				throw error;
+			}
+			throw ce;
+		}
+	}
+
+}
@@ -0,0 +1,400 @@
+package com.drybro.userinfo.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserChangeEvent;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local append-only log of every committed change to a user, read by offset so consumers can sync
+ * by fetching only what changed since their last offset.
+ * <p>
+ * Events are JSON encoded into fixed size memory-mapped segment files, a new segment being started
+ * once the current one is full. Sealed segments are periodically compacted by user: only the event
+ * holding each user's highest version is kept, so a consumer reading from offset zero still ends up
+ * with every user's latest state. Delete events are kept for the tombstone retention, long enough
+ * for consumers to see them, before being dropped as well.
+ * <p>
+ * Events are appended as {@link UserService} reports committed writes, so concurrent writes to the
+ * same user may be logged in a different order than they committed. Each event carries the whole
+ * user at its version, which is what compaction and consumers go by rather than the offset.
+ */
+@Slf4j
+@Component
+public class UserChangeLog implements UserInfoChangeListener {
+
+	private static final String COMPACTING_SUFFIX = ".compacting";
+
+	private final UserInfoProperties.ChangeLog changeLogProperties;
+
+	private final ObjectMapper objectMapper;
+
+	private final TaskScheduler taskScheduler;
+
+	private final Path directory;
+
+	private final int segmentBytes;
+
+	// Appends and compaction hold the write lock, reads the read lock
+	private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+
+	private final NavigableMap<Long, ChangeLogSegment> segments = new TreeMap<>();
+
+	private final Set<Runnable> waiters = ConcurrentHashMap.newKeySet();
+
+	// Waiters run here rather than on the thread of the write that woke them
+	private final ExecutorService waiterExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			Thread.ofPlatform().name( "user-change-log-waiter-", 0 ).daemon().factory() );
+
+	private final Lock compactionLock = new ReentrantLock();
+
+	private volatile long nextOffset;
+
+	private volatile boolean sealedSinceCompaction;
+
+	private ScheduledFuture<?> compactionTask;
+
+	public UserChangeLog( final UserInfoProperties userInfoProperties, final ObjectMapper objectMapper,
+			final TaskScheduler taskScheduler ) {
+		this.changeLogProperties = userInfoProperties.getChangeLog();
+		this.objectMapper = objectMapper;
+		this.taskScheduler = taskScheduler;
+		this.directory = Path.of( changeLogProperties.getDirectory() );
+		this.segmentBytes = Math.toIntExact( changeLogProperties.getSegmentSize().toBytes() );
+	}
+
+	/**
+	 * Maps the existing segments, continuing the offsets from the last event they hold.
+	 */
+	@PostConstruct
+	public void open() throws IOException {
+		if ( !changeLogProperties.isEnabled() ) {
+			return;
+		}
+		Files.createDirectories( directory );
+		try ( Stream<Path> files = Files.list( directory ) ) {
+			for ( final Path file : files.toList() ) {
+				final String fileName = file.getFileName().toString();
+				if ( fileName.endsWith( COMPACTING_SUFFIX ) ) {
+					// Left by a compaction that did not finish, the segments it read are still in place
+					Files.delete( file );
+				} else if ( fileName.endsWith( ChangeLogSegment.SUFFIX ) ) {
+					final ChangeLogSegment segment = ChangeLogSegment.open( file );
+					segments.put( segment.getBaseOffset(), segment );
+				}
+			}
+		}
+		nextOffset = segments.values().stream()
+				.mapToLong( segment -> Math.max( segment.getBaseOffset(), segment.getLastOffset() + 1 ) )
+				.max()
+				.orElse( 0 );
+		if ( segments.isEmpty() ) {
+			startSegment();
+		}
+		sealedSinceCompaction = segments.size() > 1;
+		log.info( "Opened the user change log in {} at offset {}", directory, nextOffset );
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleCompaction() {
+		if ( changeLogProperties.isEnabled() ) {
+			compactionTask = taskScheduler.scheduleWithFixedDelay( this::compact,
+					Instant.now().plus( changeLogProperties.getCompactionInterval() ),
+					changeLogProperties.getCompactionInterval() );
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		if ( compactionTask != null ) {
+			compactionTask.cancel( false );
+		}
+		waiterExecutor.shutdownNow();
+		logLock.writeLock().lock();
+		try {
+			segments.values().forEach( ChangeLogSegment::force );
+		} finally {
+			logLock.writeLock().unlock();
+		}
+	}
+
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	/**
+	 * @return up to maxEvents events at or after the offset, in offset order
+	 */
+	public List<UserChangeEvent> read( final long fromOffset, final int maxEvents ) {
+		if ( !changeLogProperties.isEnabled() ) {
+			throw new ResponseStatusException( HttpStatus.SERVICE_UNAVAILABLE, "The user change log is not enabled" );
+		}
+		final List<byte[]> payloads = new ArrayList<>();
+		logLock.readLock().lock();
+		try {
+			final Long startSegment = segments.floorKey( fromOffset );
+			for ( final ChangeLogSegment segment : segments.tailMap(
+					startSegment == null ? segments.firstKey() : startSegment, true ).values() ) {
+				segment.read( fromOffset, maxEvents, payloads );
+				if ( payloads.size() == maxEvents ) {
+					break;
+				}
+			}
+		} finally {
+			logLock.readLock().unlock();
+		}
+		return payloads.stream().map( this::decode ).toList();
+	}
+
+	/**
+	 * Runs the callback once an event at or after the offset has been appended, straight away if one
+	 * already has, otherwise on a thread of the change log rather than the writer's. The returned handle stops a callback that is no longer wanted.
+	 */
+	public Runnable awaitChanges( final long fromOffset, final Runnable callback ) {
+		final Runnable waiter = () -> callback.run();
+		waiters.add( waiter );
+		// Checked after registering, so an append racing with the registration is not missed
+		if ( nextOffset > fromOffset && waiters.remove( waiter ) ) {
+			callback.run();
+		}
+		return () -> waiters.remove( waiter );
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		append( List.of( stateOf( UserChangeEvent.Type.CREATED, userInfo ) ) );
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+		append( List.of( stateOf( UserChangeEvent.Type.UPDATED, userInfo ) ) );
+	}
+
+	@Override
+	public void onEmailPreferencesUpdated( final Collection<UserInfo> users, final Boolean allowsEmail,
+			final int changedCount ) {
+		if ( changedCount == 0 ) {
+			return;
+		}
+		append( users.stream()
+				.map( userInfo -> stateOf( UserChangeEvent.Type.UPDATED, userInfo ) )
+				.toList() );
+	}
+
+	@Override
+	public void onUserDeleted( final UserInfo userInfo ) {
+		append( List.of( UserChangeEvent.builder()
+				.type( UserChangeEvent.Type.DELETED )
+				.userId( userInfo.getId() )
+				.version( userInfo.getVersion() ) ) );
+	}
+
+	private static UserChangeEvent.UserChangeEventBuilder stateOf( final UserChangeEvent.Type type,
+			final UserInfo userInfo ) {
+		return UserChangeEvent.builder()
+				.type( type )
+				.userId( userInfo.getId() )
+				.version( userInfo.getVersion() )
+				.firstName( userInfo.getFirstName() )
+				.surname( userInfo.getSurname() )
+				.email( userInfo.getEmail() )
+				.allowsEmail( userInfo.getAllowsEmail() );
+	}
+
+	/**
+	 * The writes being logged have already committed, so a failure is logged rather than thrown.
+	 */
+	private void append( final List<UserChangeEvent.UserChangeEventBuilder> events ) {
+		if ( !changeLogProperties.isEnabled() || events.isEmpty() ) {
+			return;
+		}
+		final Instant timestamp = Instant.now();
+		logLock.writeLock().lock();
+		try {
+			for ( final UserChangeEvent.UserChangeEventBuilder event : events ) {
+				final long offset = nextOffset;
+				final byte[] payload = objectMapper.writeValueAsBytes(
+						event.offset( offset ).timestamp( timestamp ).build() );
+				if ( !segments.lastEntry().getValue().append( offset, payload ) ) {
+					segments.lastEntry().getValue().force();
+					sealedSinceCompaction = true;
+					startSegment();
+					if ( !segments.lastEntry().getValue().append( offset, payload ) ) {
+						throw new IllegalStateException( "A change of " + payload.length
+								+ " bytes does not fit in a change log segment" );
+					}
+				}
+				nextOffset = offset + 1;
+			}
+		} catch ( final IOException | RuntimeException e ) {
+			log.error( "Failed to append {} user changes to the change log", events.size(), e );
+		} finally {
+			logLock.writeLock().unlock();
+		}
+		notifyWaiters();
+	}
+
+	private void startSegment() throws IOException {
+		final ChangeLogSegment segment = ChangeLogSegment.create(
+				ChangeLogSegment.path( directory, nextOffset ), nextOffset, segmentBytes );
+		segments.put( segment.getBaseOffset(), segment );
+	}
+
+	private void notifyWaiters() {
+		for ( final Runnable waiter : waiters ) {
+			if ( waiters.remove( waiter ) ) {
+				waiterExecutor.execute( waiter );
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the sealed segments keeping the highest version of each user, see the class comment.
+	 * Segments sealed while this runs are left for the next compaction.
+	 */
+	public void compact() {
+		if ( !changeLogProperties.isEnabled() || !sealedSinceCompaction || !compactionLock.tryLock() ) {
+			return;
+		}
+		sealedSinceCompaction = false;
+		try {
+			final List<ChangeLogSegment> sealed;
+			logLock.readLock().lock();
+			try {
+				sealed = List.copyOf( segments.headMap( segments.lastKey(), false ).values() );
+			} finally {
+				logLock.readLock().unlock();
+			}
+			if ( sealed.isEmpty() ) {
+				return;
+			}
+
+			// Sealed segments are never written again and only compaction replaces them, so they are
+			// read without holding up appends
+			final Map<Long, UserChangeEvent> latestByUser = new HashMap<>();
+			for ( final ChangeLogSegment segment : sealed ) {
+				final List<byte[]> payloads = new ArrayList<>();
+				segment.read( segment.getBaseOffset(), Integer.MAX_VALUE, payloads );
+				for ( final byte[] payload : payloads ) {
+					final UserChangeEvent event = decode( payload );
+					latestByUser.merge( event.getUserId(), event,
+							( kept, other ) -> other.supersedes( kept ) ? other : kept );
+				}
+			}
+
+			final Instant tombstoneCutoff = Instant.now().minus( changeLogProperties.getTombstoneRetention() );
+			final List<UserChangeEvent> kept = latestByUser.values().stream()
+					.filter( event -> event.getType() != UserChangeEvent.Type.DELETED
+							|| event.getTimestamp().isAfter( tombstoneCutoff ) )
+					.sorted( Comparator.comparingLong( UserChangeEvent::getOffset ) )
+					.toList();
+			final List<ChangeLogSegment> compacted = writeCompacted( kept );
+
+			logLock.writeLock().lock();
+			try {
+				sealed.forEach( segment -> segments.remove( segment.getBaseOffset() ) );
+				// Compacted segments are put in place before the old ones go, a crash in between leaves
+				// events repeated rather than lost
+				final Set<Path> compactedPaths = new HashSet<>();
+				for ( final ChangeLogSegment segment : compacted ) {
+					segment.moveTo( ChangeLogSegment.path( directory, segment.getBaseOffset() ) );
+					compactedPaths.add( segment.getPath() );
+					segments.put( segment.getBaseOffset(), segment );
+				}
+				for ( final ChangeLogSegment segment : sealed ) {
+					if ( !compactedPaths.contains( segment.getPath() ) ) {
+						segment.delete();
+					}
+				}
+			} finally {
+				logLock.writeLock().unlock();
+			}
+			log.info( "Compacted {} change log segments down to {} holding {} events", sealed.size(),
+					compacted.size(), kept.size() );
+		} catch ( final IOException | RuntimeException e ) {
+			sealedSinceCompaction = true;
+			log.warn( "Failed to compact the user change log", e );
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	private List<ChangeLogSegment> writeCompacted( final List<UserChangeEvent> events ) throws IOException {
+		final List<ChangeLogSegment> compacted = new ArrayList<>();
+		int from = 0;
+		while ( from < events.size() ) {
+			// Sized to what it holds, as nothing more will be appended to it
+			int bytes = 0;
+			int to = from;
+			final List<byte[]> payloads = new ArrayList<>();
+			while ( to < events.size() ) {
+				final byte[] payload = objectMapper.writeValueAsBytes( events.get( to ) );
+				if ( bytes + ChangeLogSegment.recordBytes( payload ) > segmentBytes && to > from ) {
+					break;
+				}
+				bytes += ChangeLogSegment.recordBytes( payload );
+				payloads.add( payload );
+				to++;
+			}
+			final long baseOffset = events.get( from ).getOffset();
+			final ChangeLogSegment segment = ChangeLogSegment.create( Path.of(
+					ChangeLogSegment.path( directory, baseOffset ) + COMPACTING_SUFFIX ), baseOffset, bytes );
+			for ( int index = 0; index < payloads.size(); index++ ) {
+				segment.append( events.get( from + index ).getOffset(), payloads.get( index ) );
+			}
+			segment.force();
+			compacted.add( segment );
+			from = to;
+		}
+		return compacted;
+	}
+
+	private UserChangeEvent decode( final byte[] payload ) {
+		try {
+			return objectMapper.readValue( payload, UserChangeEvent.class );
+		} catch ( final IOException ioe ) {
+			throw new UncheckedIOException( ioe );
+		}
+	}
+
+}
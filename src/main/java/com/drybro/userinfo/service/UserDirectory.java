@@ -0,0 +1,670 @@
+package com.drybro.userinfo.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserDirectoryEntry;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.repository.UserRepository;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Every user held in memory as columns rather than entities, to serve full listings and counts
+ * without reading the users table or allocating an object per user.
+ * <p>
+ * Rows are kept in id order. Ids are a primitive array, first names and surnames are dictionary
+ * encoded as the same names repeat across many users, emails are kept as their UTF-8 bytes in one
+ * shared buffer as each is unique, and the email preference is a bit set. A listing copies a chunk of rows at a time
+ * under the read lock and writes it out after releasing it, so a slow client never holds up writes.
+ * <p>
+ * Loaded once the application is ready and kept current by every write after that, in the same way
+ * as {@link UserSearchIndex}. It is also reloaded periodically, like {@link EmailBloomFilter}, to
+ * correct any drift and to retry a load that failed.
+ */
+@Slf4j
+@Component
+public class UserDirectory implements UserInfoChangeListener {
+
+	private static final int LISTING_CHUNK_SIZE = 1_000;
+
+	private static final SerializableString ID_FIELD = new SerializedString( "id" );
+
+	private static final SerializableString FIRST_NAME_FIELD = new SerializedString( "firstName" );
+
+	private static final SerializableString SURNAME_FIELD = new SerializedString( "surname" );
+
+	private static final SerializableString EMAIL_FIELD = new SerializedString( "email" );
+
+	private static final SerializableString ALLOWS_EMAIL_FIELD = new SerializedString( "allowsEmail" );
+
+	private final boolean enabled;
+
+	private final Duration reloadInterval;
+
+	private final Duration startupDelay;
+
+	private final UserRepository userRepository;
+
+	private final UserShards userShards;
+
+	private final TaskScheduler taskScheduler;
+
+	// Changes hold the read lock so the initial load can replay those it raced with
+	private final ReadWriteLock loadLock = new ReentrantReadWriteLock();
+
+	private volatile Columns current;
+
+	private ConcurrentLinkedQueue<Consumer<Columns>> changesDuringLoad;
+
+	private ScheduledFuture<?> loadTask;
+
+	public UserDirectory( final UserInfoProperties userInfoProperties, final UserRepository userRepository,
+			final UserShards userShards, final TaskScheduler taskScheduler ) {
+		this.enabled = userInfoProperties.getDirectory().isEnabled();
+		this.reloadInterval = userInfoProperties.getDirectory().getReloadInterval();
+		this.startupDelay = userInfoProperties.getDirectory().getStartupDelay();
+		this.userRepository = userRepository;
+		this.userShards = userShards;
+		this.taskScheduler = taskScheduler;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleLoads() {
+		if ( enabled ) {
+			loadTask = taskScheduler.scheduleWithFixedDelay( this::load, Instant.now().plus( startupDelay ),
+					reloadInterval );
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( loadTask != null ) {
+			loadTask.cancel( false );
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Loads every user into fresh columns. Changes made while the table is streamed are applied to
+	 * the new columns once streaming completes, so none are lost. After a failed load the previous
+	 * columns, if any, are kept until the next one.
+	 */
+	public void load() {
+		final Columns loading = new Columns();
+		loadLock.writeLock().lock();
+		try {
+			changesDuringLoad = new ConcurrentLinkedQueue<>();
+		} finally {
+			loadLock.writeLock().unlock();
+		}
+		try {
+			userShards.streamMerged( userRepository::streamAllDirectoryEntries,
+					Comparator.comparing( UserDirectoryEntry::getId ), loading::put );
+			loadLock.writeLock().lock();
+			try {
+				changesDuringLoad.forEach( change -> change.accept( loading ) );
+				current = loading;
+			} finally {
+				changesDuringLoad = null;
+				loadLock.writeLock().unlock();
+			}
+			log.info( "Loaded the user directory with {} users", loading.toUserStats().getTotalUsers() );
+		} catch ( final RuntimeException re ) {
+			loadLock.writeLock().lock();
+			try {
+				changesDuringLoad = null;
+			} finally {
+				loadLock.writeLock().unlock();
+			}
+			log.warn( "Failed to load the user directory", re );
+		}
+	}
+
+	/**
+	 * Checked when called, so an unavailable directory fails the request before any of the listing is
+	 * written.
+	 *
+	 * @param allowsEmail  lists only the users with this email preference, or every user when null
+	 */
+	public Listing listUsers( final Boolean allowsEmail ) {
+		return new Listing( loaded(), allowsEmail );
+	}
+
+	public UserStats getUserStats() {
+		return loaded().toUserStats();
+	}
+
+	private Columns loaded() {
+		final Columns columns = current;
+		if ( !enabled || columns == null ) {
+			throw new ResponseStatusException( HttpStatus.SERVICE_UNAVAILABLE, "The user directory is not available" );
+		}
+		return columns;
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		final UserDirectoryEntry userDirectoryEntry = UserDirectoryEntry.fromUserInfo( userInfo );
+		applyChange( columns -> columns.put( userDirectoryEntry ) );
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+		if ( userInfoPatch.getFirstName() != null || userInfoPatch.getSurname() != null
+				|| userInfoPatch.getEmail() != null || userInfoPatch.getAllowsEmail() != null ) {
+			applyChange( columns -> columns.patch( userInfo.getId(), userInfoPatch ) );
+		}
+	}
+
+	@Override
+	public void onEmailPreferencesUpdated( final Collection<UserInfo> users, final Boolean allowsEmail,
+			final int changedCount ) {
+		if ( changedCount > 0 && allowsEmail != null ) {
+			final List<Long> updatedUserIds = users.stream().map( UserInfo::getId ).toList();
+			applyChange( columns -> columns.setAllowsEmail( updatedUserIds, allowsEmail ) );
+		}
+	}
+
+	@Override
+	public void onUserDeleted( final UserInfo userInfo ) {
+		final Long userId = userInfo.getId();
+		applyChange( columns -> columns.remove( userId ) );
+	}
+
+	private void applyChange( final Consumer<Columns> change ) {
+		if ( !enabled ) {
+			return;
+		}
+		loadLock.readLock().lock();
+		try {
+			final Columns columns = current;
+			if ( columns != null ) {
+				change.accept( columns );
+			}
+			if ( changesDuringLoad != null ) {
+				changesDuringLoad.add( change );
+			}
+		} finally {
+			loadLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The users of a listing, written out one copied chunk at a time. Users written while the listing
+	 * runs are included when their id comes after the chunks already copied.
+	 */
+	public static final class Listing {
+
+		private final Columns columns;
+
+		private final Boolean allowsEmail;
+
+		private Listing( final Columns columns, final Boolean allowsEmail ) {
+			this.columns = columns;
+			this.allowsEmail = allowsEmail;
+		}
+
+		/**
+		 * Writes the users as a JSON array in id order, each with the fields of the user JSON apart
+		 * from the password.
+		 */
+		public void writeTo( final JsonGenerator generator ) throws IOException {
+			final Chunk chunk = new Chunk( LISTING_CHUNK_SIZE );
+			long afterId = 0;
+			generator.writeStartArray();
+			do {
+				columns.copyChunk( afterId, allowsEmail, chunk );
+				for ( int index = 0; index < chunk.size; index++ ) {
+					writeUser( generator, chunk, index );
+				}
+				if ( chunk.size > 0 ) {
+					afterId = chunk.ids[chunk.size - 1];
+				}
+			} while ( chunk.size == LISTING_CHUNK_SIZE );
+			generator.writeEndArray();
+		}
+
+		private static void writeUser( final JsonGenerator generator, final Chunk chunk, final int index )
+				throws IOException {
+			generator.writeStartObject();
+			generator.writeFieldName( ID_FIELD );
+			generator.writeNumber( chunk.ids[index] );
+			writeString( generator, FIRST_NAME_FIELD, chunk.firstNames[index] );
+			writeString( generator, SURNAME_FIELD, chunk.surnames[index] );
+			writeString( generator, EMAIL_FIELD, chunk.emailBytes, chunk.emailOffsets[index],
+					chunk.emailLengths[index] );
+			generator.writeFieldName( ALLOWS_EMAIL_FIELD );
+			generator.writeBoolean( chunk.allowsEmail[index] );
+			generator.writeEndObject();
+		}
+
+		private static void writeString( final JsonGenerator generator, final SerializableString field,
+				final byte[] utf8 ) throws IOException {
+			if ( utf8 != null ) {
+				writeString( generator, field, utf8, 0, utf8.length );
+			}
+		}
+
+		// Missing values are left out, as they are from the user JSON
+		private static void writeString( final JsonGenerator generator, final SerializableString field,
+				final byte[] utf8, final int offset, final int length ) throws IOException {
+			if ( length != Columns.NO_EMAIL ) {
+				generator.writeFieldName( field );
+				generator.writeUTF8String( utf8, offset, length );
+			}
+		}
+
+	}
+
+	private static final class Chunk {
+
+		private final long[] ids;
+
+		private final byte[][] firstNames;
+
+		private final byte[][] surnames;
+
+		// The directory's email buffer when the chunk was copied, which is never written over
+		private byte[] emailBytes;
+
+		private final int[] emailOffsets;
+
+		private final int[] emailLengths;
+
+		private final boolean[] allowsEmail;
+
+		private int size;
+
+		Chunk( final int capacity ) {
+			this.ids = new long[capacity];
+			this.firstNames = new byte[capacity][];
+			this.surnames = new byte[capacity][];
+			this.emailOffsets = new int[capacity];
+			this.emailLengths = new int[capacity];
+			this.allowsEmail = new boolean[capacity];
+		}
+
+	}
+
+	/**
+	 * Removed rows are only marked as such, keeping their place, and squeezed out once they
+	 * outnumber the users left.
+	 */
+	static final class Columns {
+
+		static final int NO_EMAIL = -1;
+
+		private static final int INITIAL_CAPACITY = 1_024;
+
+		private static final int INITIAL_EMAIL_BYTES = INITIAL_CAPACITY * 32;
+
+		// Fewer removed rows than this are not worth squeezing out
+		private static final int MIN_COMPACTION_ROWS = 1_024;
+
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		private final Dictionary firstNameDictionary = new Dictionary();
+
+		private final Dictionary surnameDictionary = new Dictionary();
+
+		private long[] ids = new long[INITIAL_CAPACITY];
+
+		private int[] firstNames = new int[INITIAL_CAPACITY];
+
+		private int[] surnames = new int[INITIAL_CAPACITY];
+
+		// Emails are appended to the buffer and never written over, so listings can read a copied
+		// chunk's emails from it without the lock. Replaced and removed emails are left behind until
+		// they outnumber the rest, when the others are packed into a new buffer.
+		private byte[] emailBytes = new byte[INITIAL_EMAIL_BYTES];
+
+		private int[] emailOffsets = new int[INITIAL_CAPACITY];
+
+		private int[] emailLengths = new int[INITIAL_CAPACITY];
+
+		private int emailBytesUsed;
+
+		private int liveEmailBytes;
+
+		private final BitSet present = new BitSet();
+
+		// Only set for present rows. A missing preference is kept as not allowing email
+		private final BitSet allowsEmail = new BitSet();
+
+		// Rows in use, including removed ones still holding their place
+		private int rowCount;
+
+		private int userCount;
+
+		void put( final UserDirectoryEntry userDirectoryEntry ) {
+			lock.writeLock().lock();
+			try {
+				int row = find( userDirectoryEntry.getId() );
+				if ( row < 0 ) {
+					row = -row - 1;
+					insertRow( row, userDirectoryEntry.getId() );
+				} else if ( present.get( row ) ) {
+					releaseRow( row );
+				}
+				firstNames[row] = firstNameDictionary.encode( userDirectoryEntry.getFirstName() );
+				surnames[row] = surnameDictionary.encode( userDirectoryEntry.getSurname() );
+				setEmail( row, userDirectoryEntry.getEmail() );
+				allowsEmail.set( row, Boolean.TRUE.equals( userDirectoryEntry.getAllowsEmail() ) );
+				present.set( row );
+				userCount++;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void patch( final Long userId, final UserInfoPatch userInfoPatch ) {
+			lock.writeLock().lock();
+			try {
+				final int row = presentRow( userId );
+				if ( row < 0 ) {
+					return;
+				}
+				// Encoded before the old value is released, so an unchanged name keeps its code
+				if ( userInfoPatch.getFirstName() != null ) {
+					final int firstName = firstNameDictionary.encode( userInfoPatch.getFirstName() );
+					firstNameDictionary.release( firstNames[row] );
+					firstNames[row] = firstName;
+				}
+				if ( userInfoPatch.getSurname() != null ) {
+					final int surname = surnameDictionary.encode( userInfoPatch.getSurname() );
+					surnameDictionary.release( surnames[row] );
+					surnames[row] = surname;
+				}
+				if ( userInfoPatch.getEmail() != null ) {
+					setEmail( row, userInfoPatch.getEmail() );
+				}
+				if ( userInfoPatch.getAllowsEmail() != null ) {
+					allowsEmail.set( row, userInfoPatch.getAllowsEmail() );
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void setAllowsEmail( final Collection<Long> userIds, final boolean userAllowsEmail ) {
+			lock.writeLock().lock();
+			try {
+				for ( final Long userId : userIds ) {
+					final int row = presentRow( userId );
+					if ( row >= 0 ) {
+						allowsEmail.set( row, userAllowsEmail );
+					}
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		void remove( final Long userId ) {
+			lock.writeLock().lock();
+			try {
+				final int row = presentRow( userId );
+				if ( row < 0 ) {
+					return;
+				}
+				releaseRow( row );
+				final int removedRows = rowCount - userCount;
+				if ( removedRows >= MIN_COMPACTION_ROWS && removedRows > userCount ) {
+					compact();
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		UserStats toUserStats() {
+			lock.readLock().lock();
+			try {
+				final long allowingEmail = allowsEmail.cardinality();
+				return new UserStats( (long) userCount, allowingEmail, userCount - allowingEmail );
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Fills the chunk with the next users after the given id, fewer than it holds only once there
+		 * are no more.
+		 */
+		void copyChunk( final long afterId, final Boolean userAllowsEmail, final Chunk chunk ) {
+			lock.readLock().lock();
+			try {
+				final int found = find( afterId );
+				final int start = found >= 0 ? found + 1 : -found - 1;
+				final BitSet rows = Boolean.TRUE.equals( userAllowsEmail ) ? allowsEmail : present;
+				chunk.emailBytes = emailBytes;
+				chunk.size = 0;
+				for ( int row = rows.nextSetBit( start ); row >= 0 && row < rowCount
+						&& chunk.size < chunk.ids.length; row = rows.nextSetBit( row + 1 ) ) {
+					if ( Boolean.FALSE.equals( userAllowsEmail ) && allowsEmail.get( row ) ) {
+						continue;
+					}
+					chunk.ids[chunk.size] = ids[row];
+					chunk.firstNames[chunk.size] = firstNameDictionary.utf8( firstNames[row] );
+					chunk.surnames[chunk.size] = surnameDictionary.utf8( surnames[row] );
+					chunk.emailOffsets[chunk.size] = emailOffsets[row];
+					chunk.emailLengths[chunk.size] = emailLengths[row];
+					chunk.allowsEmail[chunk.size] = allowsEmail.get( row );
+					chunk.size++;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		private int find( final long userId ) {
+			return Arrays.binarySearch( ids, 0, rowCount, userId );
+		}
+
+		private int presentRow( final Long userId ) {
+			final int row = find( userId );
+			return row >= 0 && present.get( row ) ? row : -1;
+		}
+
+		private void insertRow( final int row, final long userId ) {
+			if ( rowCount == ids.length ) {
+				grow();
+			}
+			// Ids are allocated in increasing order, so only users committed out of order move any rows
+			for ( int from = rowCount - 1; from >= row; from-- ) {
+				moveRow( from, from + 1 );
+			}
+			ids[row] = userId;
+			emailLengths[row] = NO_EMAIL;
+			rowCount++;
+		}
+
+		private void releaseRow( final int row ) {
+			firstNameDictionary.release( firstNames[row] );
+			surnameDictionary.release( surnames[row] );
+			releaseEmail( row );
+			present.clear( row );
+			allowsEmail.clear( row );
+			userCount--;
+		}
+
+		private void compact() {
+			int to = 0;
+			for ( int from = present.nextSetBit( 0 ); from >= 0; from = present.nextSetBit( from + 1 ) ) {
+				if ( from != to ) {
+					moveRow( from, to );
+				}
+				to++;
+			}
+			present.clear( to, rowCount );
+			allowsEmail.clear( to, rowCount );
+			rowCount = to;
+		}
+
+		private void moveRow( final int from, final int to ) {
+			ids[to] = ids[from];
+			firstNames[to] = firstNames[from];
+			surnames[to] = surnames[from];
+			emailOffsets[to] = emailOffsets[from];
+			emailLengths[to] = emailLengths[from];
+			present.set( to, present.get( from ) );
+			allowsEmail.set( to, allowsEmail.get( from ) );
+		}
+
+		private void grow() {
+			final int capacity = ids.length * 2;
+			ids = Arrays.copyOf( ids, capacity );
+			firstNames = Arrays.copyOf( firstNames, capacity );
+			surnames = Arrays.copyOf( surnames, capacity );
+			emailOffsets = Arrays.copyOf( emailOffsets, capacity );
+			emailLengths = Arrays.copyOf( emailLengths, capacity );
+		}
+
+		private void setEmail( final int row, final String email ) {
+			releaseEmail( row );
+			if ( email == null ) {
+				return;
+			}
+			final byte[] utf8 = email.getBytes( StandardCharsets.UTF_8 );
+			if ( emailBytesUsed + utf8.length > emailBytes.length ) {
+				makeRoomForEmail( utf8.length );
+			}
+			System.arraycopy( utf8, 0, emailBytes, emailBytesUsed, utf8.length );
+			emailOffsets[row] = emailBytesUsed;
+			emailLengths[row] = utf8.length;
+			emailBytesUsed += utf8.length;
+			liveEmailBytes += utf8.length;
+		}
+
+		private void releaseEmail( final int row ) {
+			if ( emailLengths[row] != NO_EMAIL ) {
+				liveEmailBytes -= emailLengths[row];
+				emailLengths[row] = NO_EMAIL;
+			}
+		}
+
+		// Always into a new buffer, as listings may still be reading the current one
+		private void makeRoomForEmail( final int length ) {
+			if ( emailBytesUsed - liveEmailBytes <= liveEmailBytes ) {
+				emailBytes = Arrays.copyOf( emailBytes, Math.max( emailBytes.length * 2, emailBytesUsed + length ) );
+				return;
+			}
+			final byte[] packed = new byte[Math.max( emailBytes.length, ( liveEmailBytes + length ) * 2 )];
+			int used = 0;
+			for ( int row = 0; row < rowCount; row++ ) {
+				if ( emailLengths[row] != NO_EMAIL ) {
+					System.arraycopy( emailBytes, emailOffsets[row], packed, used, emailLengths[row] );
+					emailOffsets[row] = used;
+					used += emailLengths[row];
+				}
+			}
+			emailBytes = packed;
+			emailBytesUsed = used;
+		}
+
+	}
+
+	/**
+	 * Gives each distinct value a small code, counting the rows using it so a value no user has any
+	 * longer is dropped and its code reused.
+	 */
+	static final class Dictionary {
+
+		static final int NO_VALUE = -1;
+
+		private static final int INITIAL_CAPACITY = 64;
+
+		private final Map<String, Integer> codes = new HashMap<>();
+
+		private String[] values = new String[INITIAL_CAPACITY];
+
+		// Kept encoded as well, so listings write the bytes as they are
+		private byte[][] utf8Values = new byte[INITIAL_CAPACITY][];
+
+		private int[] useCounts = new int[INITIAL_CAPACITY];
+
+		private int[] freeCodes = new int[INITIAL_CAPACITY];
+
+		private int freeCount;
+
+		private int codeCount;
+
+		int encode( final String value ) {
+			if ( value == null ) {
+				return NO_VALUE;
+			}
+			Integer code = codes.get( value );
+			if ( code == null ) {
+				code = freeCount > 0 ? freeCodes[--freeCount] : nextCode();
+				values[code] = value;
+				utf8Values[code] = value.getBytes( StandardCharsets.UTF_8 );
+				codes.put( value, code );
+			}
+			useCounts[code]++;
+			return code;
+		}
+
+		void release( final int code ) {
+			if ( code == NO_VALUE || --useCounts[code] > 0 ) {
+				return;
+			}
+			codes.remove( values[code] );
+			values[code] = null;
+			utf8Values[code] = null;
+			if ( freeCount == freeCodes.length ) {
+				freeCodes = Arrays.copyOf( freeCodes, freeCount * 2 );
+			}
+			freeCodes[freeCount++] = code;
+		}
+
+		byte[] utf8( final int code ) {
+			return code == NO_VALUE ? null : utf8Values[code];
+		}
+
+		private int nextCode() {
+			if ( codeCount == values.length ) {
+				final int capacity = codeCount * 2;
+				values = Arrays.copyOf( values, capacity );
+				utf8Values = Arrays.copyOf( utf8Values, capacity );
+				useCounts = Arrays.copyOf( useCounts, capacity );
+			}
+			return codeCount++;
+		}
+
+	}
+
+}
@@ -0,0 +1,349 @@
+package com.drybro.userinfo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserImportProgress;
+import com.drybro.userinfo.model.UserImportRejection;
+import com.drybro.userinfo.model.UserInfo;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Imports users from CSV files too large to hold in memory or to send through create-users.
+ * <p>
+ * The file is read a batch at a time. Each batch is validated, and its users given passwords, on a
+ * pool of validation threads while earlier batches are written in the chunked transactions of
+ * create-users. Reading pauses once {@code maxBatchesInFlight} batches are waiting to be written,
+ * so memory stays bounded whatever the size of the file.
+ * <p>
+ * Duplicate emails are checked within a batch up front. Duplicates of users stored before, including
+ * by earlier batches, are caught by the unique email index when the batch is written.
+ */
+@Slf4j
+@Service
+public class UserImportService {
+
+	public static final List<String> COLUMNS = List.of( "firstName", "surname", "email", "allowsEmail" );
+
+	private final UserService userService;
+
+	private final UserInfoProperties.Import importProperties;
+
+	private final int batchSize;
+
+	private final ObjectReader rowReader = new CsvMapper().readerFor( String[].class )
+			.withFeatures( CsvParser.Feature.WRAP_AS_ARRAY, CsvParser.Feature.SKIP_EMPTY_LINES );
+
+	// One import runs at a time, later ones queue behind it
+	private final ExecutorService importExecutor = Executors.newSingleThreadExecutor(
+			Thread.ofPlatform().name( "user-import" ).daemon().factory() );
+
+	private final ExecutorService validationExecutor;
+
+	private final Cache<String, ImportJob> importJobs;
+
+	public UserImportService( final UserInfoProperties userInfoProperties, final UserService userService ) {
+		this.userService = userService;
+		this.importProperties = userInfoProperties.getCsvImport();
+		this.batchSize = userInfoProperties.getBulk().getChunkSize();
+		this.validationExecutor = Executors.newFixedThreadPool( importProperties.getValidationThreads(),
+				Thread.ofPlatform().name( "user-import-validation-", 0 ).daemon().factory() );
+		this.importJobs = Caffeine.newBuilder()
+				.expireAfterWrite( importProperties.getJobRetention() )
+				.build();
+	}
+
+	@PreDestroy
+	public void stop() {
+		importExecutor.shutdownNow();
+		validationExecutor.shutdownNow();
+	}
+
+	/**
+	 * Copies the CSV to a temporary file, so the upload can be acknowledged straight away, and queues
+	 * it to be imported in the background.
+	 */
+	public UserImportProgress startImport( final InputStream csv ) throws IOException {
+		final Path spooledCsv = Files.createTempFile( "user-import-", ".csv" );
+		try {
+			Files.copy( csv, spooledCsv, StandardCopyOption.REPLACE_EXISTING );
+		} catch ( final IOException ioe ) {
+			Files.deleteIfExists( spooledCsv );
+			throw ioe;
+		}
+		final ImportJob importJob = newImportJob();
+		importExecutor.execute( () -> {
+			try {
+				runImport( importJob, spooledCsv );
+			} finally {
+				try {
+					Files.deleteIfExists( spooledCsv );
+				} catch ( final IOException ioe ) {
+					log.warn( "Failed to delete the spooled import file {}", spooledCsv, ioe );
+				}
+			}
+		} );
+		return importJob.toProgress();
+	}
+
+	/**
+	 * Imports the file on the calling thread, returning once it has been read to the end.
+	 */
+	public UserImportProgress importUsers( final Path csv ) {
+		final ImportJob importJob = newImportJob();
+		runImport( importJob, csv );
+		return importJob.toProgress();
+	}
+
+	public Optional<UserImportProgress> getImportProgress( final String jobId ) {
+		return Optional.ofNullable( importJobs.getIfPresent( jobId ) )
+				.map( ImportJob::toProgress );
+	}
+
+	private ImportJob newImportJob() {
+		final ImportJob importJob = new ImportJob();
+		importJobs.put( importJob.id, importJob );
+		return importJob;
+	}
+
+	private void runImport( final ImportJob importJob, final Path csv ) {
+		importJob.start();
+		final Deque<CompletableFuture<ValidatedBatch>> batchesInFlight = new ArrayDeque<>();
+		try ( InputStream input = Files.newInputStream( csv );
+			  MappingIterator<String[]> rows = rowReader.readValues( input ) ) {
+			final int[] columnIndexes = readHeader( rows );
+			List<ImportRow> batch = new ArrayList<>( batchSize );
+			long rowNumber = 0;
+			while ( rows.hasNextValue() ) {
+				batch.add( new ImportRow( ++rowNumber, rows.nextValue() ) );
+				importJob.rowsRead.incrementAndGet();
+				if ( batch.size() == batchSize ) {
+					batchesInFlight.add( validateAsync( batch, columnIndexes ) );
+					batch = new ArrayList<>( batchSize );
+					if ( batchesInFlight.size() >= importProperties.getMaxBatchesInFlight() ) {
+						write( importJob, batchesInFlight.poll().join() );
+					}
+				}
+			}
+			if ( !batch.isEmpty() ) {
+				batchesInFlight.add( validateAsync( batch, columnIndexes ) );
+			}
+			while ( !batchesInFlight.isEmpty() ) {
+				write( importJob, batchesInFlight.poll().join() );
+			}
+			importJob.finish( UserImportProgress.Status.COMPLETED, null );
+			log.info( "Imported {} users from {} rows of {}, rejecting {}", importJob.usersImported,
+					importJob.rowsRead, csv, importJob.rowsRejected );
+		} catch ( final IOException | RuntimeException e ) {
+			batchesInFlight.forEach( future -> future.cancel( false ) );
+			final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			importJob.finish( UserImportProgress.Status.FAILED, cause.getMessage() );
+			log.warn( "Failed to import users from {} after {} rows", csv, importJob.rowsRead, cause );
+		}
+		// Restarts the retention period from when the import finished
+		importJobs.put( importJob.id, importJob );
+	}
+
+	/**
+	 * @return the position of each of {@link #COLUMNS} in a row, columns may be in any order
+	 */
+	private int[] readHeader( final MappingIterator<String[]> rows ) throws IOException {
+		if ( !rows.hasNextValue() ) {
+			throw new IllegalArgumentException( "The CSV file is empty" );
+		}
+		final Map<String, Integer> positions = new HashMap<>();
+		final String[] header = rows.nextValue();
+		for ( int position = 0; position < header.length; position++ ) {
+			positions.put( header[position].trim().toLowerCase( Locale.ROOT ), position );
+		}
+		final int[] columnIndexes = new int[COLUMNS.size()];
+		final List<String> missingColumns = new ArrayList<>();
+		for ( int column = 0; column < COLUMNS.size(); column++ ) {
+			final Integer position = positions.get( COLUMNS.get( column ).toLowerCase( Locale.ROOT ) );
+			if ( position == null ) {
+				missingColumns.add( COLUMNS.get( column ) );
+			} else {
+				columnIndexes[column] = position;
+			}
+		}
+		if ( !missingColumns.isEmpty() ) {
+			throw new IllegalArgumentException( "The CSV header is missing the columns " + missingColumns );
+		}
+		return columnIndexes;
+	}
+
+	private CompletableFuture<ValidatedBatch> validateAsync( final List<ImportRow> batch,
+			final int[] columnIndexes ) {
+		return CompletableFuture.supplyAsync( () -> validate( batch, columnIndexes ), validationExecutor );
+	}
+
+	private ValidatedBatch validate( final List<ImportRow> batch, final int[] columnIndexes ) {
+		final ValidatedBatch validatedBatch = new ValidatedBatch( batch.size() );
+		final Set<String> emailsInBatch = new HashSet<>();
+		for ( final ImportRow row : batch ) {
+			final List<String> errors = new ArrayList<>();
+			final UserInfo userInfo = toUserInfo( row.values(), columnIndexes, errors );
+			if ( errors.isEmpty() ) {
+				errors.addAll( userService.prepareNewUser( userInfo, emailsInBatch ) );
+			}
+			if ( errors.isEmpty() ) {
+				validatedBatch.users.add( userInfo );
+				validatedBatch.rowNumbers.add( row.number() );
+			} else {
+				validatedBatch.rejections.add( new UserImportRejection( row.number(), errors ) );
+			}
+		}
+		return validatedBatch;
+	}
+
+	private static UserInfo toUserInfo( final String[] values, final int[] columnIndexes,
+			final List<String> errors ) {
+		final String allowsEmail = value( values, columnIndexes[3] );
+		final Boolean parsedAllowsEmail;
+		if ( allowsEmail == null ) {
+			parsedAllowsEmail = null;
+		} else if ( allowsEmail.equalsIgnoreCase( "true" ) || allowsEmail.equalsIgnoreCase( "false" ) ) {
+			parsedAllowsEmail = Boolean.valueOf( allowsEmail );
+		} else {
+			errors.add( "Allows email must be true or false" );
+			return null;
+		}
+		return new UserInfo( null, value( values, columnIndexes[0] ), value( values, columnIndexes[1] ),
+				value( values, columnIndexes[2] ), null, parsedAllowsEmail );
+	}
+
+	// Missing and empty cells are both read as absent, so validation reports them as not provided
+	private static String value( final String[] values, final int index ) {
+		if ( index >= values.length ) {
+			return null;
+		}
+		final String value = values[index].trim();
+		return value.isEmpty() ? null : value;
+	}
+
+	private void write( final ImportJob importJob, final ValidatedBatch validatedBatch ) {
+		validatedBatch.rejections.forEach( importJob::reject );
+		if ( validatedBatch.users.isEmpty() ) {
+			return;
+		}
+		final UserCreationResult[] results = new UserCreationResult[validatedBatch.users.size()];
+		userService.saveValidatedUsers( validatedBatch.users,
+				IntStream.range( 0, results.length ).boxed().toList(), results );
+		for ( int index = 0; index < results.length; index++ ) {
+			if ( results[index].isSuccess() ) {
+				importJob.usersImported.incrementAndGet();
+			} else {
+				importJob.reject( new UserImportRejection( validatedBatch.rowNumbers.get( index ),
+						results[index].getErrors() ) );
+			}
+		}
+	}
+
+	private record ImportRow( long number, String[] values ) {
+	}
+
+	private static final class ValidatedBatch {
+
+		private final List<UserInfo> users;
+
+		private final List<Long> rowNumbers;
+
+		private final List<UserImportRejection> rejections = new ArrayList<>();
+
+		private ValidatedBatch( final int batchSize ) {
+			this.users = new ArrayList<>( batchSize );
+			this.rowNumbers = new ArrayList<>( batchSize );
+		}
+
+	}
+
+	private final class ImportJob {
+
+		private final String id = UUID.randomUUID().toString();
+
+		private final AtomicLong rowsRead = new AtomicLong();
+
+		private final AtomicLong usersImported = new AtomicLong();
+
+		private final AtomicLong rowsRejected = new AtomicLong();
+
+		private final Queue<UserImportRejection> rejections = new ConcurrentLinkedQueue<>();
+
+		private volatile UserImportProgress.Status status = UserImportProgress.Status.QUEUED;
+
+		private volatile Instant startedAt;
+
+		private volatile Instant finishedAt;
+
+		private volatile String error;
+
+		private void start() {
+			startedAt = Instant.now();
+			status = UserImportProgress.Status.RUNNING;
+		}
+
+		private void reject( final UserImportRejection rejection ) {
+			if ( rowsRejected.incrementAndGet() <= importProperties.getMaxReportedRejections() ) {
+				rejections.add( rejection );
+			}
+		}
+
+		private void finish( final UserImportProgress.Status finalStatus, final String failure ) {
+			error = failure;
+			finishedAt = Instant.now();
+			status = finalStatus;
+		}
+
+		private UserImportProgress toProgress() {
+			return UserImportProgress.builder()
+					.jobId( id )
+					.status( status )
+					.rowsRead( rowsRead.get() )
+					.usersImported( usersImported.get() )
+					.rowsRejected( rowsRejected.get() )
+					.rejections( List.copyOf( rejections ) )
+					.startedAt( startedAt )
+					.finishedAt( finishedAt )
+					.error( error )
+					.build();
+		}
+
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.drybro.userinfo.service;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+import org.springframework.stereotype.Component;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bounded read-through cache of users. Entries are held once, keyed by id, with a secondary
+ * normalized email index pointing at the same entry so both lookups share one copy and one eviction.
+ * <p>
+ * A load takes an invalidation stamp before reading the database and only caches what it read if
+ * no eviction happened since, so a load that raced with a write cannot cache the user as it was
+ * before the write.
+ */
+@Component
+public class UserInfoCache {
+
+	public static final String CACHE_NAME = "userInfo";
+
+	// Stamps are striped by id, so a write only spoils loads of users sharing its stripe
+	private static final int STAMP_STRIPES = 1_024;
+
+	private final boolean enabled;
+
+	private final AtomicLongArray invalidationStamps = new AtomicLongArray( STAMP_STRIPES );
+
+	private final AtomicLong anyInvalidationStamp = new AtomicLong();
+
+	private final Cache<Long, UserInfo> usersById;
+
+	private final Map<String, Long> userIdsByEmail = new ConcurrentHashMap<>();
+
+	public UserInfoCache( final UserInfoProperties userInfoProperties, final MeterRegistry meterRegistry ) {
+		final UserInfoProperties.Cache cacheProperties = userInfoProperties.getCache();
+		this.enabled = cacheProperties.isEnabled();
+		this.usersById = Caffeine.newBuilder()
+				.maximumSize( cacheProperties.getMaximumSize() )
+				.expireAfterWrite( cacheProperties.getExpireAfterWrite() )
+				.executor( Runnable::run )
+				.removalListener( ( Long userId, UserInfo userInfo, RemovalCause cause ) -> {
+					if ( userInfo != null && cause != RemovalCause.REPLACED ) {
+						userIdsByEmail.remove( UserInfo.normalizeEmail( userInfo.getEmail() ), userId );
+					}
+				} )
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor( meterRegistry, usersById, CACHE_NAME );
+	}
+
+	public Optional<UserInfo> getById( final Long userId ) {
+		if ( !enabled || userId == null ) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable( usersById.getIfPresent( userId ) );
+	}
+
+	public Optional<UserInfo> getByEmail( final String email ) {
+		if ( !enabled || email == null ) {
+			return Optional.empty();
+		}
+		final String normalizedEmail = UserInfo.normalizeEmail( email );
+		final Long userId = userIdsByEmail.get( normalizedEmail );
+		if ( userId == null ) {
+			return Optional.empty();
+		}
+		return getById( userId ).filter(
+				userInfo -> normalizedEmail.equals( UserInfo.normalizeEmail( userInfo.getEmail() ) ) );
+	}
+
+	public UserInfo put( final UserInfo userInfo ) {
+		if ( !enabled || userInfo == null || userInfo.getId() == null ) {
+			return userInfo;
+		}
+		final UserInfo previous = usersById.asMap().put( userInfo.getId(), userInfo );
+		final String normalizedEmail = UserInfo.normalizeEmail( userInfo.getEmail() );
+		if ( previous != null && !normalizedEmail.equals( UserInfo.normalizeEmail( previous.getEmail() ) ) ) {
+			userIdsByEmail.remove( UserInfo.normalizeEmail( previous.getEmail() ), previous.getId() );
+		}
+		userIdsByEmail.put( normalizedEmail, userInfo.getId() );
+		return userInfo;
+	}
+
+	/**
+	 * Taken before loading a user by id, to be handed to {@link #putIfNotInvalidated}.
+	 */
+	public long invalidationStamp( final Long userId ) {
+		return invalidationStamps.get( stripe( userId ) );
+	}
+
+	/**
+	 * Taken before loading a user by email, whose id is not known until it has been loaded, to be
+	 * handed to {@link #putIfNoneInvalidated}.
+	 */
+	public long anyInvalidationStamp() {
+		return anyInvalidationStamp.get();
+	}
+
+	/**
+	 * Caches a loaded user unless it was evicted since the stamp was taken.
+	 */
+	public UserInfo putIfNotInvalidated( final UserInfo userInfo, final long stamp ) {
+		if ( userInfo == null || userInfo.getId() == null ) {
+			return userInfo;
+		}
+		final int stripe = stripe( userInfo.getId() );
+		return putIfStamped( userInfo, () -> invalidationStamps.get( stripe ) == stamp );
+	}
+
+	/**
+	 * Caches a loaded user unless any user was evicted since the stamp was taken.
+	 */
+	public UserInfo putIfNoneInvalidated( final UserInfo userInfo, final long stamp ) {
+		return putIfStamped( userInfo, () -> anyInvalidationStamp.get() == stamp );
+	}
+
+	// Checked again after the put, as an eviction between the first check and the put would miss it
+	private UserInfo putIfStamped( final UserInfo userInfo, final BooleanSupplier unchanged ) {
+		if ( !enabled || !unchanged.getAsBoolean() ) {
+			return userInfo;
+		}
+		put( userInfo );
+		if ( userInfo != null && userInfo.getId() != null && !unchanged.getAsBoolean() ) {
+			usersById.asMap().remove( userInfo.getId(), userInfo );
+		}
+		return userInfo;
+	}
+
+	/**
+	 * Stamps are bumped before the entry goes, so a load putting its user in between sees the bump.
+	 */
+	public void evict( final Long userId ) {
+		if ( enabled && userId != null ) {
+			invalidationStamps.incrementAndGet( stripe( userId ) );
+			anyInvalidationStamp.incrementAndGet();
+			usersById.invalidate( userId );
+		}
+	}
+
+	private static int stripe( final Long userId ) {
+		return userId == null ? 0 : Math.floorMod( Long.hashCode( userId ), STAMP_STRIPES );
+	}
+
+	public void evictAll() {
+		for ( int stripe = 0; stripe < STAMP_STRIPES; stripe++ ) {
+			invalidationStamps.incrementAndGet( stripe );
+		}
+		anyInvalidationStamp.incrementAndGet();
+		usersById.invalidateAll();
+		userIdsByEmail.clear();
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.drybro.userinfo.service;
+
+import java.util.Collection;
+
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+
+/**
+ * Notified by {@link UserService} after each write has been committed, so in-memory structures
+ * derived from the users table can be kept current without re-reading it.
+ */
+public interface UserInfoChangeListener {
+
+	default void onUserCreated( final UserInfo userInfo ) {
+	}
+
+	/**
+	 * @param userInfo the user as the write left it, version included
+	 * @param userInfoPatch the fields that were written, null fields were left unchanged
+	 * @param allowsEmailChanged whether the user's email preference differs from before the write
+	 */
+	default void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+	}
+
+	/**
+	 * @param users the users the write applied to, read back in its transaction
+	 * @param changedCount how many of them held the other preference before the write
+	 */
+	default void onEmailPreferencesUpdated( final Collection<UserInfo> users, final Boolean allowsEmail,
+			final int changedCount ) {
+	}
+
+	/**
+	 * @param userInfo the user as it was when deleted
+	 */
+	default void onUserDeleted( final UserInfo userInfo ) {
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.drybro.userinfo.service;
+
+import org.springframework.stereotype.Component;
+
+import com.drybro.userinfo.model.UserEmailPreferencesView;
+import com.drybro.userinfo.model.UserEmailView;
+import com.drybro.userinfo.model.UserInfo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * One {@link SingleFlight} per kind of user lookup, so concurrent reads of the same user share a
+ * single database query.
+ */
+@Component
+public class UserLookupCoalescer {
+
+	public static final String COALESCED_METRIC = "user.info.lookups.coalesced";
+
+	private final SingleFlight<Long, UserInfo> usersById;
+
+	private final SingleFlight<String, UserInfo> usersByEmail;
+
+	private final SingleFlight<Long, UserEmailView> emailsById;
+
+	private final SingleFlight<Long, UserEmailPreferencesView> emailPreferencesById;
+
+	public UserLookupCoalescer( final MeterRegistry meterRegistry ) {
+		this.usersById = new SingleFlight<>( coalescedCounter( meterRegistry, "user_by_id" ) );
+		this.usersByEmail = new SingleFlight<>( coalescedCounter( meterRegistry, "user_by_email" ) );
+		this.emailsById = new SingleFlight<>( coalescedCounter( meterRegistry, "email_by_id" ) );
+		this.emailPreferencesById = new SingleFlight<>(
+				coalescedCounter( meterRegistry, "email_preferences_by_id" ) );
+	}
+
+	public SingleFlight<Long, UserInfo> usersById() {
+		return usersById;
+	}
+
+	/**
+	 * Keyed by normalized email.
+	 */
+	public SingleFlight<String, UserInfo> usersByEmail() {
+		return usersByEmail;
+	}
+
+	public SingleFlight<Long, UserEmailView> emailsById() {
+		return emailsById;
+	}
+
+	public SingleFlight<Long, UserEmailPreferencesView> emailPreferencesById() {
+		return emailPreferencesById;
+	}
+
+	/**
+	 * Called once a write of the user has committed, before it is acknowledged, so lookups of the
+	 * user arriving after the write start their own load.
+	 *
+	 * @param normalizedEmails the emails the user had before and after the write
+	 */
+	public void forget( final Long userId, final String... normalizedEmails ) {
+		usersById.forget( userId );
+		emailsById.forget( userId );
+		emailPreferencesById.forget( userId );
+		for ( final String normalizedEmail : normalizedEmails ) {
+			usersByEmail.forget( normalizedEmail );
+		}
+	}
+
+	private static Counter coalescedCounter( final MeterRegistry meterRegistry, final String lookup ) {
+		return Counter.builder( COALESCED_METRIC )
+				.description( "Lookups that waited for an identical lookup already in flight" )
+				.tag( "lookup", lookup )
+				.register( meterRegistry );
+	}
+
+}
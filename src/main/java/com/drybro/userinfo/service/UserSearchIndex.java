@@ -0,0 +1,367 @@
+package com.drybro.userinfo.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPage;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserSummary;
+import com.drybro.userinfo.repository.UserRepository;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory prefix index over the first name, surname and email of every user.
+ * <p>
+ * Each field is split into lower cased tokens held in a sorted map, so the tokens starting with a
+ * search term are one contiguous range. Every token points at the ids of its users in id order,
+ * and a page of matches is taken by merging those id sets from the cursor onwards, which stops as
+ * soon as the page is full rather than collecting every match.
+ */
+@Slf4j
+@Component
+public class UserSearchIndex implements UserInfoChangeListener {
+
+	private static final Pattern TOKEN_SEPARATOR = Pattern.compile( "[^\\p{L}\\p{N}]+" );
+
+	private final boolean enabled;
+
+	private final Duration startupDelay;
+
+	private final UserRepository userRepository;
+
+	private final UserShards userShards;
+
+	private final TransactionTemplate readOnlyTransactionTemplate;
+
+	private final TaskScheduler taskScheduler;
+
+	// Changes hold the read lock so the initial build can replay those it raced with
+	private final ReadWriteLock buildLock = new ReentrantReadWriteLock();
+
+	private volatile Index current;
+
+	private ConcurrentLinkedQueue<Consumer<Index>> changesDuringBuild;
+
+	public UserSearchIndex( final UserInfoProperties userInfoProperties, final UserRepository userRepository,
+			final UserShards userShards, final PlatformTransactionManager transactionManager,
+			final TaskScheduler taskScheduler ) {
+		this.enabled = userInfoProperties.getSearch().isEnabled();
+		this.startupDelay = userInfoProperties.getSearch().getStartupDelay();
+		this.userRepository = userRepository;
+		this.userShards = userShards;
+		this.readOnlyTransactionTemplate = new TransactionTemplate( transactionManager );
+		this.readOnlyTransactionTemplate.setReadOnly( true );
+		this.taskScheduler = taskScheduler;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleBuild() {
+		if ( enabled ) {
+			taskScheduler.schedule( this::build, Instant.now().plus( startupDelay ) );
+		}
+	}
+
+	/**
+	 * Loads every user into a fresh index. Changes made while the table is streamed are applied to
+	 * the new index once streaming completes, so none are lost.
+	 */
+	public void build() {
+		final Index building = new Index();
+		buildLock.writeLock().lock();
+		try {
+			changesDuringBuild = new ConcurrentLinkedQueue<>();
+		} finally {
+			buildLock.writeLock().unlock();
+		}
+		try {
+			userShards.forEachShard( () -> readOnlyTransactionTemplate.executeWithoutResult( status -> {
+				try ( Stream<UserSummary> users = userRepository.streamAllSummaries() ) {
+					users.forEach( building::put );
+				}
+			} ) );
+			buildLock.writeLock().lock();
+			try {
+				changesDuringBuild.forEach( change -> change.accept( building ) );
+				current = building;
+			} finally {
+				changesDuringBuild = null;
+				buildLock.writeLock().unlock();
+			}
+			log.info( "Built the user search index from {} users", building.size() );
+		} catch ( final RuntimeException re ) {
+			buildLock.writeLock().lock();
+			try {
+				changesDuringBuild = null;
+			} finally {
+				buildLock.writeLock().unlock();
+			}
+			log.warn( "Failed to build the user search index", re );
+		}
+	}
+
+	/**
+	 * @param query  whitespace separated terms, each of which must prefix a token of a matching user
+	 * @return users matching every term with an id above the cursor, in id order
+	 */
+	public UserInfoPage search( final String query, final Long afterId, final int pageSize ) {
+		final Index index = current;
+		if ( !enabled || index == null ) {
+			throw new ResponseStatusException( HttpStatus.SERVICE_UNAVAILABLE, "User search is not available" );
+		}
+		return index.search( tokenize( query ), afterId, pageSize );
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		final UserSummary userSummary = new UserSummary( userInfo.getId(), userInfo.getFirstName(),
+				userInfo.getSurname(), userInfo.getEmail() );
+		applyChange( index -> index.put( userSummary ) );
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+		if ( userInfoPatch.getFirstName() != null || userInfoPatch.getSurname() != null
+				|| userInfoPatch.getEmail() != null ) {
+			applyChange( index -> index.patch( userInfo.getId(), userInfoPatch ) );
+		}
+	}
+
+	@Override
+	public void onUserDeleted( final UserInfo userInfo ) {
+		final Long userId = userInfo.getId();
+		applyChange( index -> index.remove( userId ) );
+	}
+
+	private void applyChange( final Consumer<Index> change ) {
+		if ( !enabled ) {
+			return;
+		}
+		buildLock.readLock().lock();
+		try {
+			final Index index = current;
+			if ( index != null ) {
+				change.accept( index );
+			}
+			if ( changesDuringBuild != null ) {
+				changesDuringBuild.add( change );
+			}
+		} finally {
+			buildLock.readLock().unlock();
+		}
+	}
+
+	static Set<String> tokenize( final String... values ) {
+		final Set<String> tokens = new LinkedHashSet<>();
+		for ( final String value : values ) {
+			if ( value == null ) {
+				continue;
+			}
+			for ( final String token : TOKEN_SEPARATOR.split( value.toLowerCase( Locale.ROOT ) ) ) {
+				if ( !token.isEmpty() ) {
+					tokens.add( token );
+				}
+			}
+		}
+		return tokens;
+	}
+
+	static final class Index {
+
+		private final Map<Long, UserSummary> usersById = new ConcurrentHashMap<>();
+
+		private final NavigableMap<String, NavigableSet<Long>> userIdsByToken = new ConcurrentSkipListMap<>();
+
+		int size() {
+			return usersById.size();
+		}
+
+		void put( final UserSummary userSummary ) {
+			// Compute serialises changes to the same user while its tokens are swapped
+			usersById.compute( userSummary.getId(), ( userId, previous ) -> {
+				if ( previous != null ) {
+					unlinkTokens( previous );
+				}
+				linkTokens( userSummary );
+				return userSummary;
+			} );
+		}
+
+		void patch( final Long userId, final UserInfoPatch userInfoPatch ) {
+			usersById.computeIfPresent( userId, ( id, previous ) -> {
+				final UserSummary patched = new UserSummary( id,
+						userInfoPatch.getFirstName() != null ? userInfoPatch.getFirstName() : previous.getFirstName(),
+						userInfoPatch.getSurname() != null ? userInfoPatch.getSurname() : previous.getSurname(),
+						userInfoPatch.getEmail() != null ? userInfoPatch.getEmail() : previous.getEmail() );
+				unlinkTokens( previous );
+				linkTokens( patched );
+				return patched;
+			} );
+		}
+
+		void remove( final Long userId ) {
+			usersById.computeIfPresent( userId, ( id, previous ) -> {
+				unlinkTokens( previous );
+				return null;
+			} );
+		}
+
+		UserInfoPage search( final Set<String> terms, final Long afterId, final int pageSize ) {
+			final List<UserInfo> users = new ArrayList<>( pageSize );
+			if ( terms.isEmpty() ) {
+				return new UserInfoPage( users, null );
+			}
+			// Candidates come from the rarest looking term, the longest, and are checked against the rest
+			final String leadingTerm = terms.stream().max( ( a, b ) -> a.length() - b.length() ).orElseThrow();
+			final Iterator<Long> candidates = idsWithTokenPrefix( leadingTerm, afterId );
+			while ( candidates.hasNext() ) {
+				final UserSummary userSummary = usersById.get( candidates.next() );
+				if ( userSummary == null || !matchesAll( userSummary, terms ) ) {
+					continue;
+				}
+				if ( users.size() == pageSize ) {
+					return new UserInfoPage( users, users.get( pageSize - 1 ).getId() );
+				}
+				users.add( userSummary.toUserInfo() );
+			}
+			return new UserInfoPage( users, null );
+		}
+
+		private Iterator<Long> idsWithTokenPrefix( final String prefix, final Long afterId ) {
+			final PriorityQueue<PeekingIterator> queue = new PriorityQueue<>();
+			for ( final NavigableSet<Long> userIds : userIdsByToken.subMap( prefix, true,
+					prefix + Character.MAX_VALUE, false ).values() ) {
+				final PeekingIterator iterator = new PeekingIterator( userIds.tailSet( afterId, false ).iterator() );
+				if ( iterator.hasNext() ) {
+					queue.add( iterator );
+				}
+			}
+			return new Iterator<>() {
+
+				private Long last;
+
+				@Override
+				public boolean hasNext() {
+					// A user with several tokens under the prefix shows up once per token
+					while ( !queue.isEmpty() && queue.peek().peek().equals( last ) ) {
+						advance();
+					}
+					return !queue.isEmpty();
+				}
+
+				@Override
+				public Long next() {
+					hasNext();
+					last = advance();
+					return last;
+				}
+
+				private Long advance() {
+					final PeekingIterator iterator = queue.poll();
+					final Long userId = iterator.next();
+					if ( iterator.hasNext() ) {
+						queue.add( iterator );
+					}
+					return userId;
+				}
+
+			};
+		}
+
+		private static boolean matchesAll( final UserSummary userSummary, final Set<String> terms ) {
+			final Set<String> tokens = tokensOf( userSummary );
+			for ( final String term : terms ) {
+				if ( tokens.stream().noneMatch( token -> token.startsWith( term ) ) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Set<String> tokensOf( final UserSummary userSummary ) {
+			return tokenize( userSummary.getFirstName(), userSummary.getSurname(), userSummary.getEmail() );
+		}
+
+		private void linkTokens( final UserSummary userSummary ) {
+			for ( final String token : tokensOf( userSummary ) ) {
+				userIdsByToken.computeIfAbsent( token, key -> new ConcurrentSkipListSet<>() )
+						.add( userSummary.getId() );
+			}
+		}
+
+		// Emptied id sets are left in place, removing them could race with a concurrent link
+		private void unlinkTokens( final UserSummary userSummary ) {
+			for ( final String token : tokensOf( userSummary ) ) {
+				final NavigableSet<Long> userIds = userIdsByToken.get( token );
+				if ( userIds != null ) {
+					userIds.remove( userSummary.getId() );
+				}
+			}
+		}
+
+	}
+
+	private static final class PeekingIterator implements Comparable<PeekingIterator> {
+
+		private final Iterator<Long> iterator;
+
+		private Long next;
+
+		PeekingIterator( final Iterator<Long> iterator ) {
+			this.iterator = iterator;
+			this.next = iterator.hasNext() ? iterator.next() : null;
+		}
+
+		boolean hasNext() {
+			return next != null;
+		}
+
+		Long peek() {
+			return next;
+		}
+
+		Long next() {
+			final Long current = next;
+			next = iterator.hasNext() ? iterator.next() : null;
+			return current;
+		}
+
+		@Override
+		public int compareTo( final PeekingIterator other ) {
+			return Long.compare( next, other.next );
+		}
+
+	}
+
+}
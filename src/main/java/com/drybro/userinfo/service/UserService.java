@@ -1,77 +1,728 @@
 package com.drybro.userinfo.service;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.NoSuchElementException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.exception.DuplicateEmailException;
+import com.drybro.userinfo.exception.UserNotFoundException;
+import com.drybro.userinfo.exception.VersionConflictException;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserEmailPreferencesView;
+import com.drybro.userinfo.model.UserEmailView;
 import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPage;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserPatchResult;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.model.UserVersionView;
 import com.drybro.userinfo.repository.UserRepository;
 
+import jakarta.persistence.EntityManager;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
 import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 @Service
 @AllArgsConstructor
 public class UserService {
 
+	// Unique or primary key violation, as reported by H2 and PostgreSQL
+	private static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
+
+	// Bulk chunks that keep clashing with concurrent creations give up after this many inserts
+	private static final int MAX_CHUNK_ATTEMPTS = 3;
+
 	private final UserRepository userRepository;
 
+	private final EntityManager entityManager;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final Validator validator;
+
+	private final UserInfoProperties userInfoProperties;
+
+	private final UserInfoCache userInfoCache;
+
+	private final PasswordGeneratorService passwordGeneratorService;
+
+	private final EmailBloomFilter emailBloomFilter;
+
+	private final UserSearchIndex userSearchIndex;
+
+	private final UserStatistics userStatistics;
+
+	private final UserLookupCoalescer userLookupCoalescer;
+
+	private final ReplicaReads replicaReads;
+
+	private final UserShards userShards;
+
+	private final UserShardDirectory userShardDirectory;
+
+	private final EmailPreferencesWriteBehind emailPreferencesWriteBehind;
+
+	private final List<UserInfoChangeListener> changeListeners;
+
 	public Set<UserInfo> returnAllUsersAsSet() {
 		final Set<UserInfo> users = new HashSet<>();
-		userRepository.findAll().forEach( users::add );
+		userShards.onEveryShard( () -> replicaReads.read( userRepository::findAll ) )
+				.forEach( shardUsers -> shardUsers.forEach( users::add ) );
 		return users;
 	}
 
-	public void saveUserInDatabase( final UserInfo userInfo ) {
-		userInfo.setPassword( PasswordGeneratorService.generatePassword() );
-		userRepository.save( userInfo );
+	public UserInfoPage returnUsersAfterId( final Long afterId, final int pageSize ) {
+		// Fetch one extra row so we know whether another page exists without a count query. Every shard
+		// is asked for a full page, as any of them may hold the next ids.
+		final List<UserInfo> users = new ArrayList<>();
+		userShards.onEveryShard( () -> userRepository.findByIdGreaterThanOrderByIdAsc( afterId,
+				PageRequest.of( 0, pageSize + 1 ) ) ).forEach( users::addAll );
+		users.sort( Comparator.comparing( UserInfo::getId ) );
+		if ( users.size() <= pageSize ) {
+			return new UserInfoPage( users, null );
+		}
+		final List<UserInfo> page = List.copyOf( users.subList( 0, pageSize ) );
+		return new UserInfoPage( page, page.get( pageSize - 1 ).getId() );
 	}
 
-	public UserInfo findUserByEmail( final String email ) {
+	/**
+	 * Finds users whose names or email have a word starting with each term of the query, served
+	 * entirely from the in-memory search index.
+	 */
+	public UserInfoPage searchUsers( final String query, final Long afterId, final int pageSize ) {
+		return userSearchIndex.search( query, afterId, pageSize );
+	}
+
+	/**
+	 * Served from counts kept in memory rather than counted from the table.
+	 */
+	public UserStats getUserStats() {
+		return userStatistics.getUserStats();
+	}
+
+	/**
+	 * Streams every user in id order, merging the shards' streams when sharded.
+	 */
+	public void exportAllUsers( final Consumer<UserInfo> userConsumer ) {
+		userShards.streamMerged( () -> userRepository.streamAllOrderedById().map( this::detached ),
+				Comparator.comparing( UserInfo::getId ), userConsumer );
+	}
+
+	// Detach as we go so the persistence context does not grow with the table
+	private UserInfo detached( final UserInfo userInfo ) {
+		if ( entityManager.contains( userInfo ) ) {
+			entityManager.detach( userInfo );
+		}
+		return userInfo;
+	}
+
+	/**
+	 * Relies on the unique index over the normalized email to reject duplicates, rather than
+	 * checking for an existing user first. When sharded that is the email index, written first.
+	 */
+	public void saveUserInDatabase( final UserInfo userInfo ) {
+		userInfo.setNormalizedEmail( UserInfo.normalizeEmail( userInfo.getEmail() ) );
+		userInfo.setPassword( passwordGeneratorService.generatePassword() );
+		if ( userShards.isEnabled() ) {
+			userInfo.setId( userShardDirectory.nextUserId() );
+		}
+		if ( !userShardDirectory.indexEmail( userInfo.getNormalizedEmail(), userInfo.getId() ) ) {
+			throw DuplicateEmailException.forEmail( userInfo.getEmail() );
+		}
+		final UserInfo savedUserInfo;
 		try {
-			return userRepository.findUserInfoByEmail( email ).orElseThrow();
-		} catch ( final NoSuchElementException nsee ) {
-			throw new NoSuchElementException( "No user found with email address: " + email, nsee );
+			savedUserInfo = userInfoCache.put( userShards.onShardOf( userInfo.getId(),
+					() -> userRepository.save( userInfo ) ) );
+		} catch ( final RuntimeException re ) {
+			userShardDirectory.unindexEmail( userInfo.getNormalizedEmail(), userInfo.getId() );
+			if ( isDuplicateEmail( re ) ) {
+				throw DuplicateEmailException.forEmail( userInfo.getEmail() );
+			}
+			throw re;
 		}
+		// A lookup of the email that found nothing may still be in flight
+		userLookupCoalescer.forget( savedUserInfo.getId(), savedUserInfo.getNormalizedEmail() );
+		changeListeners.forEach( listener -> listener.onUserCreated( savedUserInfo ) );
+	}
+
+	/**
+	 * Validates and creates the given users, writing them in chunks with one transaction and one
+	 * set of batched INSERTs per chunk. A user that fails validation or clashes with an existing
+	 * email is reported in the results rather than failing the whole request.
+	 * <p>
+	 * Chunks are inserted optimistically, only a chunk rejected by the unique email index is retried
+	 * after querying which of its emails already exist.
+	 */
+	public List<UserCreationResult> saveUsersInDatabase( final List<UserInfo> userInfoList ) {
+		final UserCreationResult[] results = new UserCreationResult[userInfoList.size()];
+		final List<Integer> validIndexes = new ArrayList<>();
+		final Set<String> emailsInRequest = new HashSet<>();
+
+		for ( int index = 0; index < userInfoList.size(); index++ ) {
+			final List<String> errors = prepareNewUser( userInfoList.get( index ), emailsInRequest );
+			if ( errors.isEmpty() ) {
+				validIndexes.add( index );
+			} else {
+				results[index] = failedCreation( index, errors );
+			}
+		}
+
+		saveValidatedUsers( userInfoList, validIndexes, results );
+		return List.of( results );
+	}
+
+	/**
+	 * Writes the users at the given indexes, which must have been through
+	 * {@link #prepareNewUser(UserInfo, Set)}, filling in their results.
+	 */
+	public void saveValidatedUsers( final List<UserInfo> userInfoList, final List<Integer> validIndexes,
+			final UserCreationResult[] results ) {
+		final int chunkSize = userInfoProperties.getBulk().getChunkSize();
+		for ( int from = 0; from < validIndexes.size(); from += chunkSize ) {
+			final List<Integer> chunk = validIndexes.subList( from,
+					Math.min( from + chunkSize, validIndexes.size() ) );
+			final List<UserInfo> savedUsers = userShards.isEnabled()
+					? saveShardedChunk( userInfoList, chunk, results )
+					: saveUnshardedChunk( userInfoList, chunk, results );
+			savedUsers.forEach( userInfo -> {
+				userLookupCoalescer.forget( userInfo.getId(), userInfo.getNormalizedEmail() );
+				changeListeners.forEach( listener -> listener.onUserCreated( userInfo ) );
+			} );
+		}
+	}
+
+	/**
+	 * Validates a user about to be created and, when valid, gives it a generated password. Safe to
+	 * call from several threads as long as each passes its own set of emails.
+	 *
+	 * @param emailsInRequest normalized emails of the users already accepted alongside this one
+	 * @return the reasons the user cannot be created, empty when it can
+	 */
+	public List<String> prepareNewUser( final UserInfo userInfo, final Set<String> emailsInRequest ) {
+		if ( userInfo == null ) {
+			return List.of( "User info must be provided" );
+		}
+		final List<String> errors = new ArrayList<>();
+		for ( final ConstraintViolation<UserInfo> violation : validator.validate( userInfo ) ) {
+			errors.add( violation.getMessage() );
+		}
+		if ( errors.isEmpty() && !emailsInRequest.add( UserInfo.normalizeEmail( userInfo.getEmail() ) ) ) {
+			errors.add( "Email is duplicated in the request" );
+		}
+		if ( errors.isEmpty() ) {
+			userInfo.setPassword( passwordGeneratorService.generatePassword() );
+		}
+		return errors;
+	}
+
+	/**
+	 * Each time the unique email index rejects the chunk it is retried after querying which of its
+	 * emails exist, as users may have been created with them since the last query. A chunk still
+	 * rejected after a few attempts, or that fails for any other reason, has its users reported as
+	 * failed, so the results of the chunks already written are not lost.
+	 */
+	private List<UserInfo> saveUnshardedChunk( final List<UserInfo> userInfoList, final List<Integer> chunk,
+			final UserCreationResult[] results ) {
+		for ( int attempt = 1; ; attempt++ ) {
+			final boolean checkExistingEmails = attempt > 1;
+			try {
+				return transactionTemplate.execute(
+						status -> saveChunk( userInfoList, chunk, results, checkExistingEmails ) );
+			} catch ( final RuntimeException re ) {
+				if ( !isDuplicateEmail( re ) ) {
+					log.warn( "Failed to save chunk of {} users", chunk.size(), re );
+					return failedChunk( chunk, results );
+				}
+				if ( attempt == MAX_CHUNK_ATTEMPTS ) {
+					log.warn( "Chunk of {} users still clashed on email after {} attempts", chunk.size(), attempt );
+					return failedChunk( chunk, results );
+				}
+			}
+		}
+	}
+
+	private List<UserInfo> failedChunk( final List<Integer> chunk, final UserCreationResult[] results ) {
+		chunk.forEach( index -> results[index] = failedCreation( index, List.of( "The user could not be saved" ) ) );
+		return List.of();
+	}
+
+	private List<UserInfo> saveChunk( final List<UserInfo> userInfoList, final List<Integer> chunk,
+			final UserCreationResult[] results, final boolean checkExistingEmails ) {
+		final List<String> emails = new ArrayList<>( chunk.size() );
+		chunk.forEach( index -> emails.add( UserInfo.normalizeEmail( userInfoList.get( index ).getEmail() ) ) );
+		final Set<String> existingEmails = checkExistingEmails
+				? userRepository.findNormalizedEmailsIn( emails )
+				: Set.of();
+
+		final List<UserInfo> usersToSave = new ArrayList<>( chunk.size() );
+		final List<Integer> savedIndexes = new ArrayList<>( chunk.size() );
+		for ( int i = 0; i < chunk.size(); i++ ) {
+			final Integer index = chunk.get( i );
+			final UserInfo userInfo = userInfoList.get( index );
+			if ( existingEmails.contains( emails.get( i ) ) ) {
+				results[index] = failedCreation( index,
+						List.of( "A user with this email already exists" ) );
+				continue;
+			}
+			// Reset in case an earlier attempt at this chunk was rolled back after assigning them
+			userInfo.setId( null );
+			userInfo.setVersion( null );
+			userInfo.setNormalizedEmail( emails.get( i ) );
+			usersToSave.add( userInfo );
+			savedIndexes.add( index );
+		}
+
+		userRepository.saveAll( usersToSave );
+		entityManager.flush();
+		entityManager.clear();
+
+		for ( final Integer index : savedIndexes ) {
+			results[index] = succeededCreation( index, userInfoList.get( index ).getId() );
+		}
+		return usersToSave;
+	}
+
+	/**
+	 * Indexes the chunk's emails, which rejects those already in use on any shard, then writes the
+	 * rest to their shards with one transaction per shard. A shard that fails to write its users
+	 * releases their emails and reports them as failed, the other shards' users are kept.
+	 */
+	private List<UserInfo> saveShardedChunk( final List<UserInfo> userInfoList, final List<Integer> chunk,
+			final UserCreationResult[] results ) {
+		final Map<String, Long> userIdsByEmail = new HashMap<>();
+		for ( final Integer index : chunk ) {
+			final UserInfo userInfo = userInfoList.get( index );
+			userInfo.setId( userShardDirectory.nextUserId() );
+			userInfo.setVersion( null );
+			userInfo.setNormalizedEmail( UserInfo.normalizeEmail( userInfo.getEmail() ) );
+			userIdsByEmail.put( userInfo.getNormalizedEmail(), userInfo.getId() );
+		}
+		final Set<String> existingEmails = userShardDirectory.indexEmails( userIdsByEmail );
+
+		final Map<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+		for ( final Integer index : chunk ) {
+			final UserInfo userInfo = userInfoList.get( index );
+			if ( existingEmails.contains( userInfo.getNormalizedEmail() ) ) {
+				results[index] = failedCreation( index, List.of( "A user with this email already exists" ) );
+			} else {
+				indexesByShard.computeIfAbsent( userShards.shardFor( userInfo.getId() ), shard -> new ArrayList<>() )
+						.add( index );
+			}
+		}
+
+		final List<UserInfo> savedUsers = new ArrayList<>( chunk.size() );
+		indexesByShard.forEach( ( shard, indexes ) -> {
+			final List<UserInfo> shardUsers = indexes.stream().map( userInfoList::get ).toList();
+			try {
+				userShards.runOnShard( shard, () -> transactionTemplate.executeWithoutResult( status -> {
+					userRepository.saveAll( shardUsers );
+					entityManager.flush();
+					entityManager.clear();
+				} ) );
+			} catch ( final RuntimeException re ) {
+				log.warn( "Failed to save {} users on shard {}", shardUsers.size(), shard, re );
+				final Map<String, Long> shardUserIdsByEmail = new HashMap<>();
+				shardUsers.forEach( userInfo -> shardUserIdsByEmail.put( userInfo.getNormalizedEmail(),
+						userInfo.getId() ) );
+				userShardDirectory.unindexEmails( shardUserIdsByEmail );
+				indexes.forEach( index -> results[index] = failedCreation( index,
+						List.of( "The user could not be saved" ) ) );
+				return;
+			}
+			indexes.forEach( index -> results[index] = succeededCreation( index,
+					userInfoList.get( index ).getId() ) );
+			savedUsers.addAll( shardUsers );
+		} );
+		return savedUsers;
+	}
+
+	/**
+	 * Matches the unique constraints on a user's email by name, so other integrity violations are not
+	 * reported as duplicate emails.
+	 */
+	static boolean isDuplicateEmail( final Throwable throwable ) {
+		for ( Throwable cause = throwable; cause != null; cause = cause.getCause() ) {
+			if ( cause instanceof org.hibernate.exception.ConstraintViolationException constraintViolation ) {
+				final String constraintName = constraintViolation.getConstraintName() == null
+						? ""
+						: constraintViolation.getConstraintName().toLowerCase( Locale.ROOT );
+				return constraintName.contains( UserInfo.EMAIL_CONSTRAINT )
+						|| constraintName.contains( UserInfo.NORMALIZED_EMAIL_CONSTRAINT );
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Matches a unique or primary key violation by SQL state, for tables whose only such key is the
+	 * email, like the email index.
+	 */
+	static boolean isUniqueViolation( final Throwable throwable ) {
+		for ( Throwable cause = throwable; cause != null; cause = cause.getCause() ) {
+			if ( cause instanceof SQLException sqlException ) {
+				return UNIQUE_VIOLATION_SQL_STATE.equals( sqlException.getSQLState() );
+			}
+		}
+		return false;
+	}
+
+	private UserCreationResult failedCreation( final int index, final List<String> errors ) {
+		return UserCreationResult.builder().index( index ).isSuccess( false ).errors( errors ).build();
+	}
+
+	private UserCreationResult succeededCreation( final int index, final Long userId ) {
+		return UserCreationResult.builder().index( index ).isSuccess( true ).id( userId ).build();
+	}
+
+	/**
+	 * Cache misses for the same user that arrive together share one database read, all of them
+	 * receiving the user or the same not found exception.
+	 */
+	public UserInfo findUserByEmail( final String email ) {
+		return withPendingEmailPreferences( userInfoCache.getByEmail( email )
+				.orElseGet( () -> userLookupCoalescer.usersByEmail().execute( UserInfo.normalizeEmail( email ),
+						() -> loadAndCacheUserByEmail( email ) ) ) );
 	}
 
 	public UserInfo findUserById( final Long userId ) {
+		return withPendingEmailPreferences( userInfoCache.getById( userId )
+				.orElseGet( () -> userLookupCoalescer.usersById().execute( userId,
+						() -> loadAndCacheUserById( userId ) ) ) );
+	}
+
+	// The stamp is taken before reading, so a write landing during the read keeps the user uncached
+	private UserInfo loadAndCacheUserByEmail( final String email ) {
+		final long stamp = userInfoCache.anyInvalidationStamp();
+		return userInfoCache.putIfNoneInvalidated( loadUserByEmail( email ), stamp );
+	}
+
+	private UserInfo loadAndCacheUserById( final Long userId ) {
+		final long stamp = userInfoCache.invalidationStamp( userId );
+		return userInfoCache.putIfNotInvalidated( loadUserById( userId ), stamp );
+	}
+
+	/**
+	 * Shows a preference change still waiting in the write-behind queue. The copy has no version, as
+	 * the version it will be written at is not known yet.
+	 */
+	private UserInfo withPendingEmailPreferences( final UserInfo userInfo ) {
+		return emailPreferencesWriteBehind.pendingAllowsEmail( userInfo.getId() )
+				.map( allowsEmail -> userInfo.toBuilder().allowsEmail( allowsEmail ).version( null ).build() )
+				.orElse( userInfo );
+	}
+
+	/**
+	 * Reads just the email and version columns, skipping entity hydration when the user is not
+	 * already cached. A load of the whole user already in flight is waited on instead.
+	 */
+	public UserEmailView findUserEmailById( final Long userId ) {
+		return userInfoCache.getById( userId )
+				.or( () -> userLookupCoalescer.usersById().awaitInFlight( userId ) )
+				.map( userInfo -> new UserEmailView( userInfo.getEmail(), userInfo.getVersion() ) )
+				.orElseGet( () -> userLookupCoalescer.emailsById().execute( userId,
+						() -> userShards.onShardOf( userId, () -> userRepository.findEmailViewById( userId ) )
+								.orElseThrow( () -> UserNotFoundException.forId( userId ) ) ) );
+	}
+
+	/**
+	 * Reads just the allows email and version columns, skipping entity hydration when the user is
+	 * not already cached. A load of the whole user already in flight is waited on instead.
+	 */
+	public UserEmailPreferencesView findUserEmailPreferencesById( final Long userId ) {
+		final Optional<Boolean> pendingAllowsEmail = emailPreferencesWriteBehind.pendingAllowsEmail( userId );
+		if ( pendingAllowsEmail.isPresent() ) {
+			return new UserEmailPreferencesView( pendingAllowsEmail.get(), null );
+		}
+		return userInfoCache.getById( userId )
+				.or( () -> userLookupCoalescer.usersById().awaitInFlight( userId ) )
+				.map( userInfo -> new UserEmailPreferencesView( userInfo.getAllowsEmail(),
+						userInfo.getVersion() ) )
+				.orElseGet( () -> userLookupCoalescer.emailPreferencesById().execute( userId,
+						() -> userShards.onShardOf( userId,
+										() -> userRepository.findEmailPreferencesViewById( userId ) )
+								.orElseThrow( () -> UserNotFoundException.forId( userId ) ) ) );
+	}
+
+	/**
+	 * Reads only the version of a user, used to answer conditional requests without loading the user.
+	 */
+	public Long findUserVersionById( final Long userId ) {
+		// With a change pending the stored version is about to be stale, so no version is offered
+		if ( emailPreferencesWriteBehind.pendingAllowsEmail( userId ).isPresent() ) {
+			return null;
+		}
+		return userInfoCache.getById( userId )
+				.map( UserInfo::getVersion )
+				.orElseGet( () -> userShards.onShardOf( userId, () -> userRepository.findVersionById( userId ) )
+						.orElseThrow( () -> UserNotFoundException.forId( userId ) ) );
+	}
+
+	/**
+	 * The version a conditional write of the user is checked against, a queued preference change
+	 * being written first as the write itself would.
+	 */
+	public Long findVersionForConditionalWrite( final Long userId ) {
+		emailPreferencesWriteBehind.flushIfPending( userId );
+		return userShards.onShardOf( userId, () -> userRepository.findVersionById( userId ) )
+				.orElseThrow( () -> UserNotFoundException.forId( userId ) );
+	}
+
+	public Long findUserVersionByEmail( final String email ) {
+		if ( !emailBloomFilter.mightContain( email ) ) {
+			throw UserNotFoundException.forEmail( email );
+		}
+		final String normalizedEmail = UserInfo.normalizeEmail( email );
+		final UserVersionView versionView = userInfoCache.getByEmail( email )
+				.map( userInfo -> new UserVersionView( userInfo.getId(), userInfo.getVersion() ) )
+				.orElseGet( () -> userShardDirectory.onShardOfEmail( normalizedEmail,
+								() -> userRepository.findVersionViewByNormalizedEmail( normalizedEmail ) )
+						.orElseThrow( () -> emailNotFound( email ) ) );
+		// Pending changes are keyed by id, so the user is resolved first and only its own are checked
+		if ( emailPreferencesWriteBehind.pendingAllowsEmail( versionView.getId() ).isPresent() ) {
+			return null;
+		}
+		return versionView.getVersion();
+	}
+
+	private UserInfo loadUserByEmail( final String email ) {
+		if ( !emailBloomFilter.mightContain( email ) ) {
+			throw UserNotFoundException.forEmail( email );
+		}
+		final String normalizedEmail = UserInfo.normalizeEmail( email );
+		return userShardDirectory.onShardOfEmail( normalizedEmail,
+						() -> replicaReads.findUserByNormalizedEmail( normalizedEmail,
+								() -> userRepository.findUserInfoByNormalizedEmail( normalizedEmail ) ) )
+				.orElseThrow( () -> emailNotFound( email ) );
+	}
+
+	private UserNotFoundException emailNotFound( final String email ) {
+		emailBloomFilter.recordFalsePositive();
+		return UserNotFoundException.forEmail( email );
+	}
+
+	private UserInfo loadUserById( final Long userId ) {
+		return userShards.onShardOf( userId,
+						() -> replicaReads.findUser( userId, () -> userRepository.findById( userId ) ) )
+				.orElseThrow( () -> UserNotFoundException.forId( userId ) );
+	}
+
+	public void updateUserInfo( final Long userId, final UserInfo updatedUserInfo,
+			final Long expectedVersion ) {
+		patchUserInfo( userId, UserInfoPatch.fromUserInfo( updatedUserInfo ), expectedVersion );
+	}
+
+	/**
+	 * Writes the supplied fields with a single UPDATE, in the transaction that reads the user's row
+	 * under lock, see {@link UserRepository#patchUserInfo}.
+	 *
+	 * @param expectedVersion when not null the write only applies if the user is still at this version
+	 */
+	public void patchUserInfo( final Long userId, final UserInfoPatch userInfoPatch,
+			final Long expectedVersion ) {
+		if ( userInfoPatch.isEmpty() ) {
+			checkVersion( userId, expectedVersion );
+			return;
+		}
+		settlePendingEmailPreferences( userId, userInfoPatch.getAllowsEmail() != null, expectedVersion );
+		writePatch( userId, userInfoPatch, expectedVersion );
+	}
+
+	/**
+	 * @return the user's version after the write
+	 */
+	private Long writePatch( final Long userId, final UserInfoPatch userInfoPatch, final Long expectedVersion ) {
+		final UserPatchResult patchResult;
 		try {
-			return userRepository.findById( userId ).orElseThrow();
-		} catch ( final NoSuchElementException nsee ) {
-			throw new NoSuchElementException( "User with ID " + userId + "  not found", nsee );
+			patchResult = patchOnShard( userId, userInfoPatch, expectedVersion );
+		} catch ( final DataIntegrityViolationException dive ) {
+			if ( isDuplicateEmail( dive ) ) {
+				throw DuplicateEmailException.forEmail( userInfoPatch.getEmail() );
+			}
+			throw dive;
 		}
+		if ( !patchResult.isWritten() ) {
+			return unwrittenVersion( userId, expectedVersion, patchResult );
+		}
+		userInfoCache.evict( userId );
+		userLookupCoalescer.forget( userId, patchResult.getPreviousNormalizedEmail(),
+				patchResult.getUserInfo().getNormalizedEmail() );
+		changeListeners.forEach( listener -> listener.onUserUpdated( patchResult.getUserInfo(), userInfoPatch,
+				patchResult.isAllowsEmailChanged() ) );
+		return patchResult.getUserInfo().getVersion();
 	}
 
-	public void updateUserInfo( final Long userId, final UserInfo updatedUserInfo ) {
-		final UserInfo userInfo = findUserById( userId );
-		if ( !updatedUserInfo.getFirstName().isBlank() ) {
-			userInfo.setFirstName( updatedUserInfo.getFirstName() );
+	/**
+	 * When sharded a new email is indexed before the user is written with it, failing as a clash on
+	 * the unique index would, and the entries of the emails it replaced are released once it has been.
+	 * Nothing is read outside the write's transaction, so concurrent patches of the user can't release the wrong
+	 * email: each only releases the email it indexed if the user doesn't hold it after all.
+	 */
+	private UserPatchResult patchOnShard( final Long userId, final UserInfoPatch userInfoPatch,
+			final Long expectedVersion ) {
+		final String email = UserInfo.normalizeEmail( userInfoPatch.getEmail() );
+		if ( !userShards.isEnabled() || email == null ) {
+			return userShards.onShardOf( userId,
+					() -> userRepository.patchUserInfo( userId, userInfoPatch, expectedVersion ) );
+		}
+		if ( !userShardDirectory.indexEmail( email, userId ) ) {
+			throw DuplicateEmailException.forEmail( userInfoPatch.getEmail() );
 		}
-		if ( !updatedUserInfo.getSurname().isBlank() ) {
-			userInfo.setSurname( updatedUserInfo.getSurname() );
+		final UserPatchResult patchResult;
+		try {
+			patchResult = userShards.onShardOf( userId,
+					() -> userRepository.patchUserInfo( userId, userInfoPatch, expectedVersion ) );
+		} catch ( final RuntimeException re ) {
+			userShardDirectory.unindexEmailUnlessHeld( email, userId );
+			throw re;
+		}
+		if ( !patchResult.isWritten() ) {
+			userShardDirectory.unindexEmailUnlessHeld( email, userId );
+		} else {
+			userShardDirectory.unindexOtherEmails( userId, email );
+		}
+		return patchResult;
+	}
+
+	/**
+	 * A queued preference change is written before a conditional write, so the version checked is the
+	 * one the client was shown. An unconditional write of the preference supersedes it instead.
+	 */
+	private void settlePendingEmailPreferences( final Long userId, final boolean writesAllowsEmail,
+			final Long expectedVersion ) {
+		if ( expectedVersion != null ) {
+			emailPreferencesWriteBehind.flushIfPending( userId );
+		} else if ( writesAllowsEmail ) {
+			emailPreferencesWriteBehind.discard( List.of( userId ) );
 		}
-		if ( !updatedUserInfo.getEmail().isBlank() ) {
-			userInfo.setEmail( updatedUserInfo.getEmail() );
+	}
+
+	/**
+	 * For writes that turned out to change nothing, which still have to fail like a real one would.
+	 */
+	private Long checkVersion( final Long userId, final Long expectedVersion ) {
+		final Long version = userShards.onShardOf( userId, () -> userRepository.findVersionById( userId ) )
+				.orElseThrow( () -> UserNotFoundException.forId( userId ) );
+		if ( expectedVersion != null && !expectedVersion.equals( version ) ) {
+			throw VersionConflictException.forId( userId );
 		}
-		if ( !updatedUserInfo.getPassword().isBlank() ) {
-			userInfo.setPassword( updatedUserInfo.getPassword() );
+		return version;
+	}
+
+	/**
+	 * For patches that were not written, which fail unless they were left out for changing nothing.
+	 */
+	private Long unwrittenVersion( final Long userId, final Long expectedVersion,
+			final UserPatchResult patchResult ) {
+		if ( patchResult.getUserInfo() == null ) {
+			throw UserNotFoundException.forId( userId );
 		}
-		if ( !updatedUserInfo.getAllowsEmail().toString().isBlank() ) {
-			userInfo.setAllowsEmail( updatedUserInfo.getAllowsEmail() );
+		final Long version = patchResult.getUserInfo().getVersion();
+		if ( expectedVersion != null && !expectedVersion.equals( version ) ) {
+			throw VersionConflictException.forId( userId );
 		}
-		userRepository.save( userInfo );
+		return version;
 	}
 
+	/**
+	 * The user is locked while it is read, so listeners are told about the user exactly as it was
+	 * deleted, and only by the request whose DELETE removed it.
+	 */
 	public void deleteUserInfo( final Long userId ) {
-		userRepository.deleteById( userId );
+		emailPreferencesWriteBehind.discard( List.of( userId ) );
+		final Optional<UserInfo> deletedUser = userShards.onShardOf( userId, () -> transactionTemplate.execute(
+				status -> userRepository.findAndLockById( userId )
+						.filter( userInfo -> userRepository.deleteUserById( userId ) == 1 ) ) );
+		deletedUser.ifPresent( userInfo -> {
+			userShardDirectory.unindexEmail( userInfo.getNormalizedEmail(), userId );
+			userInfoCache.evict( userId );
+			userLookupCoalescer.forget( userId, userInfo.getNormalizedEmail() );
+			changeListeners.forEach( listener -> listener.onUserDeleted( userInfo ) );
+		} );
 	}
 
 	public void updateUserInfoEmailPreferences( final Long userId, final Boolean allowsEmail ) {
-		final UserInfo user = findUserById( userId );
-		user.setAllowsEmail( allowsEmail );
-		userRepository.save( user );
+		updateUserInfoEmailPreferences( userId, allowsEmail, null );
+	}
+
+	/**
+	 * Unconditional changes are queued when write-behind is enabled, acknowledged before they are
+	 * written. Otherwise the preference is written as a patch of it alone would be.
+	 *
+	 * A user that already has the preference is left as it is, version included.
+	 *
+	 * @param expectedVersion when not null the write only applies if the user is still at this version
+	 * @return the user's version after the write, or null when it was queued
+	 */
+	public Long updateUserInfoEmailPreferences( final Long userId, final Boolean allowsEmail,
+			final Long expectedVersion ) {
+		if ( expectedVersion == null && emailPreferencesWriteBehind.enqueue( userId, allowsEmail ) ) {
+			return null;
+		}
+		settlePendingEmailPreferences( userId, true, expectedVersion );
+		return writePatch( userId, UserInfoPatch.builder().allowsEmail( allowsEmail ).build(), expectedVersion );
+	}
+
+	/**
+	 * Sets the email preference for every given user using one set-based UPDATE per chunk, each chunk
+	 * in its own transaction, or one per shard of the chunk when sharded.
+	 *
+	 * @return the IDs that did not match a user
+	 */
+	public List<Long> updateUsersEmailPreferences( final Collection<Long> userIds,
+			final Boolean allowsEmail ) {
+		final List<Long> distinctUserIds = List.copyOf( new LinkedHashSet<>( userIds ) );
+		emailPreferencesWriteBehind.discard( distinctUserIds );
+		final List<Long> notFoundUserIds = new ArrayList<>();
+		final int chunkSize = userInfoProperties.getBulk().getChunkSize();
+
+		for ( int from = 0; from < distinctUserIds.size(); from += chunkSize ) {
+			final List<Long> chunk = distinctUserIds.subList( from,
+					Math.min( from + chunkSize, distinctUserIds.size() ) );
+			final int[] changedCount = new int[1];
+			final List<UserInfo> updatedUsers = new ArrayList<>();
+			userShards.forEachShardOf( chunk, shardChunk -> transactionTemplate.executeWithoutResult( status -> {
+				changedCount[0] += userRepository.updateAllowsEmailByIdIn( shardChunk, allowsEmail );
+				updatedUsers.addAll( userRepository.findAllByIdIn( shardChunk ) );
+			} ) );
+			final Set<Long> existingUserIds = updatedUsers.stream()
+					.map( UserInfo::getId )
+					.collect( Collectors.toSet() );
+			for ( final Long userId : chunk ) {
+				if ( existingUserIds.contains( userId ) ) {
+					userInfoCache.evict( userId );
+				} else {
+					notFoundUserIds.add( userId );
+				}
+			}
+			updatedUsers.forEach( userInfo -> userLookupCoalescer.forget( userInfo.getId(),
+					userInfo.getNormalizedEmail() ) );
+			if ( !updatedUsers.isEmpty() ) {
+				changeListeners.forEach( listener -> listener.onEmailPreferencesUpdated( updatedUsers,
+						allowsEmail, changedCount[0] ) );
+			}
+		}
+		return notFoundUserIds;
 	}
 
 }
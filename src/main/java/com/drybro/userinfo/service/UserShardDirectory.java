@@ -0,0 +1,328 @@
+package com.drybro.userinfo.service;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserEmailIndexEntry;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.repository.UserEmailIndexRepository;
+import com.drybro.userinfo.repository.UserRepository;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The parts of sharded storage that have to be shared by every shard, both kept on
+ * {@link UserShards#DIRECTORY_SHARD}: user ids, allocated in blocks from its sequence, and the email
+ * index, which finds the shard holding an email and keeps emails unique across shards. Neither is
+ * used with sharding disabled.
+ * <p>
+ * An email is indexed before a user is written with it and only removed once the user no longer has
+ * it, so the index can hold an email no user has but never misses one a user has. Such orphans, left
+ * by writes that failed or raced part way through, are reclaimed when another user claims the email
+ * and swept up periodically, once they are older than the grace period given to writes in flight.
+ */
+@Slf4j
+@Component
+public class UserShardDirectory {
+
+	private static final int MAX_INDEX_ATTEMPTS = 3;
+
+	private static final int SWEEP_PAGE_SIZE = 500;
+
+	private final UserInfoProperties.Sharding shardingProperties;
+
+	private final UserShards userShards;
+
+	private final UserEmailIndexRepository userEmailIndexRepository;
+
+	private final TransactionTemplate transactionTemplate;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final EntityManagerFactory entityManagerFactory;
+
+	private final UserRepository userRepository;
+
+	private final TaskScheduler taskScheduler;
+
+	private final Lock idLock = new ReentrantLock();
+
+	private long nextId;
+
+	private long idLimit;
+
+	private ScheduledFuture<?> sweepTask;
+
+	public UserShardDirectory( final UserInfoProperties userInfoProperties, final UserShards userShards,
+			final UserEmailIndexRepository userEmailIndexRepository, final TransactionTemplate transactionTemplate,
+			final JdbcTemplate jdbcTemplate, final EntityManagerFactory entityManagerFactory,
+			final UserRepository userRepository, final TaskScheduler taskScheduler ) {
+		this.shardingProperties = userInfoProperties.getSharding();
+		this.userShards = userShards;
+		this.userEmailIndexRepository = userEmailIndexRepository;
+		this.transactionTemplate = transactionTemplate;
+		this.jdbcTemplate = jdbcTemplate;
+		this.entityManagerFactory = entityManagerFactory;
+		this.userRepository = userRepository;
+		this.taskScheduler = taskScheduler;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleOrphanSweeps() {
+		if ( userShards.isEnabled() ) {
+			sweepTask = taskScheduler.scheduleWithFixedDelay( this::sweepOrphans,
+					Instant.now().plus( shardingProperties.getOrphanGracePeriod() ),
+					shardingProperties.getOrphanSweepInterval() );
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( sweepTask != null ) {
+			sweepTask.cancel( false );
+		}
+	}
+
+	/**
+	 * @return an id no other user on any shard has
+	 */
+	public long nextUserId() {
+		if ( !userShards.isEnabled() ) {
+			throw new IllegalStateException( "Without sharding user ids come from the sequence as users are saved" );
+		}
+		idLock.lock();
+		try {
+			if ( nextId == idLimit ) {
+				// The sequence steps by the allocation size, so each value starts a block no one else gets
+				nextId = userShards.onShard( UserShards.DIRECTORY_SHARD,
+						() -> jdbcTemplate.queryForObject( nextIdBlockSql(), Long.class ) );
+				idLimit = nextId + UserInfo.ID_ALLOCATION_SIZE;
+			}
+			return nextId++;
+		} finally {
+			idLock.unlock();
+		}
+	}
+
+	private String nextIdBlockSql() {
+		return entityManagerFactory.unwrap( SessionFactoryImplementor.class ).getJdbcServices().getDialect()
+				.getSequenceSupport().getSequenceNextValString( UserInfo.ID_SEQUENCE );
+	}
+
+	/**
+	 * Indexes each normalized email to its user, apart from those another user holds. An entry
+	 * already indexed to the same user is kept, and an orphaned one is taken over.
+	 *
+	 * @return the emails held by other users, which are left pointing at them
+	 */
+	public Set<String> indexEmails( final Map<String, Long> userIdsByEmail ) {
+		if ( !userShards.isEnabled() || userIdsByEmail.isEmpty() ) {
+			return Set.of();
+		}
+		return userShards.onShard( UserShards.DIRECTORY_SHARD, () -> {
+			final Set<String> heldEmails = new HashSet<>();
+			Map<String, Long> unindexed = userIdsByEmail;
+			for ( int attempt = 1; ; attempt++ ) {
+				final Map<String, Long> toIndex = unindexed;
+				try {
+					transactionTemplate.executeWithoutResult( status -> userEmailIndexRepository.saveAll(
+							entries( toIndex ) ) );
+					return heldEmails;
+				} catch ( final RuntimeException re ) {
+					if ( !UserService.isUniqueViolation( re ) || attempt == MAX_INDEX_ATTEMPTS ) {
+						throw re;
+					}
+				}
+				// Only looked at once a clash shows some are taken, as usually none are. The rest are
+				// inserted again, as another write may have claimed one of them in the meantime.
+				unindexed = new HashMap<>( toIndex );
+				for ( final UserEmailIndexEntry entry : userEmailIndexRepository.findAllById( toIndex.keySet() ) ) {
+					final Long userId = unindexed.remove( entry.getNormalizedEmail() );
+					if ( !claim( entry, userId ) ) {
+						heldEmails.add( entry.getNormalizedEmail() );
+					}
+				}
+			}
+		} );
+	}
+
+	/**
+	 * @return true when the email is now indexed to the user, false when another user holds it
+	 */
+	private boolean claim( final UserEmailIndexEntry entry, final Long userId ) {
+		if ( entry.getUserId().equals( userId ) ) {
+			// Left by an earlier write of the same user, refreshed so it is not taken for an orphan
+			return userEmailIndexRepository.touch( entry.getNormalizedEmail(), userId, now() ) == 1;
+		}
+		if ( inGracePeriod( entry ) || holdsEmail( entry.getUserId(), entry.getNormalizedEmail() ) ) {
+			return false;
+		}
+		log.info( "Reclaiming an orphaned email index entry of user {} for user {}", entry.getUserId(), userId );
+		try {
+			return Boolean.TRUE.equals( transactionTemplate.execute( status -> {
+				if ( userEmailIndexRepository.deleteUnchanged( entry.getNormalizedEmail(), entry.getUserId(),
+						entry.getIndexedAt() ) == 0 ) {
+					return false;
+				}
+				userEmailIndexRepository.save( new UserEmailIndexEntry( entry.getNormalizedEmail(), userId, now() ) );
+				return true;
+			} ) );
+		} catch ( final RuntimeException re ) {
+			if ( !UserService.isUniqueViolation( re ) ) {
+				throw re;
+			}
+			return false;
+		}
+	}
+
+	private boolean inGracePeriod( final UserEmailIndexEntry entry ) {
+		return entry.getIndexedAt().isAfter( now().minus( shardingProperties.getOrphanGracePeriod() ) );
+	}
+
+	private boolean holdsEmail( final Long userId, final String normalizedEmail ) {
+		return userShards.onShardOf( userId, () -> userRepository.findEmailViewById( userId ) )
+				.map( emailView -> normalizedEmail.equals( UserInfo.normalizeEmail( emailView.getEmail() ) ) )
+				.orElse( false );
+	}
+
+	/**
+	 * @return false when the email is already indexed, to this or any other user
+	 */
+	public boolean indexEmail( final String normalizedEmail, final Long userId ) {
+		return !userShards.isEnabled() || indexEmails( Map.of( normalizedEmail, userId ) ).isEmpty();
+	}
+
+	/**
+	 * Removes each normalized email from the index, where it is still indexed to the given user.
+	 */
+	public void unindexEmails( final Map<String, Long> userIdsByEmail ) {
+		if ( !userShards.isEnabled() || userIdsByEmail.isEmpty() ) {
+			return;
+		}
+		userShards.runOnShard( UserShards.DIRECTORY_SHARD, () -> transactionTemplate.executeWithoutResult(
+				status -> userIdsByEmail.forEach( userEmailIndexRepository::deleteByNormalizedEmailAndUserId ) ) );
+	}
+
+	public void unindexEmail( final String normalizedEmail, final Long userId ) {
+		if ( userShards.isEnabled() ) {
+			unindexEmails( Map.of( normalizedEmail, userId ) );
+		}
+	}
+
+	/**
+	 * For a write of the user that indexed the email and then failed, which may have raced with
+	 * another write of the user that gave it the email after all.
+	 */
+	public void unindexEmailUnlessHeld( final String normalizedEmail, final Long userId ) {
+		if ( userShards.isEnabled() && !holdsEmail( userId, normalizedEmail ) ) {
+			unindexEmails( Map.of( normalizedEmail, userId ) );
+		}
+	}
+
+	/**
+	 * Removes the user's entries for emails other than the one just written. Entries within the grace
+	 * period are kept, as they may belong to another write of the user still in flight, and are left
+	 * to be reclaimed or swept up once it has passed.
+	 */
+	public void unindexOtherEmails( final Long userId, final String normalizedEmail ) {
+		if ( userShards.isEnabled() ) {
+			final Instant indexedBefore = now().minus( shardingProperties.getOrphanGracePeriod() );
+			userShards.runOnShard( UserShards.DIRECTORY_SHARD, () -> userEmailIndexRepository
+					.deleteOtherEmailsOfUser( userId, normalizedEmail, indexedBefore ) );
+		}
+	}
+
+	/**
+	 * Removes the entries past the grace period whose user does not hold the email, left by writes
+	 * that failed between indexing the email and writing the user.
+	 */
+	public void sweepOrphans() {
+		try {
+			final Instant indexedBefore = now().minus( shardingProperties.getOrphanGracePeriod() );
+			String afterEmail = "";
+			int removed = 0;
+			List<UserEmailIndexEntry> entries;
+			do {
+				final String pageAfterEmail = afterEmail;
+				entries = userShards.onShard( UserShards.DIRECTORY_SHARD, () -> userEmailIndexRepository
+						.findIndexedBefore( pageAfterEmail, indexedBefore, PageRequest.of( 0, SWEEP_PAGE_SIZE ) ) );
+				removed += removeOrphans( entries );
+				if ( !entries.isEmpty() ) {
+					afterEmail = entries.get( entries.size() - 1 ).getNormalizedEmail();
+				}
+			} while ( entries.size() == SWEEP_PAGE_SIZE );
+			if ( removed > 0 ) {
+				log.info( "Removed {} orphaned email index entries", removed );
+			}
+		} catch ( final RuntimeException re ) {
+			log.warn( "Failed to sweep orphaned email index entries", re );
+		}
+	}
+
+	private int removeOrphans( final List<UserEmailIndexEntry> entries ) {
+		final Map<Long, String> heldEmails = new HashMap<>();
+		userShards.forEachShardOf( entries.stream().map( UserEmailIndexEntry::getUserId ).distinct().toList(),
+				userIds -> userRepository.findSummariesByIdIn( userIds ).forEach( userSummary -> heldEmails.put(
+						userSummary.getId(), UserInfo.normalizeEmail( userSummary.getEmail() ) ) ) );
+		int removed = 0;
+		for ( final UserEmailIndexEntry entry : entries ) {
+			if ( !entry.getNormalizedEmail().equals( heldEmails.get( entry.getUserId() ) ) ) {
+				removed += userShards.onShard( UserShards.DIRECTORY_SHARD, () -> userEmailIndexRepository
+						.deleteUnchanged( entry.getNormalizedEmail(), entry.getUserId(), entry.getIndexedAt() ) );
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Runs the lookup on the shard of the user the email is indexed to, or simply runs it with sharding
+	 * disabled.
+	 *
+	 * @return empty, without running the lookup, when the email is not indexed
+	 */
+	public <T> Optional<T> onShardOfEmail( final String normalizedEmail, final Supplier<Optional<T>> lookup ) {
+		if ( !userShards.isEnabled() ) {
+			return lookup.get();
+		}
+		return userShards.onShard( UserShards.DIRECTORY_SHARD,
+						() -> userEmailIndexRepository.findUserIdByNormalizedEmail( normalizedEmail ) )
+				.flatMap( userId -> userShards.onShardOf( userId, lookup ) );
+	}
+
+	private static List<UserEmailIndexEntry> entries( final Map<String, Long> userIdsByEmail ) {
+		final Instant indexedAt = now();
+		final List<UserEmailIndexEntry> entries = new ArrayList<>( userIdsByEmail.size() );
+		userIdsByEmail.forEach( ( normalizedEmail, userId ) -> entries.add(
+				new UserEmailIndexEntry( normalizedEmail, userId, indexedAt ) ) );
+		return entries;
+	}
+
+	// Truncated so the value read back compares equal to the one written, whatever the column precision
+	private static Instant now() {
+		return Instant.now().truncatedTo( ChronoUnit.MILLIS );
+	}
+
+}
@@ -0,0 +1,250 @@
+package com.drybro.userinfo.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.ShardContext;
+import com.drybro.userinfo.config.UserInfoProperties;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Decides which shard a user lives on and runs database work there. With sharding disabled every
+ * method simply runs the work as it is, so callers need not tell the two modes apart.
+ * <p>
+ * Work on one user runs on the calling thread, work on every shard runs on all of them in parallel.
+ * Either way a transaction has to start inside the work, as a transaction already started holds on
+ * to the shard it began on.
+ */
+@Component
+public class UserShards {
+
+	/**
+	 * Also holds the email index and the sequence user ids are allocated from.
+	 */
+	public static final int DIRECTORY_SHARD = 0;
+
+	// About one fetch of the cursor, so a shard's reader is never far ahead of the merge
+	private static final int MERGE_BUFFER_SIZE = 500;
+
+	private static final Object END_OF_SHARD = new Object();
+
+	private final boolean enabled;
+
+	private final int shardCount;
+
+	private final TransactionTemplate readOnlyTransactionTemplate;
+
+	private final ExecutorService shardExecutor = Executors.newCachedThreadPool(
+			Thread.ofPlatform().name( "user-shard-", 0 ).daemon().factory() );
+
+	public UserShards( final UserInfoProperties userInfoProperties,
+			final PlatformTransactionManager transactionManager ) {
+		final UserInfoProperties.Sharding shardingProperties = userInfoProperties.getSharding();
+		this.enabled = shardingProperties.isEnabled();
+		this.shardCount = enabled ? shardingProperties.getShards().size() : 1;
+		this.readOnlyTransactionTemplate = new TransactionTemplate( transactionManager );
+		this.readOnlyTransactionTemplate.setReadOnly( true );
+	}
+
+	@PreDestroy
+	public void stop() {
+		shardExecutor.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public int shardFor( final Long userId ) {
+		// Fibonacci hashing, so the consecutive ids of one allocated block spread over every shard
+		return Math.floorMod( Long.hashCode( userId * 0x9E3779B97F4A7C15L ), shardCount );
+	}
+
+	public <T> T onShard( final int shard, final Supplier<T> work ) {
+		return enabled ? ShardContext.callOnShard( shard, work ) : work.get();
+	}
+
+	public void runOnShard( final int shard, final Runnable work ) {
+		onShard( shard, () -> {
+			work.run();
+			return null;
+		} );
+	}
+
+	public <T> T onShardOf( final Long userId, final Supplier<T> work ) {
+		return enabled ? ShardContext.callOnShard( shardFor( userId ), work ) : work.get();
+	}
+
+	public void runOnShardOf( final Long userId, final Runnable work ) {
+		onShardOf( userId, () -> {
+			work.run();
+			return null;
+		} );
+	}
+
+	/**
+	 * Splits the ids by shard and runs the work once for each shard's share, one shard after another.
+	 */
+	public void forEachShardOf( final Collection<Long> userIds, final Consumer<Collection<Long>> work ) {
+		if ( !enabled ) {
+			work.accept( userIds );
+			return;
+		}
+		final Map<Integer, List<Long>> userIdsByShard = userIds.stream()
+				.collect( Collectors.groupingBy( this::shardFor, TreeMap::new, Collectors.toList() ) );
+		userIdsByShard.forEach( ( shard, shardUserIds ) -> runOnShard( shard,
+				() -> work.accept( shardUserIds ) ) );
+	}
+
+	/**
+	 * Runs the work on every shard in turn, for callers that gather the results into something that
+	 * is not thread safe.
+	 */
+	public void forEachShard( final Runnable work ) {
+		for ( int shard = 0; shard < shardCount; shard++ ) {
+			runOnShard( shard, work );
+		}
+	}
+
+	/**
+	 * Runs the work on every shard in parallel.
+	 *
+	 * @return the result from each shard, in shard order
+	 */
+	public <T> List<T> onEveryShard( final Supplier<T> work ) {
+		if ( !enabled ) {
+			return Collections.singletonList( work.get() );
+		}
+		final List<CompletableFuture<T>> results = new ArrayList<>( shardCount );
+		for ( int shard = 0; shard < shardCount; shard++ ) {
+			final int workShard = shard;
+			results.add( CompletableFuture.supplyAsync( () -> onShard( workShard, work ), shardExecutor ) );
+		}
+		final List<T> shardResults = new ArrayList<>( shardCount );
+		for ( final CompletableFuture<T> result : results ) {
+			try {
+				shardResults.add( result.join() );
+			} catch ( final CompletionException ce ) {
+				throw ce.getCause() instanceof RuntimeException re ? re : ce;
+			}
+		}
+		return shardResults;
+	}
+
+	/**
+	 * Streams the query on every shard, each in its own read-only transaction, and hands the results
+	 * to the consumer as one sequence in the given order. Each shard's query must already return its
+	 * results in that order.
+	 * <p>
+	 * The shards are read in parallel, each only a buffer's length ahead of the consumer, and the
+	 * reads are cancelled if the consumer fails.
+	 */
+	public <T> void streamMerged( final Supplier<Stream<T>> query, final Comparator<? super T> order,
+			final Consumer<? super T> consumer ) {
+		if ( !enabled ) {
+			readOnlyTransactionTemplate.executeWithoutResult( status -> {
+				try ( Stream<T> items = query.get() ) {
+					items.forEach( consumer );
+				}
+			} );
+			return;
+		}
+		final List<BlockingQueue<Object>> queues = new ArrayList<>( shardCount );
+		final List<Future<?>> readers = new ArrayList<>( shardCount );
+		try {
+			for ( int shard = 0; shard < shardCount; shard++ ) {
+				final int readShard = shard;
+				final BlockingQueue<Object> queue = new ArrayBlockingQueue<>( MERGE_BUFFER_SIZE );
+				queues.add( queue );
+				readers.add( shardExecutor.submit( () -> read( readShard, query, queue ) ) );
+			}
+			final PriorityQueue<Head<T>> heads = new PriorityQueue<>(
+					Comparator.comparing( Head<T>::item, order ) );
+			for ( int shard = 0; shard < shardCount; shard++ ) {
+				takeNext( heads, queues.get( shard ), shard );
+			}
+			while ( !heads.isEmpty() ) {
+				final Head<T> head = heads.poll();
+				consumer.accept( head.item() );
+				takeNext( heads, queues.get( head.shard() ), head.shard() );
+			}
+		} finally {
+			readers.forEach( reader -> reader.cancel( true ) );
+		}
+	}
+
+	private <T> void read( final int shard, final Supplier<Stream<T>> query, final BlockingQueue<Object> queue ) {
+		Object last = END_OF_SHARD;
+		try {
+			runOnShard( shard, () -> readOnlyTransactionTemplate.executeWithoutResult( status -> {
+				try ( Stream<T> items = query.get() ) {
+					items.forEach( item -> put( queue, item ) );
+				}
+			} ) );
+		} catch ( final RuntimeException re ) {
+			last = new ReadFailure( re );
+		}
+		put( queue, last );
+	}
+
+	private static void put( final BlockingQueue<Object> queue, final Object item ) {
+		try {
+			queue.put( item );
+		} catch ( final InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Shard read cancelled" );
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void takeNext( final PriorityQueue<Head<T>> heads, final BlockingQueue<Object> queue,
+			final int shard ) {
+		final Object next;
+		try {
+			next = queue.take();
+		} catch ( final InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "Interrupted while merging shard reads", ie );
+		}
+		if ( next instanceof ReadFailure failure ) {
+			throw failure.cause();
+		}
+		if ( next != END_OF_SHARD ) {
+			heads.add( new Head<>( (T) next, shard ) );
+		}
+	}
+
+	private record Head<T>( T item, int shard ) {
+	}
+
+	private record ReadFailure( RuntimeException cause ) {
+	}
+
+}
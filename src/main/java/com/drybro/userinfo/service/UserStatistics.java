@@ -0,0 +1,234 @@
+package com.drybro.userinfo.service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * User counts kept in memory so they can be served without scanning the users table.
+ * <p>
+ * The counts are loaded with one aggregate query once the application is ready and adjusted by
+ * every committed write after that. The aggregate query is repeated periodically to correct any
+ * drift, with the writes that commit while it runs added on top of its result.
+ */
+@Slf4j
+@Component
+public class UserStatistics implements UserInfoChangeListener {
+
+	public static final String USERS_METRIC = "user.info.users";
+
+	private final UserInfoProperties.Stats statsProperties;
+
+	private final UserRepository userRepository;
+
+	private final UserShards userShards;
+
+	private final TransactionTemplate readOnlyTransactionTemplate;
+
+	private final TaskScheduler taskScheduler;
+
+	// Writes hold the read lock so a snapshot or reconciliation sees all three counts move together
+	private final ReadWriteLock countsLock = new ReentrantReadWriteLock();
+
+	private final Counts counts = new Counts();
+
+	private Counts changesDuringReconcile;
+
+	private volatile boolean loaded;
+
+	private ScheduledFuture<?> reconcileTask;
+
+	public UserStatistics( final UserInfoProperties userInfoProperties, final UserRepository userRepository,
+			final UserShards userShards, final PlatformTransactionManager transactionManager,
+			final TaskScheduler taskScheduler, final MeterRegistry meterRegistry ) {
+		this.statsProperties = userInfoProperties.getStats();
+		this.userRepository = userRepository;
+		this.userShards = userShards;
+		this.readOnlyTransactionTemplate = new TransactionTemplate( transactionManager );
+		this.readOnlyTransactionTemplate.setReadOnly( true );
+		this.taskScheduler = taskScheduler;
+		if ( statsProperties.isEnabled() ) {
+			Gauge.builder( USERS_METRIC, counts.total, AtomicLong::get )
+					.description( "Number of users" )
+					.register( meterRegistry );
+			Gauge.builder( USERS_METRIC + ".allowing.email", counts.allowsEmail, AtomicLong::get )
+					.description( "Number of users who allow email" )
+					.register( meterRegistry );
+		}
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleReconciliation() {
+		if ( statsProperties.isEnabled() ) {
+			reconcileTask = taskScheduler.scheduleWithFixedDelay( this::reconcile,
+					Instant.now().plus( statsProperties.getStartupDelay() ),
+					statsProperties.getReconcileInterval() );
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( reconcileTask != null ) {
+			reconcileTask.cancel( false );
+		}
+	}
+
+	/**
+	 * Replaces the counts with those of the table. A write committed just before the query starts
+	 * can be counted twice, which the next reconciliation corrects.
+	 */
+	public void reconcile() {
+		countsLock.writeLock().lock();
+		try {
+			changesDuringReconcile = new Counts();
+		} finally {
+			countsLock.writeLock().unlock();
+		}
+		try {
+			final UserStats tableStats = userShards.onEveryShard( () -> readOnlyTransactionTemplate.execute(
+					status -> userRepository.countUsersByEmailPreference() ) ).stream()
+					.reduce( UserStats::plus )
+					.orElseThrow();
+			countsLock.writeLock().lock();
+			try {
+				final UserStats previous = counts.toUserStats();
+				counts.set( tableStats );
+				counts.add( changesDuringReconcile );
+				if ( loaded && !previous.equals( counts.toUserStats() ) ) {
+					log.info( "Corrected user statistics from {} to {}", previous, counts.toUserStats() );
+				}
+				loaded = true;
+			} finally {
+				changesDuringReconcile = null;
+				countsLock.writeLock().unlock();
+			}
+		} catch ( final RuntimeException re ) {
+			countsLock.writeLock().lock();
+			try {
+				changesDuringReconcile = null;
+			} finally {
+				countsLock.writeLock().unlock();
+			}
+			log.warn( "Failed to reconcile user statistics", re );
+		}
+	}
+
+	public UserStats getUserStats() {
+		if ( !statsProperties.isEnabled() || !loaded ) {
+			throw new ResponseStatusException( HttpStatus.SERVICE_UNAVAILABLE, "User statistics are not available" );
+		}
+		countsLock.writeLock().lock();
+		try {
+			return counts.toUserStats();
+		} finally {
+			countsLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void onUserCreated( final UserInfo userInfo ) {
+		apply( 1, preferenceDelta( userInfo.getAllowsEmail(), true, 1 ),
+				preferenceDelta( userInfo.getAllowsEmail(), false, 1 ) );
+	}
+
+	@Override
+	public void onUserUpdated( final UserInfo userInfo, final UserInfoPatch userInfoPatch,
+			final boolean allowsEmailChanged ) {
+		if ( allowsEmailChanged ) {
+			movePreference( userInfoPatch.getAllowsEmail(), 1 );
+		}
+	}
+
+	@Override
+	public void onEmailPreferencesUpdated( final Collection<UserInfo> users, final Boolean allowsEmail,
+			final int changedCount ) {
+		if ( changedCount > 0 ) {
+			movePreference( allowsEmail, changedCount );
+		}
+	}
+
+	@Override
+	public void onUserDeleted( final UserInfo userInfo ) {
+		apply( -1, preferenceDelta( userInfo.getAllowsEmail(), true, -1 ),
+				preferenceDelta( userInfo.getAllowsEmail(), false, -1 ) );
+	}
+
+	private void movePreference( final Boolean allowsEmail, final int userCount ) {
+		if ( allowsEmail != null ) {
+			apply( 0, allowsEmail ? userCount : -userCount, allowsEmail ? -userCount : userCount );
+		}
+	}
+
+	private static long preferenceDelta( final Boolean allowsEmail, final boolean counted, final long delta ) {
+		return allowsEmail != null && allowsEmail == counted ? delta : 0;
+	}
+
+	private void apply( final long total, final long allowsEmail, final long disallowsEmail ) {
+		if ( !statsProperties.isEnabled() ) {
+			return;
+		}
+		countsLock.readLock().lock();
+		try {
+			counts.add( total, allowsEmail, disallowsEmail );
+			if ( changesDuringReconcile != null ) {
+				changesDuringReconcile.add( total, allowsEmail, disallowsEmail );
+			}
+		} finally {
+			countsLock.readLock().unlock();
+		}
+	}
+
+	private static final class Counts {
+
+		private final AtomicLong total = new AtomicLong();
+
+		private final AtomicLong allowsEmail = new AtomicLong();
+
+		private final AtomicLong disallowsEmail = new AtomicLong();
+
+		void add( final long totalDelta, final long allowsEmailDelta, final long disallowsEmailDelta ) {
+			total.addAndGet( totalDelta );
+			allowsEmail.addAndGet( allowsEmailDelta );
+			disallowsEmail.addAndGet( disallowsEmailDelta );
+		}
+
+		void add( final Counts other ) {
+			add( other.total.get(), other.allowsEmail.get(), other.disallowsEmail.get() );
+		}
+
+		void set( final UserStats userStats ) {
+			total.set( userStats.getTotalUsers() );
+			allowsEmail.set( userStats.getAllowsEmail() );
+			disallowsEmail.set( userStats.getDisallowsEmail() );
+		}
+
+		UserStats toUserStats() {
+			return new UserStats( total.get(), allowsEmail.get(), disallowsEmail.get() );
+		}
+
+	}
+
+}
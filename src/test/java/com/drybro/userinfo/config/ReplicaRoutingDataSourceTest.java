@@ -0,0 +1,56 @@
+package com.drybro.userinfo.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class ReplicaRoutingDataSourceTest {
+
+	private final DataSource primary = new DriverManagerDataSource( "jdbc:h2:mem:routing-primary" );
+
+	@AfterEach
+	public void afterEach() {
+		TransactionSynchronizationManager.clear();
+	}
+
+	@Test
+	void getConnection_ReplicaReadUsesTheReplica() throws SQLException {
+		final ReplicaRoutingDataSource routingDataSource = new ReplicaRoutingDataSource( primary,
+				new DriverManagerDataSource( "jdbc:h2:mem:routing-replica" ), Duration.ofSeconds( 30 ) );
+
+		assertThat( connectedUrl( routingDataSource ) ).contains( "routing-primary" );
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly( true );
+		assertThat( connectedUrl( routingDataSource ) ).contains( "routing-primary" );
+		TransactionSynchronizationManager.setCurrentTransactionName( ReplicaRoutingDataSource.REPLICA_READ );
+		assertThat( connectedUrl( routingDataSource ) ).contains( "routing-replica" );
+	}
+
+	@Test
+	void getConnection_UnavailableReplicaFallsBackToThePrimary() throws SQLException {
+		final ReplicaRoutingDataSource routingDataSource = new ReplicaRoutingDataSource( primary,
+				new DriverManagerDataSource( "jdbc:h2:tcp://localhost:1/routing-replica" ),
+				Duration.ofSeconds( 30 ) );
+		TransactionSynchronizationManager.setCurrentTransactionReadOnly( true );
+		TransactionSynchronizationManager.setCurrentTransactionName( ReplicaRoutingDataSource.REPLICA_READ );
+
+		assertThat( connectedUrl( routingDataSource ) ).contains( "routing-primary" );
+		assertThat( routingDataSource.determineCurrentLookupKey() )
+				.isEqualTo( ReplicaRoutingDataSource.Target.PRIMARY );
+	}
+
+	private static String connectedUrl( final DataSource dataSource ) throws SQLException {
+		try ( Connection connection = dataSource.getConnection() ) {
+			return connection.getMetaData().getURL();
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.drybro.userinfo.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.drybro.userinfo.controller.UserInfoController;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoResponse;
+
+public class SerializationConfigTest {
+
+	private final SerializationConfig serializationConfig = new SerializationConfig();
+
+	private final UserInfoResponse response = UserInfoResponse.builder()
+			.isSuccess( true )
+			.userInfoList( List.of( new UserInfo( 1l, "user", "one", "userone@email.com", "password", true ),
+					new UserInfo( 2l, "user", "two", "usertwo@email.com", "password", false ) ) )
+			.build();
+
+	@Test
+	void smile_RoundTripsAndIsSmallerThanJson() throws Exception {
+		assertRoundTripsAndIsSmallerThanJson( serializationConfig.smileHttpMessageConverter(
+				new Jackson2ObjectMapperBuilder() ), UserInfoController.APPLICATION_SMILE );
+	}
+
+	@Test
+	void cbor_RoundTripsAndIsSmallerThanJson() throws Exception {
+		assertRoundTripsAndIsSmallerThanJson( serializationConfig.cborHttpMessageConverter(
+				new Jackson2ObjectMapperBuilder() ), UserInfoController.APPLICATION_CBOR );
+	}
+
+	private void assertRoundTripsAndIsSmallerThanJson( final AbstractJackson2HttpMessageConverter converter,
+			final String mediaType ) throws Exception {
+		assertThat( converter.canWrite( UserInfoResponse.class, MediaType.parseMediaType( mediaType ) ) ).isTrue();
+
+		final ObjectMapper binaryMapper = converter.getObjectMapper();
+		final byte[] binary = binaryMapper.writeValueAsBytes( response );
+		final byte[] json = new ObjectMapper().writeValueAsBytes( response );
+
+		assertThat( binary.length ).isLessThan( json.length );
+		// Compared as text, the binary formats may read numbers back as a different node type
+		assertThat( binaryMapper.readTree( binary ).toString() ).isEqualTo( new String( json, StandardCharsets.UTF_8 ) );
+	}
+
+}
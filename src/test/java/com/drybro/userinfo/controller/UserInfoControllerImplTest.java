@@ -3,10 +3,18 @@ package com.drybro.userinfo.controller;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -18,14 +26,32 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.drybro.userinfo.metrics.UserInfoMetrics;
+import com.drybro.userinfo.model.EmailPreferencesUpdate;
+import com.drybro.userinfo.exception.DuplicateEmailException;
+import com.drybro.userinfo.exception.VersionConflictException;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserEmailPreferencesView;
+import com.drybro.userinfo.model.UserEmailView;
 import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserInfoResponse;
+import com.drybro.userinfo.model.UserPatchResult;
+import com.drybro.userinfo.model.UserVersionView;
 import com.drybro.userinfo.repository.UserRepository;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.validation.ConstraintViolationException;
 
-@SpringBootTest
+@SpringBootTest(properties = { "user-info.cache.enabled=false", "user-info.email-filter.enabled=false",
+		"user-info.search.enabled=false", "user-info.stats.enabled=false",
+		"user-info.change-log.enabled=false" })
 public class UserInfoControllerImplTest {
 
 	@MockBean
@@ -33,6 +59,9 @@ public class UserInfoControllerImplTest {
 
 	@Autowired
 	private UserInfoController userInfoController;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
 	private final static List<UserInfo> userInfoList = new ArrayList<>();
 	private static UserInfo userInfoOne;
 	private static UserInfo userInfoTwo;
@@ -74,13 +103,83 @@ public class UserInfoControllerImplTest {
 		assertThat( returnedUserInfoList.size() ).isEqualTo( 0 );
 	}
 
+	@Test
+	void getAllUsersPage_HappyPathReturnsNextCursor() {
+		when( userRepository.findByIdGreaterThanOrderByIdAsc( eq( 0l ), any( Pageable.class ) ) )
+				.thenReturn( userInfoList );
+		final UserInfoResponse response = userInfoController.getAllUsersPage( 0l, 2 ).getBody();
+		assertThat( response.getUserInfoList() ).containsExactly( userInfoOne, userInfoTwo );
+		assertThat( response.getNextCursor() ).isEqualTo( userInfoTwo.getId() );
+	}
+
+	@Test
+	void getAllUsersPage_LastPageHasNoNextCursor() {
+		when( userRepository.findByIdGreaterThanOrderByIdAsc( eq( 2l ), any( Pageable.class ) ) )
+				.thenReturn( List.of( userInfoThree ) );
+		final UserInfoResponse response = userInfoController.getAllUsersPage( 2l, 2 ).getBody();
+		assertThat( response.getUserInfoList() ).containsExactly( userInfoThree );
+		assertThat( response.getNextCursor() ).isNull();
+	}
+
+	@Test
+	void getAllUsersPage_PageSizeAboveMaximumThrowsException() {
+		assertThrows( ConstraintViolationException.class,
+				() -> userInfoController.getAllUsersPage( 0l, UserInfoController.MAX_PAGE_SIZE + 1 ) );
+	}
+
+	@Test
+	void getUserStats_DisabledThrowsResponseStatusException() {
+		assertThrows( ResponseStatusException.class, () -> userInfoController.getUserStats() );
+	}
+
+	@Test
+	void listUserDirectory_DisabledThrowsResponseStatusException() {
+		assertThrows( ResponseStatusException.class, () -> userInfoController.listUserDirectory( null ) );
+	}
+
+	@Test
+	void getUserChanges_DisabledThrowsResponseStatusException() {
+		assertThrows( ResponseStatusException.class, () -> userInfoController.getUserChanges( 0l, 10, 0l ) );
+	}
+
+	@Test
+	void exportAllUsers_WritesOneJsonLinePerUser() throws IOException {
+		when( userRepository.streamAllOrderedById() ).thenReturn( userInfoList.stream() );
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		userInfoController.exportAllUsers().getBody().writeTo( outputStream );
+		final String[] lines = outputStream.toString( StandardCharsets.UTF_8 ).split( "\n" );
+		assertThat( lines ).hasSize( 3 );
+		assertThat( lines[0] ).contains( userInfoOne.getEmail() );
+		assertThat( lines[2] ).contains( userInfoThree.getEmail() );
+	}
+
 	@Test
 	void createUser_HappyPath() {
+		when( userRepository.save( userInfoOne ) ).thenReturn( userInfoOne );
 		final boolean isSuccess = userInfoController.createUser( userInfoOne ).getBody().isSuccess();
 		verify( userRepository, times( 1 ) ).save( userInfoOne );
 		assertTrue( isSuccess );
 	}
 
+	@Test
+	void createUser_ExistingEmailThrowsDuplicateEmailException() {
+		final UserInfo newUser = new UserInfo( null, "user", "dup", "UserOne@email.com", null, true );
+		when( userRepository.save( newUser ) ).thenThrow( duplicateEmail() );
+
+		assertThrows( DuplicateEmailException.class, () -> userInfoController.createUser( newUser ) );
+		assertThat( newUser.getNormalizedEmail() ).isEqualTo( "userone@email.com" );
+	}
+
+	@Test
+	void createUser_OtherIntegrityViolationIsNotReportedAsDuplicateEmail() {
+		final UserInfo newUser = new UserInfo( null, "user", "new", "new@email.com", null, true );
+		when( userRepository.save( newUser ) ).thenThrow( new DataIntegrityViolationException( "value too long",
+				new org.hibernate.exception.ConstraintViolationException( "value too long", null,
+						"user_info_surname_check" ) ) );
+
+		assertThrows( DataIntegrityViolationException.class, () -> userInfoController.createUser( newUser ) );
+	}
+
 	@Test
 	void createUser_NullUserThrowsException() {
 		assertThrows( NullPointerException.class,
@@ -93,39 +192,117 @@ public class UserInfoControllerImplTest {
 				new UserInfo( 1l, null, "one", "userone@email.com", "password", true ) ) );
 	}
 
+	@Test
+	void createUsers_ReportsPerUserResults() {
+		final List<UserInfo> newUsers = List.of(
+				new UserInfo( null, "bulk", "one", "bulkone@email.com", null, true ),
+				new UserInfo( null, null, "two", "bulktwo@email.com", null, true ),
+				new UserInfo( null, "bulk", "three", "BulkOne@email.com", null, false ),
+				new UserInfo( null, "bulk", "four", "Existing@Email.com", null, false ) );
+		// The optimistic insert of the chunk hits the unique index, the retry finds the existing email
+		when( userRepository.saveAll( anyIterable() ) )
+				.thenThrow( duplicateEmail() )
+				.thenReturn( List.of() );
+		when( userRepository.findNormalizedEmailsIn( anyCollection() ) ).thenReturn( Set.of( "existing@email.com" ) );
+
+		final UserInfoResponse response = userInfoController.createUsers( newUsers ).getBody();
+		final List<UserCreationResult> results = response.getCreationResults();
+
+		assertThat( response.isSuccess() ).isFalse();
+		assertThat( results ).extracting( UserCreationResult::isSuccess )
+				.containsExactly( true, false, false, false );
+		assertThat( results.get( 1 ).getErrors() ).containsExactly( "First Name must be provided" );
+		assertThat( results.get( 2 ).getErrors() ).containsExactly( "Email is duplicated in the request" );
+		assertThat( results.get( 3 ).getErrors() ).containsExactly( "A user with this email already exists" );
+		assertThat( newUsers.get( 0 ).getPassword() ).hasSize( 20 );
+		verify( userRepository, times( 1 ) ).saveAll( List.of( newUsers.get( 0 ) ) );
+	}
+
+	@Test
+	void createUsers_ChunkThatKeepsClashingIsReportedAsFailed() {
+		final List<UserInfo> newUsers = List.of(
+				new UserInfo( null, "bulk", "one", "bulkone@email.com", null, true ),
+				new UserInfo( null, "bulk", "two", "bulktwo@email.com", null, true ) );
+		// Concurrent creations keep taking emails after each check for existing ones
+		when( userRepository.saveAll( anyIterable() ) )
+				.thenThrow( duplicateEmail() );
+		when( userRepository.findNormalizedEmailsIn( anyCollection() ) ).thenReturn( Set.of() );
+
+		final List<UserCreationResult> results = userInfoController.createUsers( newUsers ).getBody()
+				.getCreationResults();
+
+		assertThat( results ).extracting( UserCreationResult::isSuccess ).containsExactly( false, false );
+		assertThat( results.get( 0 ).getErrors() ).containsExactly( "The user could not be saved" );
+		verify( userRepository, times( 3 ) ).saveAll( anyIterable() );
+	}
+
+	@Test
+	void createUsers_ChunkThatFailsOtherwiseIsReportedAsFailed() {
+		final List<UserInfo> newUsers = List.of(
+				new UserInfo( null, "bulk", "one", "bulkone@email.com", null, true ),
+				new UserInfo( null, "bulk", "two", "bulktwo@email.com", null, true ) );
+		when( userRepository.saveAll( anyIterable() ) )
+				.thenThrow( new DataIntegrityViolationException( "value too long" ) );
+
+		final UserInfoResponse response = userInfoController.createUsers( newUsers ).getBody();
+
+		assertThat( response.isSuccess() ).isFalse();
+		assertThat( response.getCreationResults() ).extracting( UserCreationResult::isSuccess )
+				.containsExactly( false, false );
+		assertThat( response.getCreationResults().get( 1 ).getErrors() )
+				.containsExactly( "The user could not be saved" );
+		// Only a duplicate email is worth another attempt
+		verify( userRepository, times( 1 ) ).saveAll( anyIterable() );
+	}
+
+	@Test
+	void createUsers_EmptyListThrowsException() {
+		assertThrows( ConstraintViolationException.class,
+				() -> userInfoController.createUsers( List.of() ) );
+	}
+
 	@Test
 	void getUserByEmail_HappyPath() {
-		when( userRepository.findUserInfoByEmail( userInfoOne.getEmail() ) ).thenReturn(
+		when( userRepository.findUserInfoByNormalizedEmail( userInfoOne.getEmail() ) ).thenReturn(
 				Optional.of( userInfoOne ) );
-		final UserInfo returnedUser = userInfoController.getUserByEmail( userInfoOne.getEmail() ).getBody()
+		final UserInfo returnedUser = userInfoController.getUserByEmail( userInfoOne.getEmail(), null ).getBody()
+				.getUserInfo();
+		verify( userRepository, times(1) ).findUserInfoByNormalizedEmail( userInfoOne.getEmail() );
+		assertThat( returnedUser.getId() ).isEqualTo( userInfoOne.getId() );
+	}
+
+	@Test
+	void getUserByEmail_LookupIgnoresCase() {
+		when( userRepository.findUserInfoByNormalizedEmail( "userone@email.com" ) ).thenReturn(
+				Optional.of( userInfoOne ) );
+		final UserInfo returnedUser = userInfoController.getUserByEmail( "UserOne@Email.COM", null ).getBody()
 				.getUserInfo();
-		verify( userRepository, times(1) ).findUserInfoByEmail( userInfoOne.getEmail() );
 		assertThat( returnedUser.getId() ).isEqualTo( userInfoOne.getId() );
 	}
 
 	@Test
 	void getUserByEmail_UserNotFoundThrowsResponseStatusException() {
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.getUserByEmail( "notauser@email.com" ) );
+				() -> userInfoController.getUserByEmail( "notauser@email.com", null ) );
 	}
 
 	@Test
 	void getUserByEmail_NullPassedForEmailThrowsResponseStatusException() {
 		assertThrows( ConstraintViolationException.class,
-				() -> userInfoController.getUserByEmail( null ) );
+				() -> userInfoController.getUserByEmail( null, null ) );
 	}
 
 	@Test
 	void getUserByEmail_EmptyStringForEmailThrowsResponseStatusException() {
 		assertThrows( ConstraintViolationException.class,
-				() -> userInfoController.getUserByEmail( "" ) );
+				() -> userInfoController.getUserByEmail( "", null ) );
 	}
 
 	@Test
 	void getUserById_HappyPath() {
 		when( userRepository.findById( userInfoOne.getId() ) ).thenReturn(
 				Optional.of( userInfoOne ) );
-		final UserInfo returnedUser = userInfoController.getUserById( userInfoOne.getId() ).getBody()
+		final UserInfo returnedUser = userInfoController.getUserById( userInfoOne.getId(), null ).getBody()
 				.getUserInfo();
 		verify( userRepository, times(1) ).findById( userInfoOne.getId() );
 		assertThat( returnedUser.getId() ).isEqualTo( userInfoOne.getId() );
@@ -134,87 +311,291 @@ public class UserInfoControllerImplTest {
 	@Test
 	void getUserById_UserNotFoundThrowsResponseStatusException() {
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.getUserById( 5l ) );
+				() -> userInfoController.getUserById( 5l, null ) );
+	}
+
+	@Test
+	void getUserById_UserNotFoundDoesNotCaptureStackTrace() {
+		final NoSuchElementException notFound = assertThrows( NoSuchElementException.class,
+				() -> userInfoController.getUserById( 5l, null ) );
+		assertThat( notFound.getStackTrace() ).isEmpty();
+		assertThat( notFound.getCause() ).isNull();
 	}
 
 	@Test
 	void getUserById_NullValueThrowsResponseStatusException() {
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.getUserById( null ) );
+				() -> userInfoController.getUserById( null, null ) );
 	}
 
 	@Test
 	void updateUser_HappyPath() {
-		when( userRepository.findById( userInfoOne.getId() ) ).thenReturn(
-				Optional.of( userInfoOne ) );
+		when( userRepository.patchUserInfo( eq( userInfoOne.getId() ), any( UserInfoPatch.class ), isNull() ) )
+				.thenReturn( new UserPatchResult( userInfoOne, null, true, false ) );
 
 		final UserInfo updateUserInfo = userInfoOne;
 		updateUserInfo.setFirstName( "Updated" );
 		updateUserInfo.setSurname( "Name" );
 
-		userInfoController.updateUser(userInfoOne.getId(), updateUserInfo);
+		userInfoController.updateUser( userInfoOne.getId(), updateUserInfo, null );
 
-		verify( userRepository, times(1) ).findById( userInfoOne.getId() );
-		verify( userRepository, times( 1 ) ).save( updateUserInfo );
+		verify( userRepository, times( 0 ) ).findById( userInfoOne.getId() );
+		verify( userRepository, times( 1 ) ).patchUserInfo( userInfoOne.getId(),
+				UserInfoPatch.fromUserInfo( updateUserInfo ), null );
+	}
+
+	@Test
+	void updateUser_UnknownUserThrowsNoSuchElementException() {
+		when( userRepository.patchUserInfo( eq( 5l ), any( UserInfoPatch.class ), isNull() ) )
+				.thenReturn( new UserPatchResult( null, null, false, false ) );
+		assertThrows( NoSuchElementException.class,
+				() -> userInfoController.updateUser( 5l, userInfoTwo, null ) );
+	}
+
+	@Test
+	void patchUser_HappyPathWritesOnlySuppliedFields() {
+		final UserInfoPatch userInfoPatch = UserInfoPatch.builder().surname( "Patched" ).build();
+		when( userRepository.patchUserInfo( userInfoTwo.getId(), userInfoPatch, null ) )
+				.thenReturn( new UserPatchResult( userInfoTwo, null, true, false ) );
+
+		userInfoController.patchUser( userInfoTwo.getId(), userInfoPatch, null );
+
+		verify( userRepository, times( 1 ) ).patchUserInfo( userInfoTwo.getId(), userInfoPatch, null );
+		verify( userRepository, times( 0 ) ).findById( userInfoTwo.getId() );
+	}
+
+	@Test
+	void patchUser_UserNotFoundThrowsNoSuchElementException() {
+		when( userRepository.patchUserInfo( eq( 5l ), any( UserInfoPatch.class ), isNull() ) )
+				.thenReturn( new UserPatchResult( null, null, false, false ) );
+		assertThrows( NoSuchElementException.class, () -> userInfoController.patchUser( 5l,
+				UserInfoPatch.builder().allowsEmail( false ).build(), null ) );
+	}
+
+	@Test
+	void patchUser_EmptyPatchThrowsException() {
+		assertThrows( ConstraintViolationException.class,
+				() -> userInfoController.patchUser( 2l, new UserInfoPatch(), null ) );
+	}
+
+	@Test
+	void patchUser_BlankFieldThrowsException() {
+		assertThrows( ConstraintViolationException.class, () -> userInfoController.patchUser( 2l,
+				UserInfoPatch.builder().firstName( " " ).build(), null ) );
 	}
 
 	@Test
 	void updateUser_UserNotFoundThrowsResponseStatusException() {
 		assertThrows( ConstraintViolationException.class,
-				() -> userInfoController.updateUser( 5l, new UserInfo() ) );
+				() -> userInfoController.updateUser( 5l, new UserInfo(), null ) );
 	}
 
 	@Test
 	void deleteUser_HappyPath() {
+		when( userRepository.findAndLockById( userInfoOne.getId() ) ).thenReturn( Optional.of( userInfoOne ) );
+		when( userRepository.deleteUserById( userInfoOne.getId() ) ).thenReturn( 1 );
 		userInfoController.deleteUser( userInfoOne.getId() );
-		verify( userRepository, times( 1 ) ).deleteById( userInfoOne.getId() );
+		verify( userRepository, times( 1 ) ).deleteUserById( userInfoOne.getId() );
 	}
 
 	@Test
 	void getUserEmail_HappyPath() {
-		when(userRepository.findById( userInfoOne.getId() )).thenReturn( Optional.of( userInfoOne ) );
+		when(userRepository.findEmailViewById( userInfoOne.getId() )).thenReturn(
+				Optional.of( new UserEmailView( userInfoOne.getEmail(), 0l ) ) );
 
-		final String returnedEmail = userInfoController.getUserEmail( userInfoOne.getId() ).getBody();
+		final String returnedEmail = userInfoController.getUserEmail( userInfoOne.getId(), null ).getBody();
 		assertThat( returnedEmail ).isEqualTo( userInfoOne.getEmail() );
+		verify( userRepository, times( 0 ) ).findById( userInfoOne.getId() );
+	}
+
+	@Test
+	void getUserById_MatchingETagReturnsNotModifiedWithoutLoadingUser() {
+		when( userRepository.findVersionById( userInfoOne.getId() ) ).thenReturn( Optional.of( 3l ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.getUserById( userInfoOne.getId(),
+				"\"3\"" );
+
+		assertThat( response.getStatusCode() ).isEqualTo( HttpStatus.NOT_MODIFIED );
+		assertThat( response.getHeaders().getETag() ).isEqualTo( "\"3\"" );
+		assertThat( response.getBody() ).isNull();
+		verify( userRepository, times( 0 ) ).findById( userInfoOne.getId() );
+	}
+
+	@Test
+	void getUserByEmail_MatchingETagReturnsNotModifiedWithoutLoadingUser() {
+		when( userRepository.findVersionViewByNormalizedEmail( "userone@email.com" ) ).thenReturn(
+				Optional.of( new UserVersionView( userInfoOne.getId(), 3l ) ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.getUserByEmail( "UserOne@email.com",
+				"\"3\"" );
+
+		assertThat( response.getStatusCode() ).isEqualTo( HttpStatus.NOT_MODIFIED );
+		verify( userRepository, times( 0 ) ).findUserInfoByNormalizedEmail( any() );
+	}
+
+	@Test
+	void getUserEmail_ReturnsVersionAsETag() {
+		when( userRepository.findEmailViewById( userInfoTwo.getId() ) ).thenReturn(
+				Optional.of( new UserEmailView( userInfoTwo.getEmail(), 7l ) ) );
+
+		final ResponseEntity<String> response = userInfoController.getUserEmail( userInfoTwo.getId(), "\"6\"" );
+
+		assertThat( response.getStatusCode() ).isEqualTo( HttpStatus.OK );
+		assertThat( response.getHeaders().getETag() ).isEqualTo( "\"7\"" );
+		assertThat( response.getBody() ).isEqualTo( userInfoTwo.getEmail() );
 	}
 
 	@Test
 	void getUserEmail_UserNotFoundThrowsResponseStatusException() {
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.getUserEmail( 5l ) );
+				() -> userInfoController.getUserEmail( 5l, null ) );
 	}
 
 	@Test
 	void getUserEmailPreferences_HappyPath() {
-		when(userRepository.findById( userInfoOne.getId() )).thenReturn( Optional.of( userInfoOne ) );
+		when(userRepository.findEmailPreferencesViewById( userInfoOne.getId() )).thenReturn(
+				Optional.of( new UserEmailPreferencesView( userInfoOne.getAllowsEmail(), 0l ) ) );
 
-		final boolean returnedEmailPreferences = userInfoController.getUserEmailPreferences( userInfoOne.getId() ).getBody();
+		final boolean returnedEmailPreferences = userInfoController.getUserEmailPreferences( userInfoOne.getId(), null ).getBody();
 		assertThat( returnedEmailPreferences ).isEqualTo( userInfoOne.getAllowsEmail() );
+		verify( userRepository, times( 0 ) ).findById( userInfoOne.getId() );
 	}
 
 	@Test
 	void getUserEmailPreferences_UserNotFoundThrowsResponseStatusException() {
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.getUserEmailPreferences( 5l ) );
+				() -> userInfoController.getUserEmailPreferences( 5l, null ) );
 	}
 
 	@Test
 	void updateUserEmailPreferences_HappyPath() {
-		when(userRepository.findById( userInfoOne.getId() )).thenReturn( Optional.of( userInfoOne ) );
+		when( userRepository.patchUserInfo( userInfoOne.getId(), preferencePatch( false ), null ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoOne, 1l ), null, true, true ) );
 
-		final UserInfo updatedUserInfo = userInfoOne;
-		updatedUserInfo.setAllowsEmail( false );
+		userInfoController.updateUserEmailPreferences( userInfoOne.getId(), false, null );
 
-		userInfoController.updateUserEmailPreferences(userInfoOne.getId(), false);
+		verify( userRepository, times(0) ).findById( userInfoOne.getId() );
+		verify( userRepository, times( 1 ) ).patchUserInfo( userInfoOne.getId(), preferencePatch( false ), null );
+	}
 
-		verify( userRepository, times(1) ).findById( userInfoOne.getId() );
-		verify( userRepository, times( 1 ) ).save( updatedUserInfo );
+	@Test
+	void updateUserEmailPreferences_StaleIfMatchThrowsVersionConflictException() {
+		when( userRepository.patchUserInfo( userInfoOne.getId(), preferencePatch( false ), 2l ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoOne, 3l ), null, false, false ) );
+
+		assertThrows( VersionConflictException.class,
+				() -> userInfoController.updateUserEmailPreferences( userInfoOne.getId(), false, "\"2\"" ) );
+	}
+
+	@Test
+	void updateUserEmailPreferences_UnchangedPreferenceKeepsVersion() {
+		when( userRepository.patchUserInfo( userInfoOne.getId(), preferencePatch( true ), null ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoOne, 2l ), null, false, false ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.updateUserEmailPreferences(
+				userInfoOne.getId(), true, null );
+
+		assertThat( response.getStatusCode() ).isEqualTo( HttpStatus.ACCEPTED );
+		assertThat( response.getHeaders().getETag() ).isEqualTo( "\"2\"" );
+	}
+
+	@Test
+	void patchUser_UnchangedPreferenceKeepsVersionLikeThePreferenceEndpoint() {
+		when( userRepository.patchUserInfo( userInfoOne.getId(), preferencePatch( true ), 2l ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoOne, 2l ), null, false, false ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.patchUser( userInfoOne.getId(),
+				preferencePatch( true ), "\"2\"" );
+
+		assertThat( response.getStatusCode() ).isEqualTo( HttpStatus.ACCEPTED );
+	}
+
+	@Test
+	void updateUserEmailPreferences_MatchingIfMatchReturnsNextETag() {
+		when( userRepository.patchUserInfo( userInfoTwo.getId(), preferencePatch( true ), 4l ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoTwo, 5l ), null, true, true ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.updateUserEmailPreferences(
+				userInfoTwo.getId(), true, "\"4\"" );
+
+		assertThat( response.getHeaders().getETag() ).isEqualTo( "\"5\"" );
+	}
+
+	@Test
+	void updateUserEmailPreferences_WeakIfMatchThrowsVersionConflictException() {
+		assertThrows( VersionConflictException.class,
+				() -> userInfoController.updateUserEmailPreferences( userInfoTwo.getId(), true, "W/\"4\"" ) );
+		verify( userRepository, times( 0 ) ).patchUserInfo( any(), any(), any() );
+	}
+
+	@Test
+	void updateUserEmailPreferences_IfMatchListIncludingCurrentVersionSucceeds() {
+		when( userRepository.findVersionById( userInfoTwo.getId() ) ).thenReturn( Optional.of( 4l ) );
+		when( userRepository.patchUserInfo( userInfoTwo.getId(), preferencePatch( true ), 4l ) )
+				.thenReturn( new UserPatchResult( atVersion( userInfoTwo, 5l ), null, true, true ) );
+
+		final ResponseEntity<UserInfoResponse> response = userInfoController.updateUserEmailPreferences(
+				userInfoTwo.getId(), true, "\"3\", W/\"5\", \"4\"" );
+
+		assertThat( response.getHeaders().getETag() ).isEqualTo( "\"5\"" );
+	}
+
+	@Test
+	void updateUserEmailPreferences_IfMatchListWithoutCurrentVersionThrowsVersionConflictException() {
+		when( userRepository.findVersionById( userInfoTwo.getId() ) ).thenReturn( Optional.of( 6l ) );
+
+		assertThrows( VersionConflictException.class, () -> userInfoController.updateUserEmailPreferences(
+				userInfoTwo.getId(), true, "\"3\", \"4\"" ) );
 	}
 
 	@Test
 	void updateUserEmailPreferences_UserNotFoundThrowsResponseStatusException() {
+		when( userRepository.patchUserInfo( 5l, preferencePatch( false ), null ) )
+				.thenReturn( new UserPatchResult( null, null, false, false ) );
 		assertThrows( NoSuchElementException.class,
-				() -> userInfoController.updateUserEmailPreferences( 5l, false ) );
+				() -> userInfoController.updateUserEmailPreferences( 5l, false, null ) );
+	}
+
+	@Test
+	void updateUsersEmailPreferences_ReportsUnknownIds() {
+		when( userRepository.findAllByIdIn( anyCollection() ) ).thenReturn( List.of( userInfoOne, userInfoTwo ) );
+
+		final UserInfoResponse response = userInfoController.updateUsersEmailPreferences(
+				new EmailPreferencesUpdate( List.of( 1l, 2l, 9l, 2l ), false ) ).getBody();
+
+		assertThat( response.getNotFoundUserIds() ).containsExactly( 9l );
+		verify( userRepository, times( 1 ) ).updateAllowsEmailByIdIn( List.of( 1l, 2l, 9l ), false );
+	}
+
+	@Test
+	void updateUsersEmailPreferences_EmptyIdListThrowsException() {
+		assertThrows( ConstraintViolationException.class,
+				() -> userInfoController.updateUsersEmailPreferences(
+						new EmailPreferencesUpdate( List.of(), false ) ) );
+	}
+
+	@Test
+	void handleNotFoundExceptions_CountsNotFoundOutcome() {
+		final double before = notFoundCount();
+		userInfoController.handleNotFoundExceptions( new NoSuchElementException( "missing" ) );
+		assertThat( notFoundCount() ).isEqualTo( before + 1 );
+	}
+
+	private double notFoundCount() {
+		return meterRegistry.get( UserInfoMetrics.ERRORS_METRIC ).tag( "status", "404" ).counter().count();
+	}
+
+	private static UserInfoPatch preferencePatch( final boolean allowsEmail ) {
+		return UserInfoPatch.builder().allowsEmail( allowsEmail ).build();
+	}
+
+	private static UserInfo atVersion( final UserInfo userInfo, final Long version ) {
+		return userInfo.toBuilder().version( version ).build();
+	}
+
+	private static DataIntegrityViolationException duplicateEmail() {
+		return new DataIntegrityViolationException( "duplicate", new org.hibernate.exception.ConstraintViolationException(
+				"duplicate", null, "PUBLIC." + UserInfo.NORMALIZED_EMAIL_CONSTRAINT + "_INDEX_8" ) );
 	}
 
 }
@@ -0,0 +1,81 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailBloomFilterTest {
+
+	private UserRepository userRepository;
+
+	private EmailBloomFilter emailBloomFilter;
+
+	@BeforeEach
+	public void beforeEach() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getEmailFilter().setExpectedInsertions( 1_000 );
+		userRepository = mock( UserRepository.class );
+		final PlatformTransactionManager transactionManager = mock( PlatformTransactionManager.class );
+		emailBloomFilter = new EmailBloomFilter( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, transactionManager ), transactionManager,
+				mock( TaskScheduler.class ), new SimpleMeterRegistry() );
+	}
+
+	@Test
+	void mightContain_EverythingPassesUntilFirstBuild() {
+		assertThat( emailBloomFilter.mightContain( "unknown@email.com" ) ).isTrue();
+	}
+
+	@Test
+	void rebuild_StoredEmailsPassAndUnknownEmailsAreRejected() {
+		when( userRepository.count() ).thenReturn( 2l );
+		when( userRepository.streamAllNormalizedEmails() ).thenReturn(
+				Stream.of( "userone@email.com", "usertwo@email.com" ) );
+
+		emailBloomFilter.rebuild();
+
+		assertThat( emailBloomFilter.mightContain( "userone@email.com" ) ).isTrue();
+		assertThat( emailBloomFilter.mightContain( " UserTwo@Email.com" ) ).isTrue();
+		assertThat( emailBloomFilter.mightContain( "unknown@email.com" ) ).isFalse();
+	}
+
+	@Test
+	void onUserUpdated_NewEmailIsAdded() {
+		when( userRepository.streamAllNormalizedEmails() ).thenReturn( Stream.empty() );
+		emailBloomFilter.rebuild();
+
+		emailBloomFilter.onUserUpdated( UserInfo.builder().id( 1l ).build(),
+				UserInfoPatch.builder().email( "changed@email.com" ).build(), false );
+
+		assertThat( emailBloomFilter.mightContain( "changed@email.com" ) ).isTrue();
+	}
+
+	@Test
+	void bits_FalsePositiveRateStaysNearTarget() {
+		final EmailBloomFilter.Bits bits = new EmailBloomFilter.Bits( 10_000, 0.01 );
+		IntStream.range( 0, 10_000 ).forEach( i -> bits.add( "user" + i + "@email.com" ) );
+
+		final long falsePositives = IntStream.range( 0, 10_000 )
+				.filter( i -> bits.mightContain( "other" + i + "@email.com" ) )
+				.count();
+
+		assertThat( falsePositives ).isLessThan( 300 );
+		assertThat( bits.expectedFalsePositiveRate() ).isLessThan( 0.03 );
+	}
+
+}
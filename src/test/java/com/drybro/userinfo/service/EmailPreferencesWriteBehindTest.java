@@ -0,0 +1,85 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class EmailPreferencesWriteBehindTest {
+
+	private UserRepository userRepository;
+
+	private UserInfoChangeListener changeListener;
+
+	private EmailPreferencesWriteBehind writeBehind;
+
+	@BeforeEach
+	public void beforeEach() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getPreferencesWriteBehind().setEnabled( true );
+		userRepository = mock( UserRepository.class );
+		changeListener = mock( UserInfoChangeListener.class );
+		final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		final PlatformTransactionManager transactionManager = mock( PlatformTransactionManager.class );
+		writeBehind = new EmailPreferencesWriteBehind( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, transactionManager ), new TransactionTemplate( transactionManager ),
+				new UserInfoCache( userInfoProperties, meterRegistry ),
+				new UserLookupCoalescer( meterRegistry ), List.of( changeListener ), meterRegistry );
+	}
+
+	@Test
+	void flush_WritesOnlyTheLatestValuePerUser() {
+		final UserInfo userInfo = UserInfo.builder().id( 1l ).allowsEmail( true ).version( 4l ).build();
+		when( userRepository.findAllByIdIn( anyCollection() ) ).thenReturn( List.of( userInfo ) );
+		when( userRepository.updateAllowsEmailByIdIn( List.of( 1l ), true ) ).thenReturn( 1 );
+
+		writeBehind.enqueue( 1l, false );
+		writeBehind.enqueue( 1l, true );
+		assertThat( writeBehind.pendingAllowsEmail( 1l ) ).contains( true );
+
+		writeBehind.flush();
+
+		verify( userRepository, times( 1 ) ).updateAllowsEmailByIdIn( List.of( 1l ), true );
+		verify( userRepository, never() ).updateAllowsEmailByIdIn( anyCollection(), eq( false ) );
+		verify( changeListener, times( 1 ) ).onEmailPreferencesUpdated( List.of( userInfo ), true, 1 );
+		assertThat( writeBehind.pendingAllowsEmail( 1l ) ).isEmpty();
+	}
+
+	@Test
+	void flush_DropsUnknownUsers() {
+		when( userRepository.findAllByIdIn( anyCollection() ) ).thenReturn( List.of() );
+
+		writeBehind.enqueue( 9l, false );
+		writeBehind.flush();
+
+		verify( changeListener, never() ).onEmailPreferencesUpdated( anyCollection(), anyBoolean(), anyInt() );
+		assertThat( writeBehind.hasPending() ).isFalse();
+	}
+
+	@Test
+	void discard_RemovesPendingValue() {
+		writeBehind.enqueue( 1l, false );
+		writeBehind.discard( List.of( 1l ) );
+		assertThat( writeBehind.pendingAllowsEmail( 1l ) ).isEmpty();
+	}
+
+}
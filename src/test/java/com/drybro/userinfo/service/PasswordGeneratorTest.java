@@ -3,15 +3,46 @@ package com.drybro.userinfo.service;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import com.drybro.userinfo.config.UserInfoProperties;
+
 @SpringBootTest
 public class PasswordGeneratorTest {
 
+	@Autowired
+	private PasswordGeneratorService passwordGeneratorService;
+
 	@Test
 	public void generatePassword_HappyPath() {
-		final String generatedPassword = PasswordGeneratorService.generatePassword();
+		final String generatedPassword = passwordGeneratorService.generatePassword();
 		assertEquals(20, generatedPassword.length());
 	}
 
+	@Test
+	public void generatePassword_UsesEntropySource() {
+		final PasswordGeneratorService generator = new PasswordGeneratorService( bound -> 0,
+				new UserInfoProperties() );
+		assertEquals("AAAAAAAAAAAAAAAAAAAA", generator.generatePassword());
+	}
+
+	@Test
+	public void generatePassword_BufferedPasswordsHaveConfiguredLength() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getPasswordGenerator().setLength( 12 );
+		userInfoProperties.getPasswordGenerator().getBuffer().setEnabled( true );
+		userInfoProperties.getPasswordGenerator().getBuffer().setCapacity( 4 );
+		final PasswordGeneratorService generator = new PasswordGeneratorService(
+				new SecureRandomEntropySource(), userInfoProperties );
+		generator.start();
+		try {
+			for ( int i = 0; i < 10; i++ ) {
+				assertEquals(12, generator.generatePassword().length());
+			}
+		} finally {
+			generator.stop();
+		}
+	}
+
 }
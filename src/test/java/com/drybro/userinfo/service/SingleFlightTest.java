@@ -0,0 +1,110 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SingleFlightTest {
+
+	private Counter coalescedCounter;
+
+	private SingleFlight<Long, String> singleFlight;
+
+	private ExecutorService executor;
+
+	@BeforeEach
+	public void beforeEach() {
+		coalescedCounter = new SimpleMeterRegistry().counter( "coalesced" );
+		singleFlight = new SingleFlight<>( coalescedCounter );
+		executor = Executors.newFixedThreadPool( 2 );
+	}
+
+	@AfterEach
+	public void afterEach() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void execute_ConcurrentCallersShareOneLoad() throws Exception {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch loadStarted = new CountDownLatch( 1 );
+		final CountDownLatch releaseLoad = new CountDownLatch( 1 );
+
+		final Future<String> first = executor.submit( () -> singleFlight.execute( 1l, () -> {
+			loads.incrementAndGet();
+			loadStarted.countDown();
+			await( releaseLoad );
+			return "user one";
+		} ) );
+		loadStarted.await( 5, TimeUnit.SECONDS );
+		final Future<String> second = executor.submit( () -> singleFlight.execute( 1l, () -> {
+			loads.incrementAndGet();
+			return "second load";
+		} ) );
+		while ( coalescedCounter.count() == 0 ) {
+			Thread.onSpinWait();
+		}
+		releaseLoad.countDown();
+
+		assertThat( first.get( 5, TimeUnit.SECONDS ) ).isEqualTo( "user one" );
+		assertThat( second.get( 5, TimeUnit.SECONDS ) ).isEqualTo( "user one" );
+		assertThat( loads ).hasValue( 1 );
+	}
+
+	@Test
+	void forget_CallersArrivingAfterwardsStartAFreshLoad() throws Exception {
+		final CountDownLatch loadStarted = new CountDownLatch( 1 );
+		final CountDownLatch releaseLoad = new CountDownLatch( 1 );
+		final Future<String> first = executor.submit( () -> singleFlight.execute( 1l, () -> {
+			loadStarted.countDown();
+			await( releaseLoad );
+			return "before the write";
+		} ) );
+		loadStarted.await( 5, TimeUnit.SECONDS );
+
+		singleFlight.forget( 1l );
+
+		assertThat( singleFlight.execute( 1l, () -> "after the write" ) ).isEqualTo( "after the write" );
+		releaseLoad.countDown();
+		assertThat( first.get( 5, TimeUnit.SECONDS ) ).isEqualTo( "before the write" );
+		assertThat( coalescedCounter.count() ).isZero();
+	}
+
+	@Test
+	void execute_LoadsAgainOnceCompleted() {
+		assertThat( singleFlight.execute( 1l, () -> "first" ) ).isEqualTo( "first" );
+		assertThat( singleFlight.execute( 1l, () -> "second" ) ).isEqualTo( "second" );
+		assertThat( coalescedCounter.count() ).isZero();
+	}
+
+	@Test
+	void execute_FailureIsRethrownAndNotRetained() {
+		assertThrows( NoSuchElementException.class, () -> singleFlight.execute( 1l, () -> {
+			throw new NoSuchElementException( "missing" );
+		} ) );
+		assertThat( singleFlight.awaitInFlight( 1l ) ).isEmpty();
+	}
+
+	private static void await( final CountDownLatch latch ) {
+		try {
+			latch.await( 5, TimeUnit.SECONDS );
+		} catch ( final InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserChangeEvent;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+
+public class UserChangeLogTest {
+
+	@TempDir
+	Path tempDir;
+
+	private final ObjectMapper objectMapper = JsonMapper.builder().findAndAddModules().build();
+
+	private UserInfoProperties userInfoProperties;
+
+	private UserChangeLog userChangeLog;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getChangeLog().setEnabled( true );
+		userInfoProperties.getChangeLog().setDirectory( tempDir.toString() );
+		// Small enough that a few events fill a segment
+		userInfoProperties.getChangeLog().setSegmentSize( DataSize.ofBytes( 512 ) );
+		userChangeLog = openChangeLog();
+	}
+
+	private UserChangeLog openChangeLog() throws IOException {
+		final UserChangeLog changeLog = new UserChangeLog( userInfoProperties, objectMapper,
+				mock( TaskScheduler.class ) );
+		changeLog.open();
+		return changeLog;
+	}
+
+	@Test
+	void read_ReturnsEventsFromTheOffsetAcrossSegments() {
+		for ( long userId = 1; userId <= 10; userId++ ) {
+			userChangeLog.onUserCreated( user( userId, "Number" + userId, true, 0l ) );
+		}
+
+		final List<UserChangeEvent> events = userChangeLog.read( 3, 5 );
+
+		assertThat( events ).extracting( UserChangeEvent::getOffset ).containsExactly( 3l, 4l, 5l, 6l, 7l );
+		assertThat( events.get( 0 ).getUserId() ).isEqualTo( 4l );
+		assertThat( events.get( 0 ).getType() ).isEqualTo( UserChangeEvent.Type.CREATED );
+		assertThat( userChangeLog.getNextOffset() ).isEqualTo( 10 );
+	}
+
+	@Test
+	void open_ContinuesFromTheLastEventWritten() throws IOException {
+		userChangeLog.onUserCreated( user( 1l, "One", true, 0l ) );
+		userChangeLog.onEmailPreferencesUpdated( List.of( user( 1l, "One", false, 1l ) ), false, 1 );
+		userChangeLog.close();
+
+		final UserChangeLog reopened = openChangeLog();
+		reopened.onUserDeleted( user( 1l, "One", false, 1l ) );
+
+		assertThat( reopened.read( 0, 10 ) ).extracting( UserChangeEvent::getType ).containsExactly(
+				UserChangeEvent.Type.CREATED, UserChangeEvent.Type.UPDATED, UserChangeEvent.Type.DELETED );
+	}
+
+	@Test
+	void compact_KeepsTheLatestStateOfEachUser() {
+		userChangeLog.onUserCreated( user( 1l, "One", true, 0l ) );
+		userChangeLog.onUserCreated( user( 2l, "Two", true, 0l ) );
+		for ( int change = 1; change <= 10; change++ ) {
+			userChangeLog.onUserUpdated( user( 1l, "Changed" + change, true, (long) change ),
+					UserInfoPatch.builder().surname( "Changed" + change ).build(), false );
+		}
+		userChangeLog.onEmailPreferencesUpdated( List.of( user( 1l, "Changed10", false, 11l ),
+				user( 2l, "Two", false, 1l ) ), false, 2 );
+		final long nextOffset = userChangeLog.getNextOffset();
+
+		userChangeLog.compact();
+
+		// Down from 14 events, those still in the segment being written are left as they are
+		final List<UserChangeEvent> events = userChangeLog.read( 0, 100 );
+		assertThat( events ).hasSizeLessThan( 7 );
+		assertThat( latestOf( 1l, events ) ).hasValueSatisfying( event -> {
+			assertThat( event.getVersion() ).isEqualTo( 11l );
+			assertThat( event.getSurname() ).isEqualTo( "Changed10" );
+			assertThat( event.getAllowsEmail() ).isFalse();
+		} );
+		assertThat( userChangeLog.getNextOffset() ).isEqualTo( nextOffset );
+	}
+
+	@Test
+	void compact_KeepsTheHighestVersionOfWritesLoggedOutOfOrder() {
+		userChangeLog.onUserCreated( user( 1l, "One", true, 0l ) );
+		userChangeLog.onUserUpdated( user( 1l, "Second", false, 2l ), UserInfoPatch.builder()
+				.allowsEmail( false ).build(), true );
+		userChangeLog.onUserUpdated( user( 1l, "First", true, 1l ), UserInfoPatch.builder()
+				.surname( "First" ).build(), false );
+		// Seals the segments holding the events of the first user
+		for ( long userId = 2; userId <= 10; userId++ ) {
+			userChangeLog.onUserCreated( user( userId, "Number" + userId, true, 0l ) );
+		}
+
+		userChangeLog.compact();
+
+		assertThat( userChangeLog.read( 0, 100 ) ).filteredOn( event -> event.getUserId() == 1l )
+				.singleElement()
+				.satisfies( event -> {
+					assertThat( event.getVersion() ).isEqualTo( 2l );
+					assertThat( event.getSurname() ).isEqualTo( "Second" );
+				} );
+	}
+
+	@Test
+	void awaitChanges_RunsOnceAnEventIsAppendedOffTheWritersThread() throws Exception {
+		final CompletableFuture<Thread> notifiedOn = new CompletableFuture<>();
+		userChangeLog.awaitChanges( 0, () -> notifiedOn.complete( Thread.currentThread() ) );
+		assertThat( notifiedOn ).isNotDone();
+
+		userChangeLog.onUserDeleted( user( 1l, "One", true, 0l ) );
+
+		assertThat( notifiedOn.get( 5, TimeUnit.SECONDS ) ).isNotSameAs( Thread.currentThread() );
+	}
+
+	@Test
+	void onEmailPreferencesUpdated_LogsNothingWhenNoPreferenceChanged() {
+		userChangeLog.onEmailPreferencesUpdated( List.of( user( 1l, "One", false, 3l ),
+				user( 2l, "Two", false, 5l ) ), false, 0 );
+
+		assertThat( userChangeLog.getNextOffset() ).isZero();
+	}
+
+	private static UserInfo user( final Long userId, final String surname, final Boolean allowsEmail,
+			final Long version ) {
+		return new UserInfo( userId, "User", surname, userId + "@email.com", UserInfo.normalizeEmail(
+				userId + "@email.com" ), "password", allowsEmail, version );
+	}
+
+	private static Optional<UserChangeEvent> latestOf( final Long userId, final List<UserChangeEvent> events ) {
+		return events.stream()
+				.filter( event -> event.getUserId().equals( userId ) )
+				.reduce( ( kept, other ) -> other.supersedes( kept ) ? other : kept );
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserDirectoryEntry;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.repository.UserRepository;
+
+public class UserDirectoryTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private UserInfoProperties userInfoProperties;
+
+	private UserRepository userRepository;
+
+	private UserDirectory userDirectory;
+
+	@BeforeEach
+	public void beforeEach() {
+		userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getDirectory().setEnabled( true );
+		userRepository = mock( UserRepository.class );
+		userDirectory = new UserDirectory( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, mock( PlatformTransactionManager.class ) ),
+				mock( TaskScheduler.class ) );
+		when( userRepository.streamAllDirectoryEntries() ).thenReturn( Stream.of(
+				new UserDirectoryEntry( 1l, "David", "Smith", "dave.smith@email.com", true ),
+				new UserDirectoryEntry( 2l, "Sarah", "Smith", "sarah@email.com", false ),
+				new UserDirectoryEntry( 4l, "David", "Jones", "dj@email.com", true ),
+				new UserDirectoryEntry( 5l, "Mark", "Brown", "mark@email.com", false ) ) );
+		userDirectory.load();
+	}
+
+	@Test
+	void listUsers_WritesEveryUserInIdOrderWithoutPasswords() throws IOException {
+		assertThat( listedJson( null ) ).isEqualTo( "["
+				+ "{\"id\":1,\"firstName\":\"David\",\"surname\":\"Smith\",\"email\":\"dave.smith@email.com\","
+				+ "\"allowsEmail\":true},"
+				+ "{\"id\":2,\"firstName\":\"Sarah\",\"surname\":\"Smith\",\"email\":\"sarah@email.com\","
+				+ "\"allowsEmail\":false},"
+				+ "{\"id\":4,\"firstName\":\"David\",\"surname\":\"Jones\",\"email\":\"dj@email.com\","
+				+ "\"allowsEmail\":true},"
+				+ "{\"id\":5,\"firstName\":\"Mark\",\"surname\":\"Brown\",\"email\":\"mark@email.com\","
+				+ "\"allowsEmail\":false}]" );
+	}
+
+	@Test
+	void listUsers_FiltersByEmailPreference() throws IOException {
+		assertThat( listedIds( true ) ).containsExactly( 1l, 4l );
+		assertThat( listedIds( false ) ).containsExactly( 2l, 5l );
+		assertThat( userDirectory.getUserStats() ).isEqualTo( new UserStats( 4l, 2l, 2l ) );
+	}
+
+	@Test
+	void changes_AreReflectedIncrementally() throws IOException {
+		userDirectory.onUserCreated( new UserInfo( 3l, "Anna", "Smith", "anna@email.com", "secret", true ) );
+		userDirectory.onUserUpdated( UserInfo.builder().id( 1l ).build(),
+				UserInfoPatch.builder().firstName( "John" ).allowsEmail( false ).build(), true );
+		userDirectory.onEmailPreferencesUpdated( List.of( UserInfo.builder().id( 2l ).build(),
+				UserInfo.builder().id( 5l ).build() ), true, 2 );
+		userDirectory.onUserDeleted( UserInfo.builder().id( 4l ).build() );
+
+		assertThat( listedIds( null ) ).containsExactly( 1l, 2l, 3l, 5l );
+		assertThat( listedIds( true ) ).containsExactly( 2l, 3l, 5l );
+		assertThat( objectMapper.readTree( listedJson( null ) ).get( 0 ).get( "firstName" ).asText() )
+				.isEqualTo( "John" );
+		assertThat( userDirectory.getUserStats() ).isEqualTo( new UserStats( 4l, 3l, 1l ) );
+	}
+
+	@Test
+	void listUsers_SpansChunksAndSurvivesRemovingMostUsers() throws IOException {
+		LongStream.rangeClosed( 10, 2_509 ).forEach( userId -> userDirectory.onUserCreated(
+				new UserInfo( userId, "First" + userId % 7, "Surname", userId + "@email.com", null, userId % 2 == 0 ) ) );
+		assertThat( listedIds( null ) ).hasSize( 2_504 );
+
+		LongStream.rangeClosed( 10, 2_009 ).forEach( userId -> userDirectory.onUserDeleted(
+				UserInfo.builder().id( userId ).build() ) );
+
+		assertThat( listedIds( null ) ).containsExactlyElementsOf(
+				Stream.concat( Stream.of( 1l, 2l, 4l, 5l ), LongStream.rangeClosed( 2_010, 2_509 ).boxed() ).toList() );
+		assertThat( listedIds( true ) ).hasSize( 252 );
+	}
+
+	@Test
+	void listUsers_KeepsEveryEmailAsEmailsAreReplaced() throws IOException {
+		IntStream.rangeClosed( 1, 5_000 ).forEach( change -> userDirectory.onUserUpdated(
+				UserInfo.builder().id( 2l ).build(), UserInfoPatch.builder().email( "sarah" + change + "@email.com" ).build(), false ) );
+
+		final JsonNode users = objectMapper.readTree( listedJson( null ) );
+		assertThat( users.get( 0 ).get( "email" ).asText() ).isEqualTo( "dave.smith@email.com" );
+		assertThat( users.get( 1 ).get( "email" ).asText() ).isEqualTo( "sarah5000@email.com" );
+		assertThat( users.get( 3 ).get( "email" ).asText() ).isEqualTo( "mark@email.com" );
+	}
+
+	@Test
+	void load_FailedLoadIsRetriedByTheNextOne() {
+		final UserDirectory reloaded = new UserDirectory( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, mock( PlatformTransactionManager.class ) ),
+				mock( TaskScheduler.class ) );
+		when( userRepository.streamAllDirectoryEntries() )
+				.thenThrow( new IllegalStateException( "Database is down" ) )
+				.thenReturn( Stream.of( new UserDirectoryEntry( 1l, "David", "Smith", "dave.smith@email.com", true ) ) );
+
+		reloaded.load();
+		assertThrows( ResponseStatusException.class, reloaded::getUserStats );
+
+		reloaded.load();
+		assertThat( reloaded.getUserStats() ).isEqualTo( new UserStats( 1l, 1l, 0l ) );
+	}
+
+	@Test
+	void listUsers_UnavailableUntilLoaded() {
+		final UserDirectory unloaded = new UserDirectory( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, mock( PlatformTransactionManager.class ) ),
+				mock( TaskScheduler.class ) );
+		assertThrows( ResponseStatusException.class, () -> unloaded.listUsers( null ) );
+		assertThrows( ResponseStatusException.class, unloaded::getUserStats );
+	}
+
+	private List<Long> listedIds( final Boolean allowsEmail ) throws IOException {
+		final List<Long> userIds = new ArrayList<>();
+		objectMapper.readTree( listedJson( allowsEmail ) ).forEach( user -> userIds.add( user.get( "id" ).asLong() ) );
+		return userIds;
+	}
+
+	private String listedJson( final Boolean allowsEmail ) throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try ( JsonGenerator generator = objectMapper.createGenerator( outputStream ) ) {
+			userDirectory.listUsers( allowsEmail ).writeTo( generator );
+		}
+		return outputStream.toString( StandardCharsets.UTF_8 );
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserCreationResult;
+import com.drybro.userinfo.model.UserImportProgress;
+import com.drybro.userinfo.model.UserImportRejection;
+import com.drybro.userinfo.model.UserInfo;
+
+public class UserImportServiceTest {
+
+	@TempDir
+	Path tempDir;
+
+	private UserService userService;
+
+	private UserImportService userImportService;
+
+	@BeforeEach
+	public void beforeEach() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getBulk().setChunkSize( 2 );
+		userInfoProperties.getCsvImport().setMaxBatchesInFlight( 1 );
+		userService = mock( UserService.class );
+		when( userService.prepareNewUser( any(), anySet() ) ).thenAnswer( invocation -> {
+			final UserInfo userInfo = invocation.getArgument( 0 );
+			return userInfo.getFirstName() == null ? List.of( "First Name must be provided" ) : List.of();
+		} );
+		// Users with an email at existing.com are treated as already stored
+		doAnswer( invocation -> {
+			final List<UserInfo> users = invocation.getArgument( 0 );
+			final UserCreationResult[] results = invocation.getArgument( 2 );
+			for ( int index = 0; index < users.size(); index++ ) {
+				results[index] = UserCreationResult.builder()
+						.index( index )
+						.isSuccess( !users.get( index ).getEmail().endsWith( "@existing.com" ) )
+						.errors( List.of( "A user with this email already exists" ) )
+						.build();
+			}
+			return null;
+		} ).when( userService ).saveValidatedUsers( anyList(), anyList(), any() );
+		userImportService = new UserImportService( userInfoProperties, userService );
+	}
+
+	@AfterEach
+	public void afterEach() {
+		userImportService.stop();
+	}
+
+	@Test
+	void importUsers_ReportsRejectedRowsAndImportsTheRest() throws IOException {
+		final Path csv = Files.writeString( tempDir.resolve( "users.csv" ), """
+				email,firstName,surname,allowsEmail
+				one@email.com,User,One,true
+				two@email.com,,Two,false
+				three@existing.com,User,Three,false
+				four@email.com,User,Four,maybe
+				five@email.com,User,Five,FALSE
+				""" );
+
+		final UserImportProgress progress = userImportService.importUsers( csv );
+
+		assertThat( progress.getStatus() ).isEqualTo( UserImportProgress.Status.COMPLETED );
+		assertThat( progress.getRowsRead() ).isEqualTo( 5 );
+		assertThat( progress.getUsersImported() ).isEqualTo( 2 );
+		assertThat( progress.getRowsRejected() ).isEqualTo( 3 );
+		assertThat( progress.getRejections() ).extracting( UserImportRejection::getRow )
+				.containsExactlyInAnyOrder( 2l, 3l, 4l );
+		assertThat( userImportService.getImportProgress( progress.getJobId() ) ).contains( progress );
+	}
+
+	@Test
+	void importUsers_MissingColumnFailsTheImport() throws IOException {
+		final Path csv = Files.writeString( tempDir.resolve( "users.csv" ), """
+				email,firstName,surname
+				one@email.com,User,One
+				""" );
+
+		final UserImportProgress progress = userImportService.importUsers( csv );
+
+		assertThat( progress.getStatus() ).isEqualTo( UserImportProgress.Status.FAILED );
+		assertThat( progress.getError() ).contains( "allowsEmail" );
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class UserInfoCacheTest {
+
+	private UserInfoCache userInfoCache;
+
+	private UserInfo userInfoOne;
+
+	@BeforeEach
+	public void beforeEach() {
+		userInfoCache = new UserInfoCache( new UserInfoProperties(), new SimpleMeterRegistry() );
+		userInfoOne = new UserInfo( 1l, "user", "one", "userone@email.com", "password", true );
+	}
+
+	@Test
+	void put_EntryIsSharedBetweenIdAndEmail() {
+		userInfoCache.put( userInfoOne );
+		assertThat( userInfoCache.getById( 1l ) ).containsSame( userInfoOne );
+		assertThat( userInfoCache.getByEmail( "userone@email.com" ) ).containsSame( userInfoOne );
+	}
+
+	@Test
+	void evict_RemovesBothKeys() {
+		userInfoCache.put( userInfoOne );
+		userInfoCache.evict( 1l );
+		assertThat( userInfoCache.getById( 1l ) ).isEmpty();
+		assertThat( userInfoCache.getByEmail( "userone@email.com" ) ).isEmpty();
+	}
+
+	@Test
+	void put_ChangedEmailDropsOldEmailKey() {
+		userInfoCache.put( userInfoOne );
+		userInfoCache.put( new UserInfo( 1l, "user", "one", "changed@email.com", "password", true ) );
+		assertThat( userInfoCache.getByEmail( "userone@email.com" ) ).isEmpty();
+		assertThat( userInfoCache.getByEmail( "changed@email.com" ) ).isPresent();
+	}
+
+	@Test
+	void putIfNotInvalidated_SkipsUserEvictedSinceTheStamp() {
+		final long stamp = userInfoCache.invalidationStamp( 1l );
+		userInfoCache.evict( 1l );
+
+		userInfoCache.putIfNotInvalidated( userInfoOne, stamp );
+
+		assertThat( userInfoCache.getById( 1l ) ).isEmpty();
+		assertThat( userInfoCache.getByEmail( "userone@email.com" ) ).isEmpty();
+	}
+
+	@Test
+	void putIfNotInvalidated_CachesUserNotEvictedSinceTheStamp() {
+		final long stamp = userInfoCache.invalidationStamp( 1l );
+		userInfoCache.evict( 2l );
+
+		userInfoCache.putIfNotInvalidated( userInfoOne, stamp );
+
+		assertThat( userInfoCache.getById( 1l ) ).containsSame( userInfoOne );
+	}
+
+	@Test
+	void putIfNoneInvalidated_SkipsUserAfterAnyEviction() {
+		final long stamp = userInfoCache.anyInvalidationStamp();
+		userInfoCache.evict( 2l );
+
+		userInfoCache.putIfNoneInvalidated( userInfoOne, stamp );
+
+		assertThat( userInfoCache.getByEmail( "userone@email.com" ) ).isEmpty();
+	}
+
+	@Test
+	void getById_NullIdIsAMiss() {
+		assertThat( userInfoCache.getById( null ) ).isEmpty();
+	}
+
+	@Test
+	void disabledCache_NeverReturnsEntries() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getCache().setEnabled( false );
+		final UserInfoCache disabledCache = new UserInfoCache( userInfoProperties, new SimpleMeterRegistry() );
+		disabledCache.put( userInfoOne );
+		assertThat( disabledCache.getById( 1l ) ).isEmpty();
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPage;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserSummary;
+import com.drybro.userinfo.repository.UserRepository;
+
+public class UserSearchIndexTest {
+
+	private UserRepository userRepository;
+
+	private UserSearchIndex userSearchIndex;
+
+	@BeforeEach
+	public void beforeEach() {
+		userRepository = mock( UserRepository.class );
+		userSearchIndex = new UserSearchIndex( new UserInfoProperties(), userRepository,
+				new UserShards( new UserInfoProperties(), mock( PlatformTransactionManager.class ) ),
+				mock( PlatformTransactionManager.class ), mock( TaskScheduler.class ) );
+		when( userRepository.streamAllSummaries() ).thenReturn( Stream.of(
+				new UserSummary( 1l, "David", "Smith", "dave.smith@email.com" ),
+				new UserSummary( 2l, "Davina", "Jones", "dj@email.com" ),
+				new UserSummary( 3l, "Sarah", "Davidson", "sarah@email.com" ),
+				new UserSummary( 4l, "Mark", "Smithers", "mark@email.com" ) ) );
+		userSearchIndex.build();
+	}
+
+	@Test
+	void search_MatchesPrefixOfAnyNameOrEmailWordInIdOrder() {
+		final UserInfoPage page = userSearchIndex.search( "dav", 0l, 10 );
+		assertThat( page.getUsers() ).extracting( UserInfo::getId ).containsExactly( 1l, 2l, 3l );
+		assertThat( page.getNextCursor() ).isNull();
+	}
+
+	@Test
+	void search_EveryTermMustMatch() {
+		final UserInfoPage page = userSearchIndex.search( "smith Dav", 0l, 10 );
+		assertThat( page.getUsers() ).extracting( UserInfo::getId ).containsExactly( 1l );
+	}
+
+	@Test
+	void search_PagesWithCursor() {
+		final UserInfoPage firstPage = userSearchIndex.search( "dav", 0l, 2 );
+		assertThat( firstPage.getUsers() ).extracting( UserInfo::getId ).containsExactly( 1l, 2l );
+		assertThat( firstPage.getNextCursor() ).isEqualTo( 2l );
+
+		final UserInfoPage secondPage = userSearchIndex.search( "dav", firstPage.getNextCursor(), 2 );
+		assertThat( secondPage.getUsers() ).extracting( UserInfo::getId ).containsExactly( 3l );
+		assertThat( secondPage.getNextCursor() ).isNull();
+	}
+
+	@Test
+	void changes_AreReflectedIncrementally() {
+		userSearchIndex.onUserCreated( new UserInfo( 5l, "Dave", "Brown", "brown@email.com", null, true ) );
+		userSearchIndex.onUserUpdated( UserInfo.builder().id( 1l ).build(), UserInfoPatch.builder().firstName( "John" ).build(), false );
+		userSearchIndex.onUserDeleted( UserInfo.builder().id( 3l ).build() );
+
+		assertThat( userSearchIndex.search( "dav", 0l, 10 ).getUsers() ).extracting( UserInfo::getId )
+				.containsExactly( 1l, 2l, 5l );
+		assertThat( userSearchIndex.search( "john", 0l, 10 ).getUsers() ).extracting( UserInfo::getId )
+				.containsExactly( 1l );
+	}
+
+	@Test
+	void search_UnavailableUntilBuilt() {
+		final UserSearchIndex unbuilt = new UserSearchIndex( new UserInfoProperties(), userRepository,
+				new UserShards( new UserInfoProperties(), mock( PlatformTransactionManager.class ) ),
+				mock( PlatformTransactionManager.class ), mock( TaskScheduler.class ) );
+		assertThrows( ResponseStatusException.class, () -> unbuilt.search( "dav", 0l, 10 ) );
+	}
+
+}
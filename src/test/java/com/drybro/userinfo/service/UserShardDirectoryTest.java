@@ -0,0 +1,128 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserEmailIndexEntry;
+import com.drybro.userinfo.model.UserEmailView;
+import com.drybro.userinfo.model.UserSummary;
+import com.drybro.userinfo.repository.UserEmailIndexRepository;
+import com.drybro.userinfo.repository.UserRepository;
+
+import jakarta.persistence.EntityManagerFactory;
+
+public class UserShardDirectoryTest {
+
+	private final Instant longAgo = Instant.now().minus( Duration.ofHours( 1 ) ).truncatedTo( ChronoUnit.MILLIS );
+
+	private UserRepository userRepository;
+
+	private UserEmailIndexRepository userEmailIndexRepository;
+
+	private UserShards userShards;
+
+	private UserShardDirectory userShardDirectory;
+
+	@BeforeEach
+	public void beforeEach() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getSharding().setEnabled( true );
+		for ( int shard = 0; shard < 3; shard++ ) {
+			userInfoProperties.getSharding().getShards().add( new UserInfoProperties.Sharding.Shard() );
+		}
+		final PlatformTransactionManager transactionManager = mock( PlatformTransactionManager.class );
+		userRepository = mock( UserRepository.class );
+		userEmailIndexRepository = mock( UserEmailIndexRepository.class );
+		userShards = new UserShards( userInfoProperties, transactionManager );
+		userShardDirectory = new UserShardDirectory( userInfoProperties, userShards, userEmailIndexRepository,
+				new TransactionTemplate( transactionManager ), mock( JdbcTemplate.class ),
+				mock( EntityManagerFactory.class ), userRepository, mock( TaskScheduler.class ) );
+	}
+
+	@AfterEach
+	public void afterEach() {
+		userShards.stop();
+	}
+
+	@Test
+	void indexEmail_ReclaimsEntryOfUserWithoutTheEmail() {
+		clashOnFirstInsert( new UserEmailIndexEntry( "dave@email.com", 7l, longAgo ) );
+		when( userRepository.findEmailViewById( 7l ) ).thenReturn(
+				Optional.of( new UserEmailView( "david@email.com", 3l ) ) );
+		when( userEmailIndexRepository.deleteUnchanged( "dave@email.com", 7l, longAgo ) ).thenReturn( 1 );
+
+		assertThat( userShardDirectory.indexEmail( "dave@email.com", 9l ) ).isTrue();
+		verify( userEmailIndexRepository ).save( argThat( entry -> entry.getUserId().equals( 9l ) ) );
+	}
+
+	@Test
+	void indexEmail_LeavesEntryOfUserHoldingTheEmail() {
+		clashOnFirstInsert( new UserEmailIndexEntry( "dave@email.com", 7l, longAgo ) );
+		when( userRepository.findEmailViewById( 7l ) ).thenReturn(
+				Optional.of( new UserEmailView( "Dave@Email.com", 3l ) ) );
+
+		assertThat( userShardDirectory.indexEmail( "dave@email.com", 9l ) ).isFalse();
+		verify( userEmailIndexRepository, never() ).deleteUnchanged( anyString(), anyLong(), any() );
+	}
+
+	@Test
+	void indexEmail_LeavesRecentEntryOfAWriteInFlight() {
+		clashOnFirstInsert( new UserEmailIndexEntry( "dave@email.com", 7l, Instant.now() ) );
+
+		assertThat( userShardDirectory.indexEmail( "dave@email.com", 9l ) ).isFalse();
+		verify( userRepository, never() ).findEmailViewById( anyLong() );
+	}
+
+	@Test
+	void sweepOrphans_RemovesEntriesWhoseUserDoesNotHoldTheEmail() {
+		when( userEmailIndexRepository.findIndexedBefore( eq( "" ), any(), any() ) ).thenReturn( List.of(
+				new UserEmailIndexEntry( "anna@email.com", 1l, longAgo ),
+				new UserEmailIndexEntry( "dave@email.com", 2l, longAgo ),
+				new UserEmailIndexEntry( "old.dave@email.com", 2l, longAgo ),
+				new UserEmailIndexEntry( "gone@email.com", 3l, longAgo ) ) );
+		when( userRepository.findSummariesByIdIn( any() ) ).thenAnswer( invocation -> List.of(
+				new UserSummary( 1l, "Anna", "Smith", "anna@email.com" ),
+				new UserSummary( 2l, "Dave", "Brown", "DAVE@email.com" ) ) );
+
+		userShardDirectory.sweepOrphans();
+
+		verify( userEmailIndexRepository ).deleteUnchanged( "old.dave@email.com", 2l, longAgo );
+		verify( userEmailIndexRepository ).deleteUnchanged( "gone@email.com", 3l, longAgo );
+		verify( userEmailIndexRepository, never() ).deleteUnchanged( eq( "anna@email.com" ), anyLong(), any() );
+		verify( userEmailIndexRepository, never() ).deleteUnchanged( eq( "dave@email.com" ), anyLong(), any() );
+	}
+
+	private void clashOnFirstInsert( final UserEmailIndexEntry existingEntry ) {
+		doThrow( new DataIntegrityViolationException( "Duplicate email", new SQLException( "Duplicate email", "23505" ) ) )
+				.doReturn( List.of() )
+				.when( userEmailIndexRepository ).saveAll( any() );
+		when( userEmailIndexRepository.findAllById( any() ) ).thenReturn( List.of( existingEntry ) );
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.drybro.userinfo.config.ShardContext;
+import com.drybro.userinfo.config.UserInfoProperties;
+
+public class UserShardsTest {
+
+	private UserShards userShards;
+
+	@BeforeEach
+	public void beforeEach() {
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		userInfoProperties.getSharding().setEnabled( true );
+		for ( int shard = 0; shard < 3; shard++ ) {
+			userInfoProperties.getSharding().getShards().add( new UserInfoProperties.Sharding.Shard() );
+		}
+		userShards = new UserShards( userInfoProperties, mock( PlatformTransactionManager.class ) );
+	}
+
+	@AfterEach
+	public void afterEach() {
+		userShards.stop();
+	}
+
+	@Test
+	void shardFor_SpreadsConsecutiveIdsOverEveryShard() {
+		final Map<Integer, Long> usersPerShard = new ConcurrentHashMap<>();
+		LongStream.rangeClosed( 1, 3_000 ).forEach( userId -> usersPerShard.merge( userShards.shardFor( userId ), 1l,
+				Long::sum ) );
+
+		assertThat( usersPerShard ).containsOnlyKeys( 0, 1, 2 );
+		assertThat( usersPerShard.values() ).allSatisfy( userCount -> assertThat( userCount ).isBetween( 900l, 1_100l ) );
+	}
+
+	@Test
+	void onEveryShard_RunsTheWorkOnEachShard() {
+		assertThat( userShards.onEveryShard( ShardContext::currentShard ) ).containsExactly( 0, 1, 2 );
+	}
+
+	@Test
+	void streamMerged_ReturnsEveryShardsResultsInOrder() {
+		final List<Long> merged = new ArrayList<>();
+
+		userShards.streamMerged( this::userIdsOnCurrentShard, Comparator.naturalOrder(), merged::add );
+
+		assertThat( merged ).isEqualTo( LongStream.rangeClosed( 1, 2_000 ).boxed().toList() );
+	}
+
+	@Test
+	void streamMerged_FailedShardReadFailsTheMerge() {
+		final IllegalStateException failure = assertThrows( IllegalStateException.class,
+				() -> userShards.streamMerged( () -> {
+					if ( ShardContext.currentShard() == 1 ) {
+						throw new IllegalStateException( "Shard 1 is down" );
+					}
+					return userIdsOnCurrentShard();
+				}, Comparator.naturalOrder(), userId -> {
+				} ) );
+
+		assertThat( failure ).hasMessage( "Shard 1 is down" );
+	}
+
+	private Stream<Long> userIdsOnCurrentShard() {
+		final int shard = ShardContext.currentShard();
+		return LongStream.rangeClosed( 1, 2_000 ).boxed().filter( userId -> userShards.shardFor( userId ) == shard );
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.drybro.userinfo.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.drybro.userinfo.config.UserInfoProperties;
+import com.drybro.userinfo.model.UserInfo;
+import com.drybro.userinfo.model.UserInfoPatch;
+import com.drybro.userinfo.model.UserStats;
+import com.drybro.userinfo.repository.UserRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class UserStatisticsTest {
+
+	private UserRepository userRepository;
+
+	private UserStatistics userStatistics;
+
+	@BeforeEach
+	public void beforeEach() {
+		userRepository = mock( UserRepository.class );
+		final UserInfoProperties userInfoProperties = new UserInfoProperties();
+		final PlatformTransactionManager transactionManager = mock( PlatformTransactionManager.class );
+		userStatistics = new UserStatistics( userInfoProperties, userRepository,
+				new UserShards( userInfoProperties, transactionManager ), transactionManager,
+				mock( TaskScheduler.class ), new SimpleMeterRegistry() );
+	}
+
+	@Test
+	void getUserStats_UnavailableUntilFirstReconcile() {
+		assertThrows( ResponseStatusException.class, () -> userStatistics.getUserStats() );
+	}
+
+	@Test
+	void getUserStats_AdjustedByEachWrite() {
+		when( userRepository.countUsersByEmailPreference() ).thenReturn( new UserStats( 3l, 2l, 1l ) );
+		userStatistics.reconcile();
+
+		userStatistics.onUserCreated( new UserInfo( 4l, "Dave", "Brown", "brown@email.com", null, false ) );
+		userStatistics.onUserUpdated( UserInfo.builder().id( 1l ).build(),
+				UserInfoPatch.builder().allowsEmail( false ).build(), true );
+		userStatistics.onUserUpdated( UserInfo.builder().id( 2l ).build(),
+				UserInfoPatch.builder().allowsEmail( false ).build(), false );
+		userStatistics.onEmailPreferencesUpdated( List.of( UserInfo.builder().id( 3l ).build(),
+				UserInfo.builder().id( 4l ).build() ), true, 1 );
+		userStatistics.onUserDeleted( new UserInfo( 2l, "Jane", "Smith", "smith@email.com", null, true ) );
+
+		assertThat( userStatistics.getUserStats() ).isEqualTo( new UserStats( 3l, 1l, 2l ) );
+	}
+
+	@Test
+	void reconcile_ReplacesDriftedCounts() {
+		when( userRepository.countUsersByEmailPreference() ).thenReturn( new UserStats( 3l, 2l, 1l ) );
+		userStatistics.reconcile();
+		userStatistics.onUserCreated( new UserInfo( 4l, "Dave", "Brown", "brown@email.com", null, true ) );
+
+		when( userRepository.countUsersByEmailPreference() ).thenReturn( new UserStats( 5l, 3l, 2l ) );
+		userStatistics.reconcile();
+
+		assertThat( userStatistics.getUserStats() ).isEqualTo( new UserStats( 5l, 3l, 2l ) );
+	}
+
+}